@@ -0,0 +1,34 @@
+package org.threatzero.keycloak.plugins.authenticators.user;
+
+import io.github.thibaultmeyer.cuid.CUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The CUID {@link SetCuidAttributeAuthenticator} generates for users without one, single threaded
+ * and under the contention of concurrent logins.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CuidBenchmark {
+  @Benchmark
+  public String randomCuid2() {
+    return CUID.randomCUID2().toString();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String randomCuid2Contended() {
+    return CUID.randomCUID2().toString();
+  }
+}
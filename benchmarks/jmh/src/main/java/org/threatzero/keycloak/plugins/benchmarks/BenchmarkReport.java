@@ -0,0 +1,101 @@
+package org.threatzero.keycloak.plugins.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Compares JMH JSON results (from {@code -rf json}) as a Markdown table: one row per benchmark and
+ * parameter combination, one column per results file, e.g. one file per release. With {@code
+ * --pivot <param>}, the values of that parameter become columns too, to compare query strategies
+ * side by side. Each column after the first also shows its ratio to the first.
+ *
+ * <pre>java -cp benchmarks.jar org.threatzero.keycloak.plugins.benchmarks.BenchmarkReport \
+ *     [--pivot sortStrategy] jmh-1.6.0.json jmh-1.7.0.json</pre>
+ */
+public class BenchmarkReport {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  public static void main(String[] args) throws IOException {
+    String pivot = null;
+    List<String> files = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--pivot") && i + 1 < args.length) {
+        pivot = args[++i];
+      } else {
+        files.add(args[i]);
+      }
+    }
+    if (files.isEmpty()) {
+      System.err.println("Usage: BenchmarkReport [--pivot <param>] <results.json>...");
+      System.exit(2);
+    }
+
+    // Scores by row (benchmark and parameters) and then by column (file and pivot value).
+    Map<String, Map<String, JsonNode>> rows = new TreeMap<>();
+    Set<String> columns = new LinkedHashSet<>();
+    for (String file : files) {
+      String name = new File(file).getName().replaceFirst("\\.json$", "");
+      for (JsonNode result : MAPPER.readTree(new File(file))) {
+        Map<String, String> params = new TreeMap<>();
+        Iterator<Map.Entry<String, JsonNode>> it = result.path("params").fields();
+        while (it.hasNext()) {
+          Map.Entry<String, JsonNode> param = it.next();
+          params.put(param.getKey(), param.getValue().asText());
+        }
+        String column = pivot != null ? name + " " + pivot + "=" + params.remove(pivot) : name;
+        // Class and method, without the package.
+        String benchmark = result.path("benchmark").asText();
+        String row =
+            benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+        if (!params.isEmpty()) {
+          row += " " + params;
+        }
+        columns.add(column);
+        rows.computeIfAbsent(row, k -> new LinkedHashMap<>())
+            .put(column, result.path("primaryMetric"));
+      }
+    }
+
+    List<String> header = new ArrayList<>(columns);
+    StringBuilder out = new StringBuilder("| Benchmark |");
+    header.forEach(c -> out.append(' ').append(c).append(" |"));
+    out.append("\n| --- |");
+    header.forEach(c -> out.append(" ---: |"));
+    out.append('\n');
+    for (Map.Entry<String, Map<String, JsonNode>> row : rows.entrySet()) {
+      out.append("| ").append(row.getKey()).append(" |");
+      JsonNode baseline = row.getValue().get(header.get(0));
+      for (String column : header) {
+        JsonNode metric = row.getValue().get(column);
+        out.append(' ');
+        if (metric != null) {
+          out.append(
+              String.format(
+                  "%.3f ± %.3f %s",
+                  metric.path("score").asDouble(),
+                  metric.path("scoreError").asDouble(),
+                  metric.path("scoreUnit").asText()));
+          if (baseline != null && metric != baseline) {
+            out.append(
+                String.format(
+                    " (%.2fx)",
+                    metric.path("score").asDouble() / baseline.path("score").asDouble()));
+          }
+        }
+        out.append(" |");
+      }
+      out.append('\n');
+    }
+    System.out.print(out);
+  }
+}
@@ -0,0 +1,157 @@
+package org.threatzero.keycloak.plugins.mappers;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.datatype.DatatypeFactory;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.saml.SAMLEndpoint;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.util.JsonSerialization;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Attribute mappers run on every brokered login. Pattern maps are sized like a real tenant
+ * mapping: one pattern per district, the claim matching one near the end of the map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+  private static final int DISTRICTS = 25;
+  private static final String EMAIL = "jane.doe@district23.k12.example.org";
+
+  @Param({"exact", "regex", "glob"})
+  public String patternType;
+
+  private final OidcAdvancedAttributeMapper oidcMapper = new OidcAdvancedAttributeMapper();
+  private final SamlAdvancedAttributeMapper samlMapper = new SamlAdvancedAttributeMapper();
+  private Map<String, String> patterns;
+  private IdentityProviderMapperModel samlMapperModel;
+  private BrokeredIdentityContext samlContext;
+  private KeycloakSession session;
+  private RealmModel realm;
+  private UserModel user;
+  private Object assigned;
+
+  @Setup
+  public void setUp() throws Exception {
+    patterns = new LinkedHashMap<>();
+    for (int i = 0; i < DISTRICTS; i++) {
+      patterns.put(pattern(i), "district-" + i);
+    }
+
+    List<Map<String, String>> pairs = new ArrayList<>();
+    patterns.forEach((key, value) -> pairs.add(Map.of("key", key, "value", value)));
+    samlMapperModel = new IdentityProviderMapperModel();
+    samlMapperModel.setConfig(
+        new LinkedHashMap<>(
+            Map.of(
+                "attribute.name", "email",
+                "patterns", JsonSerialization.writeValueAsString(pairs),
+                "pattern.type", patternType,
+                "user.attribute", "district",
+                "is.multivalue", "false")));
+
+    AttributeType email = new AttributeType("email");
+    email.addAttributeValue(EMAIL);
+    AttributeStatementType statement = new AttributeStatementType();
+    statement.addAttribute(new AttributeStatementType.ASTChoiceType(email));
+    AssertionType assertion =
+        new AssertionType(
+            "assertion", DatatypeFactory.newInstance().newXMLGregorianCalendar());
+    assertion.addStatement(statement);
+    samlContext = new BrokeredIdentityContext("jane.doe", new IdentityProviderModel());
+    samlContext.getContextData().put(SAMLEndpoint.SAML_ASSERTION, assertion);
+
+    // After mapping, the users-by-attribute provider is looked up to reindex the user; it isn't
+    // deployed here, so that is all the reindexing costs.
+    KeycloakSessionFactory sessionFactory = stub(KeycloakSessionFactory.class, null);
+    session = stub(KeycloakSession.class, sessionFactory);
+    realm = stub(RealmModel.class, "realm");
+    // Only the attribute setters and getId are called while mapping.
+    user =
+        (UserModel)
+            Proxy.newProxyInstance(
+                UserModel.class.getClassLoader(),
+                new Class<?>[] {UserModel.class},
+                (proxy, method, args) -> {
+                  if (method.getName().equals("getId")) {
+                    return "user";
+                  }
+                  assigned = args != null && args.length > 1 ? args[1] : null;
+                  return null;
+                });
+  }
+
+  /** Implements an interface whose non-void methods all return {@code value}. */
+  @SuppressWarnings("unchecked")
+  private static <T> T stub(Class<T> type, Object value) {
+    return (T)
+        Proxy.newProxyInstance(
+            type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> value);
+  }
+
+  private String pattern(int district) {
+    switch (patternType) {
+      case "regex":
+        return "^[^@]+@district" + district + "\\.k12\\.example\\.org$";
+      case "glob":
+        return "*@district" + district + ".k12.example.org";
+      default:
+        return "jane.doe@district" + district + ".k12.example.org";
+    }
+  }
+
+  @Benchmark
+  public String globToRegex() {
+    return MapperUtils.globToRegex("**/district*/schools/?/staff.*");
+  }
+
+  @Benchmark
+  public boolean matchesGlob() {
+    return MapperUtils.matchesGlob("*@district23.k12.example.org", EMAIL);
+  }
+
+  /** Matches the claim against every pattern of the map, as the OIDC mapper does per login. */
+  @Benchmark
+  public void oidcValueMatches(Blackhole blackhole) {
+    // The OIDC mapper calls exact matching "plain".
+    String type = patternType.equals("exact") ? "plain" : patternType;
+    for (String pattern : patterns.keySet()) {
+      blackhole.consume(oidcMapper.valueMatches(pattern, EMAIL, type));
+    }
+  }
+
+  /** Maps a SAML assertion end to end, including reading the pattern map from the config. */
+  @Benchmark
+  public Object samlApply() {
+    samlMapper.apply(session, realm, user, samlMapperModel, samlContext);
+    return assigned;
+  }
+}
@@ -0,0 +1,50 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+import org.threatzero.keycloak.plugins.services.models.QueryOrder;
+
+/** Parsing and normalizing the JSON5 filters and orders of admin searches. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryParsingBenchmark {
+  private static final String FILTER =
+      "{and: [{q: {key: 'organization', op: 'in', values: ['acme', 'globex', 'initech']}},"
+          + " {or: [{q: {key: 'email', op: 'ends', value: '@acme.org'}},"
+          + " {q: {key: 'unit', op: 'contains', value: 'north', ignoreCase: true}},],},"
+          + " {groupQ: {groups: ['staff', 'admins'], op: 'any'}},"
+          + " // Trailing commas and comments are JSON5.\n"
+          + " {q: {key: 'enabled', value: 'true'}},]}";
+  private static final String ORDER = "-createdTimestamp,organization,username";
+
+  private final FilterPlanCache uncached = new FilterPlanCache(0, 0);
+  private final FilterPlanCache cached = new FilterPlanCache(1024, 0);
+
+  @Benchmark
+  public QueryFilter parseFilter() throws Exception {
+    return uncached.parse(FILTER);
+  }
+
+  @Benchmark
+  public QueryFilter parseFilterCached() throws Exception {
+    return cached.parse(FILTER);
+  }
+
+  @Benchmark
+  public QueryOrder parseOrder() {
+    return new QueryOrder(ORDER);
+  }
+}
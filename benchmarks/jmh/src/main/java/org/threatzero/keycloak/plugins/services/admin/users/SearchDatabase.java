@@ -0,0 +1,173 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.jboss.logging.Logger;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.jpa.entities.GroupEntity;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.jpa.entities.UserGroupMembershipEntity;
+import org.keycloak.representations.idm.MembershipType;
+
+/**
+ * A database holding Keycloak's user tables, seeded with a deterministic realm of users. The
+ * schema is generated from the JPA entities and given the indexes of Keycloak's changelogs that
+ * searches use. A database that already holds the requested number of users is reused, so a file
+ * or server database is only seeded once across forks and runs.
+ *
+ * <p>The database is H2 in {@code target/} unless {@code benchmark.jdbc.url} (with {@code
+ * benchmark.jdbc.user} and {@code benchmark.jdbc.password}) points elsewhere, e.g. a local
+ * PostgreSQL.
+ */
+class SearchDatabase {
+  private static final Logger logger = Logger.getLogger(SearchDatabase.class);
+
+  static final String REALM_ID = "benchmark";
+  static final int GROUPS = 50;
+  static final int ORGANIZATIONS = 200;
+
+  private static final int BATCH_SIZE = 1000;
+  private static final String[] FIRST_NAMES = {
+    "Jane", "John", "Maria", "Wei", "Aisha", "Carlos", "Olga", "Kenji", "Fatima", "Liam"
+  };
+  private static final String[] LAST_NAMES = {
+    "Smith", "Garcia", "Chen", "Okafor", "Ivanova", "Tanaka", "Haddad", "Murphy", "Silva", "Kim"
+  };
+  private static final String[] TITLES = {
+    "teacher", "principal", "counselor", "nurse", "custodian", "coach", "librarian", "aide",
+    "secretary", "superintendent"
+  };
+
+  /** Keycloak's indexes on the user tables, as its changelogs create them. */
+  private static final List<String> INDEXES =
+      List.of(
+          "CREATE INDEX IF NOT EXISTS IDX_USER_ATTRIBUTE ON USER_ATTRIBUTE (USER_ID)",
+          "CREATE INDEX IF NOT EXISTS IDX_USER_ATTRIBUTE_NAME ON USER_ATTRIBUTE (NAME, VALUE)",
+          "CREATE INDEX IF NOT EXISTS IDX_USER_GROUP_MAPPING ON USER_GROUP_MEMBERSHIP (USER_ID)",
+          "CREATE INDEX IF NOT EXISTS IDX_USER_EMAIL ON USER_ENTITY (EMAIL)",
+          "CREATE INDEX IF NOT EXISTS IDX_USER_SERVICE_ACCOUNT"
+              + " ON USER_ENTITY (REALM_ID, SERVICE_ACCOUNT_CLIENT_LINK)");
+
+  private SearchDatabase() {}
+
+  static SessionFactory open(int users) {
+    Configuration configuration = new Configuration();
+    SearchEntities.CLASSES.forEach(configuration::addAnnotatedClass);
+    configuration
+        // VALUE is a keyword in H2, and a column of USER_ATTRIBUTE.
+        .setProperty(
+            "jakarta.persistence.jdbc.url",
+            System.getProperty(
+                "benchmark.jdbc.url", "jdbc:h2:./target/users-" + users + ";NON_KEYWORDS=VALUE"))
+        .setProperty(
+            "jakarta.persistence.jdbc.user", System.getProperty("benchmark.jdbc.user", "sa"))
+        .setProperty(
+            "jakarta.persistence.jdbc.password", System.getProperty("benchmark.jdbc.password", ""))
+        .setProperty("hibernate.hbm2ddl.auto", "update")
+        // Keycloak's named queries refer to entities that aren't mapped here.
+        .setProperty("hibernate.query.startup_check", "false")
+        .setProperty("hibernate.jdbc.batch_size", String.valueOf(BATCH_SIZE))
+        .setProperty("hibernate.order_inserts", "true");
+
+    SessionFactory factory = configuration.buildSessionFactory();
+    try (StatelessSession session = factory.openStatelessSession()) {
+      Transaction transaction = session.beginTransaction();
+      INDEXES.forEach(sql -> session.createNativeMutationQuery(sql).executeUpdate());
+      transaction.commit();
+    }
+    seed(factory, users);
+    return factory;
+  }
+
+  /** Seeds the realm with {@code users} users, unless it already holds them. */
+  private static void seed(SessionFactory factory, int users) {
+    try (StatelessSession session = factory.openStatelessSession()) {
+      long existing =
+          session
+              .createSelectionQuery(
+                  "select count(u) from UserEntity u where u.realmId = :realm", Long.class)
+              .setParameter("realm", REALM_ID)
+              .getSingleResult();
+      if (existing == users) {
+        return;
+      }
+      if (existing != 0) {
+        throw new IllegalStateException(
+            "The database holds " + existing + " users, expected 0 or " + users);
+      }
+
+      logger.infof("Seeding %d users", users);
+      Random random = new Random(42);
+      Transaction transaction = session.beginTransaction();
+      String[] groupIds = new String[GROUPS];
+      for (int i = 0; i < GROUPS; i++) {
+        GroupEntity group = new GroupEntity();
+        group.setId(id(random));
+        group.setName("group-" + i);
+        group.setRealm(REALM_ID);
+        group.setParentId(GroupEntity.TOP_PARENT_ID);
+        group.setType(GroupModel.Type.REALM.intValue());
+        session.insert(group);
+        groupIds[i] = group.getId();
+      }
+
+      long created = 1_600_000_000_000L;
+      for (int i = 0; i < users; i++) {
+        UserEntity user = new UserEntity();
+        user.setId(id(random));
+        user.setRealmId(REALM_ID);
+        user.setUsername("user" + i);
+        user.setEmail("user" + i + "@org" + (i % ORGANIZATIONS) + ".example.org", false);
+        user.setFirstName(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]);
+        user.setLastName(LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+        user.setEnabled(i % 20 != 0);
+        user.setEmailVerified(i % 3 != 0);
+        user.setCreatedTimestamp(created + i * 1000L);
+        session.insert(user);
+
+        // A skewed organization distribution, like real tenants of very different sizes.
+        int organization = (int) (ORGANIZATIONS * Math.pow(random.nextDouble(), 3));
+        insertAttribute(session, random, user, "organization", "org-" + organization);
+        insertAttribute(session, random, user, "unit", "unit-" + random.nextInt(1000));
+        insertAttribute(session, random, user, "title", TITLES[random.nextInt(TITLES.length)]);
+        insertAttribute(session, random, user, "cuid", Long.toString(random.nextLong(), 36));
+
+        for (int g = random.nextInt(3); g >= 0; g--) {
+          UserGroupMembershipEntity membership = new UserGroupMembershipEntity();
+          membership.setUser(user);
+          membership.setGroupId(groupIds[(i + g * 17) % GROUPS]);
+          membership.setMembershipType(MembershipType.UNMANAGED);
+          session.insert(membership);
+        }
+
+        if ((i + 1) % (BATCH_SIZE * 10) == 0) {
+          transaction.commit();
+          transaction = session.beginTransaction();
+          logger.infof("Seeded %d users", i + 1);
+        }
+      }
+      transaction.commit();
+    }
+  }
+
+  private static void insertAttribute(
+      StatelessSession session, Random random, UserEntity user, String name, String value) {
+    UserAttributeEntity attribute = new UserAttributeEntity();
+    attribute.setId(id(random));
+    attribute.setUser(user);
+    attribute.setName(name);
+    attribute.setValue(value);
+    session.insert(attribute);
+  }
+
+  /** A random but reproducible UUID, like the ids Keycloak generates. */
+  private static String id(Random random) {
+    return new UUID(random.nextLong(), random.nextLong()).toString();
+  }
+}
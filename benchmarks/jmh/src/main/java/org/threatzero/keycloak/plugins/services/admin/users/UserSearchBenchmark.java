@@ -0,0 +1,208 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Root;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.hibernate.SessionFactory;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.credential.PasswordCredentialProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.jpa.entities.GroupEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+import org.threatzero.keycloak.plugins.services.models.QueryOrder;
+
+/**
+ * Times the users-by-attribute query engine against a seeded database (see {@link
+ * SearchDatabase}): a catalog of filters and orders, at several page depths, with each attribute
+ * sort and condition strategy. Pages are built, queried and hydrated the way the search resource
+ * does it; counts are timed separately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class UserSearchBenchmark {
+  /** Representative filters by name, with values that fit the data {@link SearchDatabase} seeds. */
+  static final Map<String, String> FILTERS =
+      Map.of(
+          "all", "",
+          "attributeEq", "{q: {key: 'organization', value: 'org-3'}}",
+          "attributeIn", "{q: {key: 'title', op: 'in', value: ['nurse', 'coach', 'aide']}}",
+          "attributeContains", "{q: {key: 'unit', op: 'contains', value: '42'}}",
+          "usernameStarts", "{q: {key: 'username', op: 'starts', value: 'user12'}}",
+          "groupAny", "{groupQ: {groups: ['group-7', 'group-21'], op: 'any'}}",
+          "mixed",
+              "{and: [{q: {key: 'organization', op: 'in', value: ['org-0', 'org-1']}},"
+                  + " {or: [{q: {key: 'title', value: 'teacher'}},"
+                  + " {q: {key: 'email', op: 'ends', value: '@org0.example.org'}}]},"
+                  + " {q: {key: 'enabled', value: 'true', ignoreCase: false}}]}");
+
+  static final Map<String, String> ORDERS =
+      Map.of(
+          "created", UserQueryBuilder.DEFAULT_ORDER,
+          "username", "username",
+          "attribute", "organization,-createdTimestamp");
+
+  @Param({"100000"})
+  public int users;
+
+  @Param({"all", "attributeEq", "attributeIn", "attributeContains", "usernameStarts", "groupAny",
+      "mixed"})
+  public String filter;
+
+  @Param({"created", "attribute"})
+  public String order;
+
+  @Param({"0", "10000"})
+  public int offset;
+
+  @Param({"aggregate", "subquery"})
+  public String sortStrategy;
+
+  @Param({"join", "exists"})
+  public String conditionStrategy;
+
+  @Param({"50"})
+  public int limit;
+
+  private SessionFactory factory;
+  private UserQueryBuilder queryBuilder;
+  private QueryFilter queryFilter;
+  private QueryOrder queryOrder;
+  private KeycloakSession session;
+  private RealmModel realm;
+  private BoundedCache<String, String> groupPaths;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    factory = SearchDatabase.open(users);
+    queryBuilder =
+        new UserQueryBuilder(
+            SearchDatabase.REALM_ID,
+            UserQueryBuilder.SortStrategy.fromString(sortStrategy),
+            UserQueryBuilder.ConditionStrategy.fromString(conditionStrategy),
+            SearchIndexes.NONE);
+    String json = FILTERS.get(filter);
+    queryFilter = json.isEmpty() ? null : new FilterPlanCache(0, 0).parse(json);
+    queryOrder = new QueryOrder(ORDERS.get(order));
+
+    // Hydration only needs the realm's id and the credential providers, of which a stock server
+    // has Keycloak's password provider. Group paths come from a warm cache as they would on a busy
+    // node.
+    realm = stub(RealmModel.class, Map.of("getId", () -> SearchDatabase.REALM_ID));
+    PasswordCredentialProviderFactory passwords = new PasswordCredentialProviderFactory();
+    CredentialProvider<?> passwordProvider = passwords.create(null);
+    KeycloakSessionFactory sessionFactory =
+        stub(
+            KeycloakSessionFactory.class,
+            Map.of("getProviderFactoriesStream", () -> Stream.of(passwords)));
+    session =
+        stub(
+            KeycloakSession.class,
+            Map.of(
+                "getKeycloakSessionFactory", () -> sessionFactory,
+                "getProvider", () -> passwordProvider));
+    groupPaths = new BoundedCache<>(SearchDatabase.GROUPS, 0);
+    EntityManager em = factory.createEntityManager();
+    try {
+      for (GroupEntity group :
+          em.createQuery("select g from GroupEntity g", GroupEntity.class).getResultList()) {
+        groupPaths.put(
+            UserHydrator.groupPathKey(SearchDatabase.REALM_ID, group.getId()),
+            "/" + group.getName());
+      }
+    } finally {
+      em.close();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    factory.close();
+  }
+
+  @Benchmark
+  public List<UserRepresentation> page() {
+    EntityManager em = factory.createEntityManager();
+    try {
+      CriteriaBuilder cb = em.getCriteriaBuilder();
+      QueryParameters params = new QueryParameters();
+      CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+      Root<UserEntity> root = qb.from(UserEntity.class);
+      qb.select(cb.tuple(root))
+          .where(queryBuilder.buildPredicate(qb, cb, root, queryFilter, params));
+      queryBuilder.applyOrder(qb, cb, root, queryOrder, params);
+      qb.distinct(UserQueryBuilder.needsDistinct(root));
+
+      List<UserEntity> rows =
+          params
+              .bind(em.createQuery(qb), QueryValues.of(queryFilter))
+              .setFirstResult(offset)
+              .setMaxResults(limit)
+              .getResultList()
+              .stream()
+              .map(t -> t.get(0, UserEntity.class))
+              .toList();
+      return new UserHydrator(session, realm, em, groupPaths).toRepresentations(rows);
+    } finally {
+      em.close();
+    }
+  }
+
+  @Benchmark
+  public long count() {
+    EntityManager em = factory.createEntityManager();
+    try {
+      CriteriaBuilder cb = em.getCriteriaBuilder();
+      QueryParameters params = new QueryParameters();
+      CriteriaQuery<Long> qb = cb.createQuery(Long.class);
+      Root<UserEntity> root = qb.from(UserEntity.class);
+      qb.where(queryBuilder.buildPredicate(qb, cb, root, queryFilter, params));
+      qb.select(
+          UserQueryBuilder.needsDistinct(root) ? cb.countDistinct(root.get("id")) : cb.count(root));
+      return params.bind(em.createQuery(qb), QueryValues.of(queryFilter)).getSingleResult();
+    } finally {
+      em.close();
+    }
+  }
+
+  /** Implements an interface with return values by method name, null for other methods. */
+  @SuppressWarnings("unchecked")
+  private static <T> T stub(Class<T> type, Map<String, Supplier<?>> returns) {
+    return (T)
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> {
+              Supplier<?> value = returns.get(method.getName());
+              return value != null ? value.get() : null;
+            });
+  }
+}
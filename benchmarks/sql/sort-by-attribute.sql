@@ -0,0 +1,87 @@
+-- Compares the two attribute sort strategies of the users-by-attribute resource on PostgreSQL.
+--
+-- Run against a scratch Keycloak database (the schema must exist):
+--
+--   psql -d keycloak -v users=200000 -f benchmarks/sql/sort-by-attribute.sql
+--
+-- Everything runs in one transaction that is rolled back, so the seeded rows are not kept.
+
+\set ON_ERROR_STOP on
+\if :{?users}
+\else
+  \set users 200000
+\endif
+
+BEGIN;
+
+-- Seed a realm with :users users, each with an "org" and a "unit" attribute and, for every third
+-- user, a second "unit" value so that the sort keys are multi-valued.
+INSERT INTO user_entity (id, realm_id, username, email, email_verified, enabled, created_timestamp,
+                         not_before)
+SELECT 'bench-' || lpad(i::text, 12, '0'), 'bench-realm', 'user' || i,
+       'user' || i || '@example.com', true, true, 1700000000000 + i, 0
+FROM generate_series(1, :users) AS i;
+
+INSERT INTO user_attribute (id, user_id, name, value)
+SELECT md5('org' || i), 'bench-' || lpad(i::text, 12, '0'), 'org', 'org-' || (i % 50)
+FROM generate_series(1, :users) AS i;
+
+INSERT INTO user_attribute (id, user_id, name, value)
+SELECT md5('unit' || i), 'bench-' || lpad(i::text, 12, '0'), 'unit', 'unit-' || (i % 997)
+FROM generate_series(1, :users) AS i;
+
+INSERT INTO user_attribute (id, user_id, name, value)
+SELECT md5('unit2' || i), 'bench-' || lpad(i::text, 12, '0'), 'unit', 'unit-' || (i % 89)
+FROM generate_series(1, :users, 3) AS i;
+
+ANALYZE user_entity;
+ANALYZE user_attribute;
+
+-- Strategy "aggregate": order=unit,-createdTimestamp filtered on org, as compiled today.
+EXPLAIN (ANALYZE, BUFFERS, TIMING)
+SELECT DISTINCT u.*, min(a1.value) AS attribute_order_0
+FROM user_entity u
+JOIN user_attribute f1 ON f1.user_id = u.id
+LEFT JOIN user_attribute a1 ON a1.user_id = u.id AND a1.name = 'unit'
+WHERE u.realm_id = 'bench-realm'
+  AND u.service_account_client_link IS NULL
+  AND f1.name = 'org' AND lower(f1.value) = 'org-7'
+GROUP BY u.id
+ORDER BY attribute_order_0 ASC, u.created_timestamp DESC
+LIMIT 100;
+
+-- Strategy "subquery": one correlated scalar subquery per sort key, no GROUP BY.
+EXPLAIN (ANALYZE, BUFFERS, TIMING)
+SELECT DISTINCT u.*,
+       (SELECT min(a1.value) FROM user_attribute a1
+        WHERE a1.user_id = u.id AND a1.name = 'unit') AS attribute_order_0
+FROM user_entity u
+JOIN user_attribute f1 ON f1.user_id = u.id
+WHERE u.realm_id = 'bench-realm'
+  AND u.service_account_client_link IS NULL
+  AND f1.name = 'org' AND lower(f1.value) = 'org-7'
+ORDER BY attribute_order_0 ASC, u.created_timestamp DESC
+LIMIT 100;
+
+-- Unfiltered: every user of the realm is a candidate, the worst case for grouping.
+EXPLAIN (ANALYZE, BUFFERS, TIMING)
+SELECT DISTINCT u.*, max(a1.value) AS attribute_order_0
+FROM user_entity u
+LEFT JOIN user_attribute a1 ON a1.user_id = u.id AND a1.name = 'unit'
+WHERE u.realm_id = 'bench-realm'
+  AND u.service_account_client_link IS NULL
+GROUP BY u.id
+ORDER BY attribute_order_0 DESC
+LIMIT 100;
+
+EXPLAIN (ANALYZE, BUFFERS, TIMING)
+SELECT DISTINCT u.*,
+       (SELECT max(a1.value) FROM user_attribute a1
+        WHERE a1.user_id = u.id AND a1.name = 'unit') AS attribute_order_0
+FROM user_entity u
+WHERE u.realm_id = 'bench-realm'
+  AND u.service_account_client_link IS NULL
+ORDER BY attribute_order_0 DESC
+LIMIT 100;
+
+ROLLBACK;
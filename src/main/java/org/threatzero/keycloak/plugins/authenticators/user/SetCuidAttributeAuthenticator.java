@@ -7,6 +7,7 @@ import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.threatzero.keycloak.plugins.services.admin.users.UserIndexEventListenerProvider;
 
 public class SetCuidAttributeAuthenticator implements Authenticator {
   @Override
@@ -32,6 +33,8 @@ public class SetCuidAttributeAuthenticator implements Authenticator {
       if (overwriteOnLogin || cuid == null || cuid.isEmpty()) {
         cuid = CUID.randomCUID2().toString(); // Generate a new CUID
         user.setSingleAttribute(attributeName, cuid);
+        UserIndexEventListenerProvider.userChanged(
+            context.getSession(), context.getRealm().getId(), user.getId());
       }
     }
 
@@ -19,6 +19,7 @@ import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.threatzero.keycloak.plugins.services.admin.users.UserIndexEventListenerProvider;
 
 public class OidcAdvancedAttributeMapper extends AbstractClaimMapper {
   private static final String ID = "oidc-advanced-attribute-idp-mapper";
@@ -223,6 +224,7 @@ public class OidcAdvancedAttributeMapper extends AbstractClaimMapper {
       } else if (!cleanedAttributeValues.isEmpty()) {
         user.setSingleAttribute(attributeName, cleanedAttributeValues.get(0));
       }
+      UserIndexEventListenerProvider.userChanged(session, realm.getId(), user.getId());
     }
   }
 }
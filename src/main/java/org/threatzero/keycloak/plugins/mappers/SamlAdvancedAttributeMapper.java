@@ -22,6 +22,7 @@ import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.threatzero.keycloak.plugins.services.admin.users.UserIndexEventListenerProvider;
 
 public class SamlAdvancedAttributeMapper extends AbstractIdentityProviderMapper {
   private static final String ID = "saml-advanced-attribute-idp-mapper";
@@ -247,6 +248,7 @@ public class SamlAdvancedAttributeMapper extends AbstractIdentityProviderMapper
       } else if (!cleanedAttributeValues.isEmpty()) {
         user.setSingleAttribute(attributeName, cleanedAttributeValues.get(0));
       }
+      UserIndexEventListenerProvider.userChanged(session, realm.getId(), user.getId());
     }
   }
 }
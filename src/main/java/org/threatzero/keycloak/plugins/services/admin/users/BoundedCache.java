@@ -0,0 +1,111 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * A small, thread-safe LRU cache with an optional time-to-live. Entries beyond {@code maxEntries}
+ * are evicted least recently used first, and entries older than the TTL are treated as absent.
+ */
+public class BoundedCache<K, V> {
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final LongSupplier clock;
+  private final LinkedHashMap<K, Entry<V>> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxEntries maximum number of entries to keep
+   * @param ttlMillis how long an entry stays valid, or 0 to keep entries until evicted
+   */
+  public BoundedCache(int maxEntries, long ttlMillis) {
+    this(maxEntries, ttlMillis, System::currentTimeMillis);
+  }
+
+  BoundedCache(int maxEntries, long ttlMillis, LongSupplier clock) {
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.clock = clock;
+    this.entries =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            return size() > BoundedCache.this.maxEntries;
+          }
+        };
+  }
+
+  public synchronized V get(K key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null || isExpired(entry)) {
+      if (entry != null) {
+        entries.remove(key);
+      }
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.value;
+  }
+
+  /**
+   * Returns the cached value for the key, loading and caching it on a miss. The loader runs
+   * outside the lock, so concurrent misses for the same key may each load it.
+   */
+  public V computeIfAbsent(K key, Function<? super K, ? extends V> loader) {
+    V value = get(key);
+    if (value == null) {
+      value = loader.apply(key);
+      if (value != null) {
+        put(key, value);
+      }
+    }
+    return value;
+  }
+
+  public synchronized void put(K key, V value) {
+    if (maxEntries > 0) {
+      entries.put(key, new Entry<>(value, clock.getAsLong()));
+    }
+  }
+
+  public synchronized void invalidate(K key) {
+    entries.remove(key);
+  }
+
+  public synchronized void invalidateIf(Predicate<? super K> predicate) {
+    entries.keySet().removeIf(predicate);
+  }
+
+  public synchronized void invalidateAll() {
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private boolean isExpired(Entry<V> entry) {
+    return ttlMillis > 0 && clock.getAsLong() - entry.createdAt >= ttlMillis;
+  }
+
+  private record Entry<V>(V value, long createdAt) {}
+}
@@ -0,0 +1,45 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.List;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Expression;
+
+/**
+ * A query template built once per filter shape: the Criteria query with a parameter for every
+ * filter value, and the keyset sort expressions selected by page queries. Templates are shared
+ * between requests and must not be modified after they are built.
+ */
+public class CompiledQuery<T> {
+  private final CriteriaQuery<T> criteria;
+  private final QueryParameters parameters;
+  private final List<Expression<?>> keysetExpressions;
+
+  public CompiledQuery(CriteriaQuery<T> criteria, QueryParameters parameters) {
+    this(criteria, parameters, List.of());
+  }
+
+  public CompiledQuery(
+      CriteriaQuery<T> criteria,
+      QueryParameters parameters,
+      List<Expression<?>> keysetExpressions) {
+    this.criteria = criteria;
+    this.parameters = parameters;
+    this.keysetExpressions = keysetExpressions;
+  }
+
+  /**
+   * Creates an executable query from the template with the request's values bound.
+   *
+   * @throws IllegalArgumentException if the values don't fit the template
+   */
+  public TypedQuery<T> createQuery(EntityManager em, QueryValues values) {
+    return parameters.bind(em.createQuery(criteria), values);
+  }
+
+  public List<Expression<?>> getKeysetExpressions() {
+    return keysetExpressions;
+  }
+}
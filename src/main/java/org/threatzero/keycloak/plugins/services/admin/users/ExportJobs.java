@@ -0,0 +1,465 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.util.JsonSerialization;
+import org.threatzero.keycloak.plugins.services.models.ExportJob;
+
+/**
+ * Runs exports in the background and keeps their gzip compressed files in a local directory, next
+ * to a JSON file with each job's status. On POSIX file systems the directory and its files are
+ * only accessible to the server's user. At most {@code maxRunning} exports run at once on a node;
+ * others wait in line, up to {@code maxQueuedPerRealm} unfinished jobs per realm. Finished jobs are
+ * deleted with their files once {@code retentionMillis} have passed. Jobs are local to the node
+ * that runs them, and survive a restart only if they had finished: a job still running when the
+ * node stopped is marked failed.
+ */
+public class ExportJobs {
+  private static final Logger logger = Logger.getLogger(ExportJobs.class);
+
+  private static final String METADATA_SUFFIX = ".json";
+  private static final String PARTIAL_SUFFIX = ".part";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final Set<PosixFilePermission> DIRECTORY_PERMISSIONS =
+      PosixFilePermissions.fromString("rwx------");
+  private static final Set<PosixFilePermission> FILE_PERMISSIONS =
+      PosixFilePermissions.fromString("rw-------");
+
+  private final Path directory;
+  private final boolean posix;
+  private final long retentionMillis;
+  private final int maxQueuedPerRealm;
+  private volatile boolean closed;
+  private final Map<String, ExportJob> jobs = new ConcurrentHashMap<>();
+  private final Map<String, Future<?>> futures = new ConcurrentHashMap<>();
+  private final ExecutorService executor;
+  private final ScheduledExecutorService cleaner =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "users-by-attribute-export-cleaner");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  public ExportJobs(Path directory, int maxRunning, int maxQueuedPerRealm, long retentionMillis) {
+    this.directory = directory;
+    this.posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+    this.retentionMillis = retentionMillis;
+    this.maxQueuedPerRealm = Math.max(1, maxQueuedPerRealm);
+    this.executor =
+        Executors.newFixedThreadPool(
+            Math.max(1, maxRunning),
+            r -> {
+              Thread thread = new Thread(r, "users-by-attribute-export");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** Writes the users of one job, reporting its progress. */
+  @FunctionalInterface
+  public interface Exporter {
+    void export(UserExportWriter writer, Progress progress) throws IOException;
+  }
+
+  /** The progress of a running job, as reported by its exporter. */
+  public class Progress {
+    private final ExportJob job;
+
+    private Progress(ExportJob job) {
+      this.job = job;
+    }
+
+    public void setTotal(long total) {
+      update(job, j -> j.setTotal(total));
+    }
+
+    public void addExported(long count) {
+      update(job, j -> j.setExported(j.getExported() + count));
+    }
+
+    /**
+     * @throws CancellationException if the job was cancelled
+     */
+    public void checkCancelled() {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new CancellationException("export cancelled");
+      }
+    }
+  }
+
+  /**
+   * Loads the jobs of earlier runs from the directory and schedules the removal of expired ones.
+   */
+  public void start() {
+    try {
+      if (posix) {
+        Files.createDirectories(
+            directory, PosixFilePermissions.asFileAttribute(DIRECTORY_PERMISSIONS));
+        // The directory may already have existed, with broader permissions.
+        Files.setPosixFilePermissions(directory, DIRECTORY_PERMISSIONS);
+      } else {
+        Files.createDirectories(directory);
+      }
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+        for (Path file : files) {
+          String name = file.getFileName().toString();
+          if (name.endsWith(PARTIAL_SUFFIX)) {
+            Files.deleteIfExists(file);
+          } else if (name.endsWith(METADATA_SUFFIX)) {
+            load(file);
+          }
+        }
+      }
+    } catch (IOException e) {
+      logger.warnf(e, "Failed to read the export directory %s", directory);
+    }
+    // Check for expired jobs a tenth as often as they expire, between once a minute and an hour.
+    long interval =
+        Math.max(
+            TimeUnit.MINUTES.toMillis(1),
+            Math.min(retentionMillis / 10, TimeUnit.HOURS.toMillis(1)));
+    cleaner.scheduleWithFixedDelay(this::removeExpired, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  private void load(Path metadata) {
+    try {
+      ExportJob job = JsonSerialization.readValue(Files.readAllBytes(metadata), ExportJob.class);
+      jobs.put(job.getId(), job);
+      if (!job.getStatus().isFinished()) {
+        finish(job, ExportJob.Status.FAILED, "interrupted by a restart");
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.warnf(e, "Ignoring unreadable export job %s", metadata);
+    }
+  }
+
+  /**
+   * Queues an export and returns its job right away.
+   *
+   * @throws RejectedExecutionException if the realm already has as many unfinished jobs as
+   *     allowed, or the node is shutting down
+   */
+  public ExportJob submit(
+      String realmId, UserExportWriter.Format format, List<String> attributes, Exporter exporter) {
+    ExportJob job = new ExportJob();
+    job.setId(KeycloakModelUtils.generateId());
+    job.setRealmId(realmId);
+    job.setStatus(ExportJob.Status.QUEUED);
+    job.setFormat(format.toString().toLowerCase());
+    job.setAttributes(attributes);
+    job.setCreatedTimestamp(System.currentTimeMillis());
+    synchronized (this) {
+      if (closed) {
+        throw new RejectedExecutionException("The server is shutting down");
+      }
+      long unfinished =
+          jobs.values().stream()
+              .filter(j -> j.getRealmId().equals(realmId) && !isFinished(j))
+              .count();
+      if (unfinished >= maxQueuedPerRealm) {
+        throw new RejectedExecutionException(
+            "The realm already has " + unfinished + " export jobs queued or running");
+      }
+      jobs.put(job.getId(), job);
+    }
+    writeMetadata(job);
+    FutureTask<Void> task = new FutureTask<>(() -> run(job, format, attributes, exporter), null);
+    futures.put(job.getId(), task);
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      futures.remove(job.getId());
+      remove(job);
+      throw e;
+    }
+    return snapshot(job);
+  }
+
+  private void run(
+      ExportJob job,
+      UserExportWriter.Format format,
+      List<String> attributes,
+      Exporter exporter) {
+    Path partial = directory.resolve(job.getId() + PARTIAL_SUFFIX);
+    try {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new CancellationException("export cancelled");
+      }
+      update(
+          job,
+          j -> {
+            j.setStatus(ExportJob.Status.RUNNING);
+            j.setStartedTimestamp(System.currentTimeMillis());
+          });
+      writeMetadata(job);
+
+      // The final file keeps the partial file's permissions when moved.
+      try (OutputStream out = new GZIPOutputStream(newOutputStream(partial), BUFFER_SIZE)) {
+        UserExportWriter writer = UserExportWriter.create(format, out, attributes);
+        exporter.export(writer, new Progress(job));
+        writer.finish();
+      }
+      Path file = file(job);
+      Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+      long size = Files.size(file);
+      update(job, j -> j.setSize(size));
+      finish(job, ExportJob.Status.COMPLETED, null);
+    } catch (CancellationException | ClosedByInterruptException | InterruptedIOException e) {
+      if (closed) {
+        finish(job, ExportJob.Status.FAILED, "interrupted by a shutdown");
+      } else {
+        finish(job, ExportJob.Status.CANCELLED, null);
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.warnf(e, "Export job %s failed", job.getId());
+      finish(job, ExportJob.Status.FAILED, e.getMessage());
+    } finally {
+      futures.remove(job.getId());
+      deleteQuietly(partial);
+    }
+  }
+
+  private void finish(ExportJob job, ExportJob.Status status, String error) {
+    long now = System.currentTimeMillis();
+    update(
+        job,
+        j -> {
+          j.setStatus(status);
+          j.setError(error);
+          j.setFinishedTimestamp(now);
+          j.setExpiresTimestamp(now + retentionMillis);
+        });
+    writeMetadata(job);
+  }
+
+  /** Returns a copy of the realm's job, or null if there is none. */
+  public ExportJob get(String realmId, String id) {
+    ExportJob job = jobs.get(id);
+    return job != null && job.getRealmId().equals(realmId) ? snapshot(job) : null;
+  }
+
+  /** Returns copies of the realm's jobs, newest first. */
+  public List<ExportJob> list(String realmId) {
+    return jobs.values().stream()
+        .filter(j -> j.getRealmId().equals(realmId))
+        .map(ExportJobs::snapshot)
+        .sorted(Comparator.comparingLong(ExportJob::getCreatedTimestamp).reversed())
+        .toList();
+  }
+
+  /**
+   * Copies {@code length} bytes of the file of a completed job of the realm, starting at {@code
+   * position}, to the stream.
+   *
+   * @throws NoSuchFileException if there is no such file, e.g. because the job was deleted
+   */
+  public void copyFile(String realmId, String id, long position, long length, OutputStream output)
+      throws IOException {
+    ExportJob job = get(realmId, id);
+    if (job == null || job.getStatus() != ExportJob.Status.COMPLETED) {
+      throw new NoSuchFileException(id);
+    }
+    try (FileChannel channel = FileChannel.open(file(job), StandardOpenOption.READ)) {
+      WritableByteChannel target = Channels.newChannel(output);
+      long copied = 0;
+      while (copied < length) {
+        long n = channel.transferTo(position + copied, length - copied, target);
+        if (n <= 0) {
+          break;
+        }
+        copied += n;
+      }
+    }
+  }
+
+  /**
+   * Cancels the realm's job if it hasn't finished, and deletes it with its file.
+   *
+   * @return whether there was such a job
+   */
+  public boolean delete(String realmId, String id) {
+    ExportJob job = jobs.get(id);
+    if (job == null || !job.getRealmId().equals(realmId)) {
+      return false;
+    }
+    Future<?> future = futures.get(id);
+    if (future != null) {
+      future.cancel(true);
+    }
+    remove(job);
+    return true;
+  }
+
+  /**
+   * Stops the removal of expired jobs, and the running jobs, which are marked failed. Queued jobs
+   * are marked failed on the next start.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    cleaner.shutdownNow();
+    executor.shutdownNow();
+    try {
+      // Give the interrupted jobs a moment to save their status.
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void removeExpired() {
+    long now = System.currentTimeMillis();
+    for (ExportJob job : jobs.values()) {
+      Long expires = snapshot(job).getExpiresTimestamp();
+      if (expires != null && expires <= now) {
+        remove(job);
+      }
+    }
+  }
+
+  private void remove(ExportJob job) {
+    jobs.remove(job.getId());
+    deleteQuietly(file(job));
+    deleteQuietly(directory.resolve(job.getId() + METADATA_SUFFIX));
+  }
+
+  private Path file(ExportJob job) {
+    return directory.resolve(job.getId() + "." + job.getFormat() + ".gz");
+  }
+
+  private static boolean isFinished(ExportJob job) {
+    synchronized (job) {
+      return job.getStatus().isFinished();
+    }
+  }
+
+  private static void update(ExportJob job, Consumer<ExportJob> change) {
+    synchronized (job) {
+      change.accept(job);
+    }
+  }
+
+  private static ExportJob snapshot(ExportJob job) {
+    synchronized (job) {
+      try {
+        return JsonSerialization.readValue(
+            JsonSerialization.writeValueAsBytes(job), ExportJob.class);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private void writeMetadata(ExportJob job) {
+    // A job deleted meanwhile must not come back on the next start.
+    if (!jobs.containsKey(job.getId())) {
+      return;
+    }
+    try (OutputStream out = newOutputStream(directory.resolve(job.getId() + METADATA_SUFFIX))) {
+      out.write(JsonSerialization.writeValueAsBytes(snapshot(job)));
+    } catch (IOException e) {
+      logger.warnf(e, "Failed to save the status of export job %s", job.getId());
+    }
+  }
+
+  /**
+   * Opens a file for writing, replacing its content. A new file is only readable by its owner on
+   * POSIX file systems.
+   */
+  private OutputStream newOutputStream(Path file) throws IOException {
+    FileAttribute<?>[] attributes =
+        posix
+            ? new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(FILE_PERMISSIONS)}
+            : new FileAttribute<?>[0];
+    return Channels.newOutputStream(
+        Files.newByteChannel(
+            file,
+            Set.of(
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING),
+            attributes));
+  }
+
+  private static void deleteQuietly(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.debugf(e, "Failed to delete %s", file);
+    }
+  }
+
+  /**
+   * Parses a single {@code bytes} range of a {@code Range} header into its first and last byte.
+   * Returns null when the whole file should be sent: without a header, or with one this doesn't
+   * support, like several ranges.
+   *
+   * @throws IllegalArgumentException if the range lies outside the file
+   */
+  static long[] parseRange(String header, long size) {
+    if (header == null || !header.startsWith("bytes=") || header.contains(",")) {
+      return null;
+    }
+    String range = header.substring("bytes=".length()).trim();
+    int dash = range.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    long first;
+    long last;
+    try {
+      if (dash == 0) {
+        // The last n bytes.
+        long suffix = Long.parseLong(range.substring(1));
+        first = Math.max(0, size - suffix);
+        last = suffix > 0 ? size - 1 : -1;
+      } else {
+        first = Long.parseLong(range.substring(0, dash));
+        last =
+            dash == range.length() - 1
+                ? size - 1
+                : Math.min(Long.parseLong(range.substring(dash + 1)), size - 1);
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (first < 0 || first >= size || last < first) {
+      throw new IllegalArgumentException("range not satisfiable");
+    }
+    return new long[] {first, last};
+  }
+}
@@ -0,0 +1,227 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+import org.threatzero.keycloak.plugins.services.models.ValueType;
+
+/**
+ * Rewrites {@link QueryFilter} trees into an equivalent, canonical form before they are compiled:
+ *
+ * <ul>
+ *   <li>nested {@code AND}/{@code OR} nodes are flattened and single-child nodes unwrapped,
+ *   <li>{@code EQ}/{@code IN} conditions on the same key are merged into one {@code IN}, as a
+ *       union under {@code OR} and, for single-valued core columns, an intersection under {@code
+ *       AND},
+ *   <li>duplicate clauses are dropped and the remaining ones sorted,
+ *   <li>always-true and always-false branches are short-circuited.
+ * </ul>
+ *
+ * <p>A filter that always matches normalizes to null, and one that never matches to an empty
+ * {@code OR} (see {@link #isFalse}). Equivalent filters normalize to equal trees, so the
+ * normalized form can be used as a cache key.
+ */
+public class FilterNormalizer {
+  private FilterNormalizer() {}
+
+  /** Returns the normalized filter, or null if the filter matches every user. */
+  public static QueryFilter normalize(QueryFilter filter) {
+    if (filter == null) {
+      return null;
+    }
+    QueryFilter normalized = visit(filter);
+    return isTrue(normalized) ? null : normalized;
+  }
+
+  /** Returns whether the (normalized) filter can never match, i.e. is an empty {@code OR}. */
+  public static boolean isFalse(QueryFilter filter) {
+    return filter != null && filter.getOr().map(List::isEmpty).orElse(false);
+  }
+
+  private static boolean isTrue(QueryFilter filter) {
+    return filter.getQ().isEmpty()
+        && filter.getGroupQ().isEmpty()
+        && filter.getAnd().isEmpty()
+        && filter.getOr().isEmpty();
+  }
+
+  // Must follow the same precedence as UserQueryBuilder.getPredicate.
+  private static QueryFilter visit(QueryFilter filter) {
+    if (filter.getQ().isPresent()) {
+      return leaf(canonical(filter.getQ().get()));
+    } else if (filter.getGroupQ().isPresent()) {
+      QueryFilter copy = new QueryFilter();
+      copy.setGroupQ(filter.getGroupQ().get());
+      return copy;
+    } else if (filter.getAnd().isPresent()) {
+      return combine(true, filter.getAnd().get().stream().map(FilterNormalizer::visit).toList());
+    } else if (filter.getOr().isPresent()) {
+      return combine(false, filter.getOr().get().stream().map(FilterNormalizer::visit).toList());
+    }
+    return new QueryFilter();
+  }
+
+  private static QueryFilter combine(boolean and, List<QueryFilter> children) {
+    List<QueryFilter> flat = new ArrayList<>();
+    for (QueryFilter child : children) {
+      // TRUE is the identity of AND and absorbs OR; FALSE is the identity of OR and absorbs AND.
+      if (and ? isTrue(child) : isFalse(child)) {
+        continue;
+      }
+      if (and ? isFalse(child) : isTrue(child)) {
+        return child;
+      }
+      flat.addAll((and ? child.getAnd() : child.getOr()).orElse(List.of(child)));
+    }
+
+    List<QueryFilter> merged = mergeConditions(and, flat);
+    if (merged == null) {
+      return falseFilter();
+    }
+
+    List<QueryFilter> clauses =
+        new LinkedHashSet<>(merged).stream()
+            .sorted(Comparator.comparing(QueryFilter::toString))
+            .toList();
+    if (clauses.isEmpty()) {
+      return and ? new QueryFilter() : falseFilter();
+    }
+    if (clauses.size() == 1) {
+      return clauses.get(0);
+    }
+
+    QueryFilter node = new QueryFilter();
+    if (and) {
+      node.setAnd(clauses);
+    } else {
+      node.setOr(clauses);
+    }
+    return node;
+  }
+
+  /**
+   * Merges the positive {@code EQ}/{@code IN} conditions of the clauses that share a key and case
+   * sensitivity. Returns null if the clauses are contradictory.
+   */
+  private static List<QueryFilter> mergeConditions(boolean and, List<QueryFilter> clauses) {
+    Map<String, Set<String>> values = new LinkedHashMap<>();
+    Map<String, QueryFilter.Condition> first = new LinkedHashMap<>();
+    List<QueryFilter> result = new ArrayList<>();
+
+    for (QueryFilter clause : clauses) {
+      QueryFilter.Condition condition = clause.getQ().orElse(null);
+      if (condition == null
+          || !isMergeable(condition)
+          || (and && UserQueryBuilder.isAttributeName(condition.getKey()))) {
+        // Attributes can have several values, so a user can match several EQs on the same key.
+        result.add(clause);
+        continue;
+      }
+
+      String mergeKey =
+          condition.getKey()
+              + "|"
+              + condition.isIgnoreCase().orElse(true)
+              + "|"
+              + condition.getType().orElse(ValueType.STRING);
+      Set<String> conditionValues = foldedValues(condition);
+      Set<String> existing = values.get(mergeKey);
+      if (existing == null) {
+        values.put(mergeKey, conditionValues);
+        first.put(mergeKey, condition);
+      } else if (and) {
+        existing.retainAll(conditionValues);
+        if (existing.isEmpty()) {
+          return null;
+        }
+      } else {
+        existing.addAll(conditionValues);
+      }
+    }
+
+    values.forEach((k, merged) -> result.add(leaf(withValues(first.get(k), merged))));
+    return result;
+  }
+
+  private static boolean isMergeable(QueryFilter.Condition condition) {
+    QueryFilter.Condition.Operator operator =
+        condition.getOp().orElse(QueryFilter.Condition.Operator.EQ);
+    return !condition.isNot().orElse(false)
+        && (operator == QueryFilter.Condition.Operator.EQ
+            || operator == QueryFilter.Condition.Operator.IN);
+  }
+
+  /** Returns the values an EQ/IN condition compares against, folded to lower case if needed. */
+  private static Set<String> foldedValues(QueryFilter.Condition condition) {
+    List<String> conditionValues = condition.getValues();
+    if (condition.getOp().orElse(null) != QueryFilter.Condition.Operator.IN) {
+      conditionValues = conditionValues.subList(0, 1);
+    }
+    boolean ignoreCase = isIgnoreCase(condition);
+    Set<String> folded = new LinkedHashSet<>();
+    conditionValues.forEach(v -> folded.add(ignoreCase ? v.toLowerCase() : v));
+    return folded;
+  }
+
+  private static QueryFilter.Condition withValues(
+      QueryFilter.Condition condition, Set<String> values) {
+    QueryFilter.Condition merged = new QueryFilter.Condition();
+    merged.setKey(condition.getKey());
+    merged.setOp(
+        values.size() > 1 ? QueryFilter.Condition.Operator.IN : QueryFilter.Condition.Operator.EQ);
+    merged.setValues(values.stream().sorted().toList());
+    merged.setIgnoreCase(isIgnoreCase(condition) ? null : false);
+    merged.setType(typeOf(condition));
+    return merged;
+  }
+
+  /** Spells out defaults so that equivalent conditions are equal. */
+  private static QueryFilter.Condition canonical(QueryFilter.Condition condition) {
+    QueryFilter.Condition.Operator operator =
+        condition.getOp().orElse(QueryFilter.Condition.Operator.EQ);
+    if (isMergeable(condition)) {
+      return withValues(condition, foldedValues(condition));
+    }
+
+    QueryFilter.Condition copy = new QueryFilter.Condition();
+    copy.setKey(condition.getKey());
+    copy.setOp(operator);
+    copy.setNot(condition.isNot().orElse(false) ? true : null);
+    copy.setIgnoreCase(isIgnoreCase(condition) ? null : false);
+    copy.setType(typeOf(condition));
+    if (operator == QueryFilter.Condition.Operator.IN) {
+      copy.setValues(new LinkedHashSet<>(condition.getValues()).stream().sorted().toList());
+    } else {
+      copy.setValues(condition.getValues().subList(0, 1));
+    }
+    return copy;
+  }
+
+  /** Typed values are compared as numbers or dates, so case never applies to them. */
+  private static boolean isIgnoreCase(QueryFilter.Condition condition) {
+    return typeOf(condition) == null && condition.isIgnoreCase().orElse(true);
+  }
+
+  private static ValueType typeOf(QueryFilter.Condition condition) {
+    ValueType type = condition.getType().orElse(ValueType.STRING);
+    return type == ValueType.STRING ? null : type;
+  }
+
+  private static QueryFilter leaf(QueryFilter.Condition condition) {
+    QueryFilter filter = new QueryFilter();
+    filter.setQ(condition);
+    return filter;
+  }
+
+  private static QueryFilter falseFilter() {
+    QueryFilter filter = new QueryFilter();
+    filter.setOr(List.of());
+    return filter;
+  }
+}
@@ -0,0 +1,91 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.json.JsonReadFeature;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+/**
+ * Caches the work of turning a filter into a query: parsed filters by their JSON5 text, and
+ * compiled query templates by realm and filter shape. Templates only hold parameters for filter
+ * values, so every request with the same shape reuses one template and binds its own values.
+ */
+public class FilterPlanCache {
+  private static final JsonMapper MAPPER =
+      JsonMapper.builder()
+          .findAndAddModules()
+          // BEGIN Enable features for compatibility with JSON5.
+          .enable(JsonReadFeature.ALLOW_UNQUOTED_FIELD_NAMES)
+          .enable(JsonReadFeature.ALLOW_TRAILING_COMMA)
+          .enable(JsonReadFeature.ALLOW_SINGLE_QUOTES)
+          .enable(JsonReadFeature.ALLOW_BACKSLASH_ESCAPING_ANY_CHARACTER)
+          .enable(JsonReadFeature.ALLOW_NON_NUMERIC_NUMBERS)
+          .enable(JsonReadFeature.ALLOW_JAVA_COMMENTS)
+          .enable(JsonReadFeature.ALLOW_LEADING_DECIMAL_POINT_FOR_NUMBERS)
+          // END JSON5 features.
+          .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+          .serializationInclusion(Include.NON_ABSENT)
+          .build();
+
+  private final BoundedCache<String, QueryFilter> filters;
+  private final BoundedCache<String, CompiledQuery<?>> plans;
+
+  public FilterPlanCache(int maxFilters, int maxPlans) {
+    this.filters = new BoundedCache<>(maxFilters, 0);
+    this.plans = new BoundedCache<>(maxPlans, 0);
+  }
+
+  /**
+   * Parses and normalizes a JSON5 filter, returning null when there is none or it matches every
+   * user. The returned filter may be shared with other requests and must not be modified.
+   *
+   * @see FilterNormalizer
+   */
+  public QueryFilter parse(String filter) throws JsonProcessingException {
+    if (filter == null) {
+      return null;
+    }
+    QueryFilter queryFilter = filters.get(filter);
+    if (queryFilter == null) {
+      queryFilter = FilterNormalizer.normalize(MAPPER.readValue(filter, QueryFilter.class));
+      if (queryFilter != null) {
+        filters.put(filter, queryFilter);
+      }
+    }
+    return queryFilter;
+  }
+
+  /** Returns the realm's template for the key, compiling and caching it on a miss. */
+  @SuppressWarnings("unchecked")
+  public <T> CompiledQuery<T> get(
+      String realmId, String key, Supplier<CompiledQuery<T>> compiler) {
+    return (CompiledQuery<T>) plans.computeIfAbsent(realmId + "|" + key, k -> compiler.get());
+  }
+
+  public void invalidateRealm(String realmId) {
+    plans.invalidateIf(k -> k.startsWith(realmId + "|"));
+  }
+
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("filters", statsOf(filters));
+    stats.put("plans", statsOf(plans));
+    return stats;
+  }
+
+  static Map<String, Object> statsOf(BoundedCache<?, ?> cache) {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("size", cache.size());
+    stats.put("maxEntries", cache.getMaxEntries());
+    stats.put("hits", cache.getHits());
+    stats.put("misses", cache.getMisses());
+    return stats;
+  }
+}
@@ -0,0 +1,252 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.jpa.entities.GroupEntity;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Root;
+
+/**
+ * A snapshot of the group tree of one realm, with the descendants of every group, used to expand
+ * subtree and path group conditions into the ids of the groups they cover. Snapshots are cached
+ * per realm and dropped when a group of the realm is created, moved or removed.
+ */
+public class GroupClosure {
+  private final Map<String, String> names;
+  private final Map<String, List<String>> children = new HashMap<>();
+  private final Map<String, List<String>> idsByName = new HashMap<>();
+  private final Map<String, Set<String>> descendants = new HashMap<>();
+
+  /**
+   * @param parents the parent id of every group, {@link GroupEntity#TOP_PARENT_ID} (or null) for
+   *     top level ones
+   * @param names the name of every group
+   */
+  public GroupClosure(Map<String, String> parents, Map<String, String> names) {
+    this.names = names;
+    parents.forEach(
+        (id, parentId) -> {
+          if (parentId != null) {
+            children.computeIfAbsent(parentId, k -> new ArrayList<>()).add(id);
+          }
+        });
+    names.forEach((id, name) -> idsByName.computeIfAbsent(name, k -> new ArrayList<>()).add(id));
+    for (String id : names.keySet()) {
+      collectDescendants(id);
+    }
+  }
+
+  /** Loads the realm's groups, leaving out organization groups like group conditions do. */
+  public static GroupClosure load(EntityManager em, String realmId) {
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+    CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+    Root<GroupEntity> root = qb.from(GroupEntity.class);
+    qb.select(cb.tuple(root.get("id"), root.get("parentId"), root.get("name")))
+        .where(
+            cb.equal(root.get("realm"), realmId),
+            cb.equal(root.get("type"), GroupModel.Type.REALM.intValue()));
+
+    Map<String, String> parents = new HashMap<>();
+    Map<String, String> names = new HashMap<>();
+    for (Tuple t : em.createQuery(qb).getResultList()) {
+      parents.put(t.get(0, String.class), t.get(1, String.class));
+      names.put(t.get(0, String.class), t.get(2, String.class));
+    }
+    return new GroupClosure(parents, names);
+  }
+
+  // The tree is walked depth first, so every group's set is built from its children's ones. A
+  // (corrupt) cycle stops at the group already being visited.
+  private Set<String> collectDescendants(String id) {
+    Set<String> set = descendants.get(id);
+    if (set != null) {
+      return set;
+    }
+    Set<String> subtree = new LinkedHashSet<>();
+    subtree.add(id);
+    descendants.put(id, subtree);
+    for (String child : children.getOrDefault(id, List.of())) {
+      subtree.addAll(collectDescendants(child));
+    }
+    descendants.put(id, Collections.unmodifiableSet(subtree));
+    return descendants.get(id);
+  }
+
+  public int size() {
+    return names.size();
+  }
+
+  /** Returns the group and every group below it, or an empty set for an unknown group. */
+  public Set<String> subtree(String id) {
+    return descendants.getOrDefault(id, Set.of());
+  }
+
+  /**
+   * Rewrites the filter's subtree and path group conditions into conditions on group ids: a
+   * subtree condition becomes an {@code any} or {@code none} condition on every group it covers,
+   * one per group for {@code all}, and a path condition one on the ids of its paths.
+   *
+   * @param paths resolves a group path to the id of the group, or null if there is none
+   * @param maxGroups maximum number of groups one condition may expand to
+   * @throws IllegalArgumentException if a condition covers more than {@code maxGroups} groups
+   */
+  public QueryFilter expand(QueryFilter filter, Function<String, String> paths, int maxGroups) {
+    if (filter == null) {
+      return null;
+    }
+    QueryFilter expanded = visit(filter, paths, maxGroups);
+    return expanded == filter ? filter : FilterNormalizer.normalize(expanded);
+  }
+
+  /** Returns whether the filter has a condition {@link #expand} rewrites. */
+  public static boolean needsExpansion(QueryFilter filter) {
+    if (filter == null) {
+      return false;
+    } else if (filter.getGroupQ().isPresent()) {
+      QueryFilter.GroupCondition condition = filter.getGroupQ().get();
+      return condition.isSubtree().orElse(false)
+          || condition.getKey().filter("path"::equals).isPresent();
+    }
+    return filter.getAnd().or(filter::getOr).orElse(List.of()).stream()
+        .anyMatch(GroupClosure::needsExpansion);
+  }
+
+  private QueryFilter visit(QueryFilter filter, Function<String, String> paths, int maxGroups) {
+    if (filter.getGroupQ().isPresent()) {
+      QueryFilter.GroupCondition condition = filter.getGroupQ().get();
+      boolean subtree = condition.isSubtree().orElse(false);
+      String key = condition.getKey().orElse("name");
+      if (!subtree && !key.equals("path")) {
+        return filter;
+      }
+      QueryFilter expanded =
+          subtree ? expandSubtree(condition, key, paths, maxGroups) : expandPaths(condition, paths);
+      // A condition expanded before comes out the same.
+      return expanded.equals(filter) ? filter : expanded;
+    } else if (filter.getAnd().isPresent() || filter.getOr().isPresent()) {
+      List<QueryFilter> children = filter.getAnd().or(filter::getOr).get();
+      List<QueryFilter> visited =
+          children.stream().map(f -> visit(f, paths, maxGroups)).toList();
+      if (visited.equals(children)) {
+        return filter;
+      }
+      QueryFilter copy = new QueryFilter();
+      if (filter.getAnd().isPresent()) {
+        copy.setAnd(visited);
+      } else {
+        copy.setOr(visited);
+      }
+      return copy;
+    }
+    return filter;
+  }
+
+  private QueryFilter expandSubtree(
+      QueryFilter.GroupCondition condition,
+      String key,
+      Function<String, String> paths,
+      int maxGroups) {
+    QueryFilter.GroupCondition.Operator operator =
+        condition.getOp().orElse(QueryFilter.GroupCondition.Operator.ALL);
+    if (operator == QueryFilter.GroupCondition.Operator.ALL) {
+      // Members somewhere below every one of the groups.
+      QueryFilter all = new QueryFilter();
+      all.setAnd(
+          condition.getGroups().stream()
+              .map(
+                  value ->
+                      idCondition(
+                          QueryFilter.GroupCondition.Operator.ANY,
+                          true,
+                          covered(key, List.of(value), paths, maxGroups)))
+              .toList());
+      return all;
+    }
+    return idCondition(operator, true, covered(key, condition.getGroups(), paths, maxGroups));
+  }
+
+  private QueryFilter expandPaths(
+      QueryFilter.GroupCondition condition, Function<String, String> paths) {
+    QueryFilter.GroupCondition.Operator operator =
+        condition.getOp().orElse(QueryFilter.GroupCondition.Operator.ALL);
+    Set<String> ids = new TreeSet<>();
+    for (String path : condition.getGroups()) {
+      String id = paths.apply(path);
+      if (id != null && names.containsKey(id)) {
+        ids.add(id);
+      } else if (operator == QueryFilter.GroupCondition.Operator.ALL) {
+        // A member of every group can't be a member of one that doesn't exist.
+        return idCondition(QueryFilter.GroupCondition.Operator.ANY, false, Set.of());
+      }
+    }
+    return idCondition(operator, false, ids);
+  }
+
+  /** Returns the ids of the groups the values select and of every group below them. */
+  private Set<String> covered(
+      String key, List<String> values, Function<String, String> paths, int maxGroups) {
+    Set<String> ids = new TreeSet<>();
+    for (String value : values) {
+      for (String root : roots(key, value, paths)) {
+        ids.addAll(subtree(root));
+      }
+      if (maxGroups > 0 && ids.size() > maxGroups) {
+        throw new IllegalArgumentException(
+            "group subtree covers more than " + maxGroups + " groups");
+      }
+    }
+    return ids;
+  }
+
+  private List<String> roots(String key, String value, Function<String, String> paths) {
+    switch (key) {
+      case "id":
+        return names.containsKey(value) ? List.of(value) : List.of();
+      case "name":
+        return idsByName.getOrDefault(value, List.of());
+      case "parentId":
+        return children.getOrDefault(value, List.of());
+      case "path":
+        String id = paths.apply(value);
+        return id != null && names.containsKey(id) ? List.of(id) : List.of();
+      default:
+        throw new IllegalArgumentException("unknown group key '" + key + "'");
+    }
+  }
+
+  /**
+   * Builds a condition on group ids. One on no groups is resolved here: {@code none} of them
+   * always matches, {@code any} or {@code all} never does.
+   */
+  private static QueryFilter idCondition(
+      QueryFilter.GroupCondition.Operator operator, boolean subtree, Set<String> ids) {
+    QueryFilter filter = new QueryFilter();
+    if (ids.isEmpty()) {
+      if (operator != QueryFilter.GroupCondition.Operator.NONE) {
+        filter.setOr(List.of());
+      }
+      return filter;
+    }
+    QueryFilter.GroupCondition condition = new QueryFilter.GroupCondition();
+    condition.setKey("id");
+    condition.setOp(operator);
+    condition.setSubtree(subtree ? true : null);
+    condition.setGroups(List.copyOf(ids));
+    filter.setGroupQ(condition);
+    return filter;
+  }
+}
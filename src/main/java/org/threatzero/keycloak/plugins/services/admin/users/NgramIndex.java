@@ -0,0 +1,535 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageProvider;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+
+/**
+ * A per-node, in-memory trigram index over the lowercased values of selected user fields (core
+ * columns and attributes). It resolves case-insensitive {@code CONTAINS}/{@code ENDS} conditions,
+ * whose leading wildcard defeats database indexes, to the ids of the matching users, so the query
+ * only has to look users up by primary key.
+ *
+ * <p>Each realm's index is built in the background the first time the realm is searched (or when
+ * the server starts), kept current from user changes on this node, and rebuilt after the refresh
+ * interval. Matches are only candidates: the original condition is still applied by the database,
+ * so a stale index can miss users but never return wrong ones. Since the index misses whatever
+ * doesn't go through this node's listener (other nodes, imports, federation syncs), it is only
+ * used where nothing else writes users, see {@link #seesEveryChange}. The total number of postings
+ * across realms is bounded; a realm that doesn't fit is searched in the database instead.
+ */
+public class NgramIndex {
+  private static final Logger logger = Logger.getLogger(NgramIndex.class);
+
+  static final int GRAM = 3;
+
+  // Rough per-entry heap costs, for reporting only.
+  private static final int POSTING_BYTES = 40;
+  private static final int GRAM_BYTES = 120;
+  private static final int VALUE_BYTES = 48;
+
+  private static final Set<String> CORE_FIELDS =
+      Set.of(UserModel.USERNAME, UserModel.EMAIL, UserModel.FIRST_NAME, UserModel.LAST_NAME);
+
+  private final Set<String> fields;
+  private final Set<String> attributeFields;
+  private final long maxPostings;
+  private final int maxCandidates;
+  private final long refreshMillis;
+
+  private final Map<String, RealmIndex> realms = new ConcurrentHashMap<>();
+  private final Set<String> building = ConcurrentHashMap.newKeySet();
+  private final AtomicLong postings = new AtomicLong();
+  private final ExecutorService executor =
+      Executors.newSingleThreadExecutor(
+          r -> {
+            Thread thread = new Thread(r, "users-by-attribute-ngram-index");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  public NgramIndex(Set<String> fields, long maxPostings, int maxCandidates, long refreshMillis) {
+    this.fields = Collections.unmodifiableSet(new LinkedHashSet<>(fields));
+    this.attributeFields = new LinkedHashSet<>(fields);
+    this.attributeFields.removeAll(CORE_FIELDS);
+    this.maxPostings = maxPostings;
+    this.maxCandidates = maxCandidates;
+    this.refreshMillis = refreshMillis;
+  }
+
+  public boolean isEnabled() {
+    return !fields.isEmpty();
+  }
+
+  /** Returns whether the index can resolve the condition. */
+  public boolean serves(QueryFilter.Condition condition) {
+    QueryFilter.Condition.Operator operator =
+        condition.getOp().orElse(QueryFilter.Condition.Operator.EQ);
+    if (!fields.contains(condition.getKey())
+        || condition.getType().isPresent()
+        || !condition.isIgnoreCase().orElse(true)
+        || condition.isNot().orElse(false)
+        || (operator != QueryFilter.Condition.Operator.CONTAINS
+            && operator != QueryFilter.Condition.Operator.ENDS)) {
+      return false;
+    }
+    // LIKE treats these as wildcards or escapes, the index compares literally.
+    String value = condition.getValues().get(0);
+    return value.length() >= GRAM
+        && value.chars().noneMatch(c -> c == '%' || c == '_' || c == '\\');
+  }
+
+  /**
+   * Narrows every condition of the filter that the index serves down to the users it matches, by
+   * adding an {@code id IN (...)} condition next to it. Conditions the index can't answer yet,
+   * that match no user or more than the candidate limit, are left to the database, and so is the
+   * whole filter unless the index {@link #seesEveryChange sees every change} to the realm's users.
+   *
+   * @return the rewritten, normalized filter
+   */
+  public QueryFilter resolve(KeycloakSession session, RealmModel realm, QueryFilter filter) {
+    if (!isEnabled() || filter == null || !seesEveryChange(session, realm)) {
+      return filter;
+    }
+    RealmIndex index = current(session.getKeycloakSessionFactory(), realm.getId());
+    if (index == null) {
+      return filter;
+    }
+    QueryFilter resolved = resolve(index, filter);
+    return resolved == filter ? filter : FilterNormalizer.normalize(resolved);
+  }
+
+  /**
+   * Returns whether every change to the realm's users goes through this node's listener: the only
+   * node of the cluster, with the listener and admin events enabled for the realm and no user
+   * federation, whose syncs and imports on login write users without events.
+   */
+  static boolean seesEveryChange(KeycloakSession session, RealmModel realm) {
+    return realm.isAdminEventsEnabled()
+        && realm
+            .getEventsListenersStream()
+            .anyMatch(UserIndexEventListenerProviderFactory.ID::equals)
+        && realm
+            .getComponentsStream(realm.getId(), UserStorageProvider.class.getName())
+            .findAny()
+            .isEmpty()
+        && !UsersByAttributeResourceProvider.isClustered(session);
+  }
+
+  QueryFilter resolve(RealmIndex index, QueryFilter filter) {
+    if (filter.getQ().isPresent()) {
+      QueryFilter.Condition condition = filter.getQ().get();
+      if (!serves(condition)) {
+        return filter;
+      }
+      Set<String> ids = index.match(condition);
+      if (ids == null || ids.isEmpty() || ids.size() > maxCandidates) {
+        return filter;
+      }
+
+      QueryFilter.Condition idCondition = new QueryFilter.Condition();
+      idCondition.setKey("id");
+      idCondition.setOp(QueryFilter.Condition.Operator.IN);
+      idCondition.setIgnoreCase(false);
+      idCondition.setValues(ids.stream().sorted().toList());
+      QueryFilter idFilter = new QueryFilter();
+      idFilter.setQ(idCondition);
+      QueryFilter both = new QueryFilter();
+      both.setAnd(List.of(filter, idFilter));
+      return both;
+    } else if (filter.getAnd().isPresent() || filter.getOr().isPresent()) {
+      List<QueryFilter> children = filter.getAnd().or(filter::getOr).get();
+      List<QueryFilter> resolved = children.stream().map(f -> resolve(index, f)).toList();
+      if (resolved.equals(children)) {
+        return filter;
+      }
+      QueryFilter copy = new QueryFilter();
+      if (filter.getAnd().isPresent()) {
+        copy.setAnd(resolved);
+      } else {
+        copy.setOr(resolved);
+      }
+      return copy;
+    }
+    return filter;
+  }
+
+  /**
+   * Returns the realm's complete index, or null while it is missing or due for a refresh, which is
+   * then scheduled. The refresh catches up with changes the listener missed while it was disabled.
+   */
+  private RealmIndex current(KeycloakSessionFactory factory, String realmId) {
+    RealmIndex index = realms.get(realmId);
+    if (index == null
+        || (refreshMillis > 0 && System.currentTimeMillis() - index.builtAt > refreshMillis)) {
+      scheduleBuild(factory, realmId);
+      return null;
+    }
+    return index.complete ? index : null;
+  }
+
+  /** Builds the realm's index in the background, unless a build is already under way. */
+  public void scheduleBuild(KeycloakSessionFactory factory, String realmId) {
+    if (!isEnabled() || !building.add(realmId)) {
+      return;
+    }
+    executor.execute(
+        () -> {
+          try {
+            KeycloakModelUtils.runJobInTransaction(factory, s -> build(s, realmId));
+          } catch (RuntimeException e) {
+            logger.warnf(e, "Failed to build the n-gram index of realm %s", realmId);
+          } finally {
+            building.remove(realmId);
+          }
+        });
+  }
+
+  /** Builds the index of every realm in the background, e.g. once the server has started. */
+  public void scheduleBuildAll(KeycloakSessionFactory factory) {
+    if (!isEnabled()) {
+      return;
+    }
+    List<String> realmIds = new ArrayList<>();
+    KeycloakModelUtils.runJobInTransaction(
+        factory, s -> s.realms().getRealmsStream().map(RealmModel::getId).forEach(realmIds::add));
+    realmIds.forEach(realmId -> scheduleBuild(factory, realmId));
+  }
+
+  private void build(KeycloakSession session, String realmId) {
+    long started = System.currentTimeMillis();
+    RealmIndex index = new RealmIndex(started);
+    RealmIndex previous = realms.get(realmId);
+    // The realm's current postings are released when the new index replaces them.
+    long budget = maxPostings - postings.get() + (previous != null ? previous.postings : 0);
+
+    try (Stream<FieldValue> rows = loadValues(session, realmId, null)) {
+      Iterator<FieldValue> it = rows.iterator();
+      while (it.hasNext()) {
+        FieldValue row = it.next();
+        index.add(row.userId(), row.field(), row.value());
+        if (index.postings > budget) {
+          logger.warnf(
+              "The n-gram index of realm %s exceeds the posting limit of %d, searching the"
+                  + " database instead",
+              realmId,
+              maxPostings);
+          index = new RealmIndex(started);
+          index.complete = false;
+          break;
+        }
+      }
+    }
+
+    replace(realmId, index);
+    logger.debugf(
+        "Built the n-gram index of realm %s in %d ms",
+        realmId, System.currentTimeMillis() - started);
+  }
+
+  /** Reloads one user's values, e.g. after a profile update. */
+  public void reindexUser(KeycloakSession session, String realmId, String userId) {
+    RealmIndex index = realms.get(realmId);
+    if (index == null || !index.complete) {
+      return;
+    }
+    Map<String, List<String>> values = new HashMap<>();
+    try (Stream<FieldValue> rows = loadValues(session, realmId, userId)) {
+      rows.forEach(
+          row -> values.computeIfAbsent(row.field(), k -> new ArrayList<>()).add(row.value()));
+    }
+    long delta = index.put(userId, values);
+    if (postings.addAndGet(delta) > maxPostings) {
+      logger.warnf("The n-gram index exceeds the posting limit, dropping realm %s", realmId);
+      invalidateRealm(realmId);
+    }
+  }
+
+  public void removeUser(String realmId, String userId) {
+    RealmIndex index = realms.get(realmId);
+    if (index != null) {
+      postings.addAndGet(index.put(userId, Map.of()));
+    }
+  }
+
+  public void invalidateRealm(String realmId) {
+    replace(realmId, null);
+  }
+
+  private void replace(String realmId, RealmIndex index) {
+    RealmIndex previous = index != null ? realms.put(realmId, index) : realms.remove(realmId);
+    long added = index != null ? index.postings : 0;
+    postings.addAndGet(added - (previous != null ? previous.postings : 0));
+  }
+
+  /**
+   * Streams the values of the indexed fields, for a whole realm or, if {@code userId} is set, one
+   * user. Queries run one after the other as the stream is consumed, so only one result set is
+   * open at a time.
+   */
+  private Stream<FieldValue> loadValues(KeycloakSession session, String realmId, String userId) {
+    EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+    List<Supplier<Stream<FieldValue>>> queries = new ArrayList<>();
+
+    for (String field : fields) {
+      if (!CORE_FIELDS.contains(field)) {
+        continue;
+      }
+      CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+      Root<UserEntity> root = qb.from(UserEntity.class);
+      Predicate thePredicate = cb.equal(root.get("realmId"), realmId);
+      if (userId != null) {
+        thePredicate = cb.and(thePredicate, cb.equal(root.get("id"), userId));
+      }
+      qb.select(cb.tuple(root.get("id"), root.get(field)))
+          .where(cb.and(thePredicate, cb.isNotNull(root.get(field))));
+      queries.add(
+          () ->
+              em.createQuery(qb)
+                  .getResultStream()
+                  .map(t -> new FieldValue(t.get(0, String.class), field, t.get(1, String.class))));
+    }
+
+    // Only the value column is indexed: it is also the only one attribute conditions search, long
+    // values are stored elsewhere.
+    if (!attributeFields.isEmpty()) {
+      CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+      Root<UserAttributeEntity> attributeRoot = qb.from(UserAttributeEntity.class);
+      Predicate thePredicate =
+          cb.and(
+              cb.equal(attributeRoot.get("user").get("realmId"), realmId),
+              attributeRoot.get("name").in(attributeFields),
+              cb.isNotNull(attributeRoot.get("value")));
+      if (userId != null) {
+        thePredicate =
+            cb.and(thePredicate, cb.equal(attributeRoot.get("user").get("id"), userId));
+      }
+      qb.select(
+              cb.tuple(
+                  attributeRoot.get("user").get("id"),
+                  attributeRoot.get("name"),
+                  attributeRoot.get("value")))
+          .where(thePredicate);
+      queries.add(
+          () ->
+              em.createQuery(qb)
+                  .getResultStream()
+                  .map(
+                      t ->
+                          new FieldValue(
+                              t.get(0, String.class),
+                              t.get(1, String.class),
+                              t.get(2, String.class))));
+    }
+
+    return queries.stream().flatMap(Supplier::get);
+  }
+
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("fields", fields);
+    stats.put("postings", postings.get());
+    stats.put("maxPostings", maxPostings);
+    long bytes = 0;
+    Map<String, Object> realmStats = new LinkedHashMap<>();
+    for (Map.Entry<String, RealmIndex> entry : realms.entrySet()) {
+      Map<String, Object> realm = entry.getValue().getStats();
+      bytes += (long) realm.get("approxBytes");
+      realmStats.put(entry.getKey(), realm);
+    }
+    stats.put("approxBytes", bytes);
+    stats.put("realms", realmStats);
+    return stats;
+  }
+
+  /** Returns the distinct grams of a lowercased value. */
+  static Set<String> grams(String value) {
+    Set<String> grams = new HashSet<>();
+    for (int i = 0; i + GRAM <= value.length(); i++) {
+      grams.add(value.substring(i, i + GRAM));
+    }
+    return grams;
+  }
+
+  private static String lower(String value) {
+    return value.toLowerCase(Locale.ROOT);
+  }
+
+  private record FieldValue(String userId, String field, String value) {}
+
+  /** The index of one realm. Postings are keyed by field and gram. */
+  static class RealmIndex {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Map<String, List<String>>> values = new HashMap<>();
+    private final Map<String, Set<String>> postingsByGram = new HashMap<>();
+    private final long builtAt;
+    private volatile boolean complete = true;
+    private volatile long postings;
+    private volatile long chars;
+
+    RealmIndex(long builtAt) {
+      this.builtAt = builtAt;
+    }
+
+    /** Adds one value of a user while the index is built, before it is shared. */
+    void add(String userId, String field, String value) {
+      String lowered = lower(value);
+      values
+          .computeIfAbsent(userId, k -> new HashMap<>())
+          .computeIfAbsent(field, k -> new ArrayList<>())
+          .add(lowered);
+      chars += lowered.length();
+      grams(lowered).forEach(gram -> addPosting(field, gram, userId));
+    }
+
+    /**
+     * Replaces a user's indexed values (lowercased here) and returns the change in postings. An
+     * empty map removes the user.
+     */
+    long put(String userId, Map<String, List<String>> userValues) {
+      lock.writeLock().lock();
+      try {
+        long before = postings;
+        Map<String, List<String>> previous = values.remove(userId);
+        if (previous != null) {
+          previous.forEach(
+              (field, fieldValues) -> {
+                chars -= fieldValues.stream().mapToInt(String::length).sum();
+                fieldValues.stream()
+                    .flatMap(v -> grams(v).stream())
+                    .distinct()
+                    .forEach(gram -> removePosting(field, gram, userId));
+              });
+        }
+
+        Map<String, List<String>> lowered = new HashMap<>();
+        userValues.forEach(
+            (field, fieldValues) ->
+                lowered.put(field, fieldValues.stream().map(NgramIndex::lower).toList()));
+        if (!lowered.isEmpty()) {
+          values.put(userId, lowered);
+        }
+        lowered.forEach(
+            (field, fieldValues) -> {
+              chars += fieldValues.stream().mapToInt(String::length).sum();
+              fieldValues.stream()
+                  .flatMap(v -> grams(v).stream())
+                  .distinct()
+                  .forEach(gram -> addPosting(field, gram, userId));
+            });
+        return postings - before;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    private void addPosting(String field, String gram, String userId) {
+      if (postingsByGram.computeIfAbsent(field + '\0' + gram, k -> new HashSet<>()).add(userId)) {
+        postings++;
+      }
+    }
+
+    private void removePosting(String field, String gram, String userId) {
+      String key = field + '\0' + gram;
+      Set<String> ids = postingsByGram.get(key);
+      if (ids != null && ids.remove(userId)) {
+        postings--;
+        if (ids.isEmpty()) {
+          postingsByGram.remove(key);
+        }
+      }
+    }
+
+    /** Returns the ids of the users whose field matches the (served) condition exactly. */
+    Set<String> match(QueryFilter.Condition condition) {
+      String field = condition.getKey();
+      String needle = lower(condition.getValues().get(0));
+      boolean suffix = condition.getOp().orElse(null) == QueryFilter.Condition.Operator.ENDS;
+
+      lock.readLock().lock();
+      try {
+        List<Set<String>> candidates = new ArrayList<>();
+        for (String gram : grams(needle)) {
+          Set<String> ids = postingsByGram.get(field + '\0' + gram);
+          if (ids == null) {
+            return Set.of();
+          }
+          candidates.add(ids);
+        }
+        candidates.sort(Comparator.comparingInt(Set::size));
+
+        // Intersect from the rarest gram, then check the actual values: grams can match out of
+        // order or across a suffix.
+        Set<String> matches = new HashSet<>();
+        for (String userId : candidates.get(0)) {
+          if (candidates.stream().allMatch(ids -> ids.contains(userId))
+              && values.getOrDefault(userId, Map.of()).getOrDefault(field, List.of()).stream()
+                  .anyMatch(v -> suffix ? v.endsWith(needle) : v.contains(needle))) {
+            matches.add(userId);
+          }
+        }
+        return matches;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    Map<String, Object> getStats() {
+      lock.readLock().lock();
+      try {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("complete", complete);
+        stats.put("builtAt", builtAt);
+        stats.put("users", values.size());
+        stats.put("grams", postingsByGram.size());
+        stats.put("postings", postings);
+        stats.put(
+            "approxBytes",
+            postings * POSTING_BYTES
+                + (long) postingsByGram.size() * GRAM_BYTES
+                + values.size() * (long) VALUE_BYTES
+                + chars);
+        return stats;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakSessionTaskWithResult;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Runs the independent queries of one request concurrently on virtual threads. Each query gets its
+ * own Keycloak session and transaction, with the realm set as the session's context, and the
+ * transaction is rolled back since the queries only read. At most {@code maxConcurrency} of a
+ * request's queries run at the same time, so one search can't take more than that many database
+ * connections from the pool.
+ */
+class ParallelQueries implements AutoCloseable {
+  private final KeycloakSessionFactory factory;
+  private final String realmId;
+  private final Semaphore permits;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  ParallelQueries(KeycloakSessionFactory factory, String realmId, int maxConcurrency) {
+    this.factory = factory;
+    this.realmId = realmId;
+    this.permits = new Semaphore(Math.max(1, maxConcurrency));
+  }
+
+  <T> Future<T> submit(KeycloakSessionTaskWithResult<T> task) {
+    return executor.submit(
+        () -> {
+          permits.acquire();
+          try {
+            return KeycloakModelUtils.runJobInTransactionWithResult(
+                factory,
+                session -> {
+                  session.getTransactionManager().setRollbackOnly();
+                  session.getContext().setRealm(session.realms().getRealm(realmId));
+                  return task.run(session);
+                });
+          } finally {
+            permits.release();
+          }
+        });
+  }
+
+  /** Waits for a submitted query, rethrowing its failure. */
+  static <T> T await(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("interrupted while waiting for a query");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /** Interrupts queries whose results are no longer needed, e.g. a count made unnecessary. */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
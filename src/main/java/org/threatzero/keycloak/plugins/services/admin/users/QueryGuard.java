@@ -0,0 +1,115 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+import org.threatzero.keycloak.plugins.services.models.QueryOrder;
+
+import jakarta.persistence.TypedQuery;
+
+/**
+ * Limits how expensive a search may be, so one request can't hold a database connection long
+ * enough to starve logins sharing the pool. Filters and orders are checked against the limits
+ * before any query runs, and every search query gets a statement timeout. A limit of 0 disables
+ * it.
+ */
+public class QueryGuard {
+  /** Standard JPA hint, in milliseconds, passed on to the JDBC statement timeout. */
+  static final String TIMEOUT_HINT = "jakarta.persistence.query.timeout";
+
+  public static final QueryGuard NONE = new QueryGuard(0, 0, 0, 0, 0);
+
+  private final int maxDepth;
+  private final int maxConditions;
+  private final int maxWildcards;
+  private final int maxAttributeSorts;
+  private final long timeoutMillis;
+
+  public QueryGuard(
+      int maxDepth,
+      int maxConditions,
+      int maxWildcards,
+      int maxAttributeSorts,
+      long timeoutMillis) {
+    this.maxDepth = maxDepth;
+    this.maxConditions = maxConditions;
+    this.maxWildcards = maxWildcards;
+    this.maxAttributeSorts = maxAttributeSorts;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Checks a request against the limits. Leading wildcard ({@code contains} and {@code ends})
+   * conditions that {@code indexed} accepts are answered without scanning, so they don't count
+   * against the wildcard limit.
+   *
+   * @throws IllegalArgumentException with a message saying which limit the request exceeds
+   */
+  public void check(
+      QueryFilter filter, QueryOrder order, Predicate<QueryFilter.Condition> indexed) {
+    if (filter != null) {
+      Counts counts = new Counts();
+      count(filter, 1, indexed, counts);
+      exceeds("filter depth", counts.depth, maxDepth);
+      exceeds("number of filter conditions", counts.conditions, maxConditions);
+      exceeds("number of contains/ends conditions", counts.wildcards, maxWildcards);
+    }
+    if (order != null) {
+      exceeds(
+          "number of attribute sort keys",
+          (int)
+              order.getValues().stream()
+                  .filter(o -> UserQueryBuilder.isAttributeName(o.getKey()))
+                  .count(),
+          maxAttributeSorts);
+    }
+  }
+
+  /** Sets the statement timeout of a search query. */
+  public <T> TypedQuery<T> withTimeout(TypedQuery<T> query) {
+    return timeoutMillis > 0 ? query.setHint(TIMEOUT_HINT, (int) timeoutMillis) : query;
+  }
+
+  private static void count(
+      QueryFilter filter, int depth, Predicate<QueryFilter.Condition> indexed, Counts counts) {
+    counts.depth = Math.max(counts.depth, depth);
+    filter
+        .getQ()
+        .ifPresent(
+            condition -> {
+              counts.conditions++;
+              QueryFilter.Condition.Operator operator =
+                  condition.getOp().orElse(QueryFilter.Condition.Operator.EQ);
+              if ((operator == QueryFilter.Condition.Operator.CONTAINS
+                      || operator == QueryFilter.Condition.Operator.ENDS)
+                  && !indexed.test(condition)) {
+                counts.wildcards++;
+              }
+            });
+    filter.getGroupQ().ifPresent(groupCondition -> counts.conditions++);
+    filter.getAnd().ifPresent(children -> count(children, depth + 1, indexed, counts));
+    filter.getOr().ifPresent(children -> count(children, depth + 1, indexed, counts));
+  }
+
+  private static void count(
+      List<QueryFilter> filters,
+      int depth,
+      Predicate<QueryFilter.Condition> indexed,
+      Counts counts) {
+    filters.forEach(filter -> count(filter, depth, indexed, counts));
+  }
+
+  private static void exceeds(String what, int value, int max) {
+    if (max > 0 && value > max) {
+      throw new IllegalArgumentException(
+          "The " + what + " (" + value + ") exceeds the limit of " + max);
+    }
+  }
+
+  private static class Counts {
+    int depth;
+    int conditions;
+    int wildcards;
+  }
+}
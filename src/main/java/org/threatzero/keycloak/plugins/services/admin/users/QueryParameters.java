@@ -0,0 +1,56 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import jakarta.persistence.TypedQuery;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.ParameterExpression;
+
+/**
+ * The parameters of a query built by {@link UserQueryBuilder}. Every user supplied value becomes a
+ * parameter whose value is computed from a request's {@link QueryValues}, so a query built for one
+ * request can be reused for any other request with the same filter shape.
+ *
+ * <p>Instances are filled in while a query is built and are read-only afterwards.
+ */
+public class QueryParameters {
+  private final List<Slot<?>> slots = new ArrayList<>();
+  private int leaf = -1;
+
+  /** Advances to the next leaf condition of the filter and returns its index. */
+  int nextLeaf() {
+    return ++leaf;
+  }
+
+  <T> ParameterExpression<T> add(
+      CriteriaBuilder cb, Class<T> type, Function<QueryValues, ? extends T> value) {
+    ParameterExpression<T> parameter = cb.parameter(type);
+    slots.add(new Slot<>(parameter, value));
+    return parameter;
+  }
+
+  /**
+   * Binds the request's values to the query.
+   *
+   * @throws IllegalArgumentException if the values don't fit the query, e.g. a malformed cursor
+   */
+  public <T> TypedQuery<T> bind(TypedQuery<T> query, QueryValues values) {
+    for (Slot<?> slot : slots) {
+      slot.bind(query, values);
+    }
+    return query;
+  }
+
+  public int size() {
+    return slots.size();
+  }
+
+  private record Slot<T>(
+      ParameterExpression<T> parameter, Function<QueryValues, ? extends T> value) {
+    void bind(TypedQuery<?> query, QueryValues values) {
+      query.setParameter(parameter, value.apply(values));
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+
+/**
+ * The values of one request that get bound into a compiled query: the filter's leaf conditions,
+ * in the order {@link UserQueryBuilder} visits them, and the decoded cursor keys, if any.
+ */
+public class QueryValues {
+  private final List<QueryFilter> leaves;
+  private final List<Object> cursorKeys;
+
+  private QueryValues(List<QueryFilter> leaves, List<Object> cursorKeys) {
+    this.leaves = leaves;
+    this.cursorKeys = cursorKeys;
+  }
+
+  public static QueryValues of(QueryFilter filter) {
+    return of(filter, List.of());
+  }
+
+  public static QueryValues of(QueryFilter filter, List<Object> cursorKeys) {
+    List<QueryFilter> leaves = new ArrayList<>();
+    if (filter != null) {
+      collectLeaves(filter, leaves);
+    }
+    return new QueryValues(leaves, cursorKeys);
+  }
+
+  public QueryFilter.Condition condition(int leaf) {
+    return leaves.get(leaf).getQ().get();
+  }
+
+  public QueryFilter.GroupCondition groupCondition(int leaf) {
+    return leaves.get(leaf).getGroupQ().get();
+  }
+
+  public Object cursorKey(int index) {
+    if (index >= cursorKeys.size()) {
+      throw new IllegalArgumentException("cursor does not match the requested order");
+    }
+    return cursorKeys.get(index);
+  }
+
+  // Must visit nodes in the same order and with the same precedence as
+  // UserQueryBuilder.getPredicate.
+  private static void collectLeaves(QueryFilter filter, List<QueryFilter> leaves) {
+    if (filter.getQ().isPresent() || filter.getGroupQ().isPresent()) {
+      leaves.add(filter);
+    } else if (filter.getAnd().isPresent()) {
+      filter.getAnd().get().forEach(f -> collectLeaves(f, leaves));
+    } else if (filter.getOr().isPresent()) {
+      filter.getOr().get().forEach(f -> collectLeaves(f, leaves));
+    }
+  }
+}
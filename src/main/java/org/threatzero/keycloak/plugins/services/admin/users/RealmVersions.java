@@ -0,0 +1,28 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-realm counters of the user data changes this node has seen: users, their attributes and
+ * group memberships. A search result tagged with a realm's version is current for as long as the
+ * version doesn't change. Versions start from a per-node epoch, so they are never reused across
+ * restarts or shared between nodes.
+ */
+public class RealmVersions {
+  private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+  private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+  public String get(String realmId) {
+    return epoch + "." + versions.computeIfAbsent(realmId, k -> new AtomicLong()).get();
+  }
+
+  public void bump(String realmId) {
+    versions.computeIfAbsent(realmId, k -> new AtomicLong()).incrementAndGet();
+  }
+
+  public void remove(String realmId) {
+    versions.remove(realmId);
+  }
+}
@@ -0,0 +1,250 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.jboss.logging.Logger;
+
+import io.agroal.api.AgroalDataSource;
+import io.agroal.api.configuration.AgroalConnectionPoolConfiguration.ConnectionValidator;
+import io.agroal.api.configuration.supplier.AgroalDataSourceConfigurationSupplier;
+import io.agroal.api.security.NamePrincipal;
+import io.agroal.api.security.SimplePassword;
+
+import jakarta.persistence.EntityManager;
+
+/**
+ * A read-only copy of the Keycloak database, e.g. a streaming replica, that searches read from
+ * instead of the primary. The replica maps only the user tables searches query. Before it is used,
+ * its replication lag is measured with {@code lagQuery} (at most once per check interval); a
+ * replica lagging more than {@code maxLagMillis}, or that can't be reached, is skipped and searches
+ * read from the primary until the next check.
+ *
+ * <p>Connections come from an Agroal pool, the one Keycloak uses for its own database, which
+ * validates idle connections, bounds how long a connection is waited for and logs connections held
+ * for longer than a search should take. {@link #close()} closes the pool.
+ */
+public class ReplicaDatabase {
+  private static final Logger logger = Logger.getLogger(ReplicaDatabase.class);
+
+  /** Seconds a PostgreSQL standby is behind, or null on a server that isn't one. */
+  static final String POSTGRESQL_LAG_QUERY =
+      "SELECT EXTRACT(EPOCH FROM (now() - pg_last_xact_replay_timestamp()))";
+
+  private static final Duration ACQUISITION_TIMEOUT = Duration.ofSeconds(5);
+  private static final Duration VALIDATION_INTERVAL = Duration.ofSeconds(30);
+  private static final Duration LEAK_TIMEOUT = Duration.ofMinutes(5);
+  private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(5);
+  private static final Duration MAX_LIFETIME = Duration.ofMinutes(30);
+
+  private final String url;
+  private final String user;
+  private final String password;
+  private final int poolSize;
+  private final long maxLagMillis;
+  private final String lagQuery;
+  private final long checkIntervalMillis;
+
+  private volatile AgroalDataSource dataSource;
+  private volatile SessionFactory factory;
+  private volatile long checkedAt;
+  private volatile boolean usable;
+  private volatile Long lagMillis;
+  private final AtomicLong reads = new AtomicLong();
+  private final AtomicLong fallbacks = new AtomicLong();
+
+  /**
+   * @param lagQuery query returning the replica's lag in seconds, null when it isn't lagging, or
+   *     null to never check, e.g. for a second database standing in for a replica
+   */
+  public ReplicaDatabase(
+      String url,
+      String user,
+      String password,
+      int poolSize,
+      long maxLagMillis,
+      String lagQuery,
+      long checkIntervalMillis) {
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    this.poolSize = poolSize;
+    this.maxLagMillis = maxLagMillis;
+    this.lagQuery = lagQuery;
+    this.checkIntervalMillis = checkIntervalMillis;
+  }
+
+  /**
+   * Returns the lag query to use for a replica URL: the configured one, or PostgreSQL's for a
+   * PostgreSQL URL. Returns null, for no check, if neither applies or the configured one is
+   * {@code none}.
+   */
+  static String lagQueryFor(String url, String configured) {
+    if (configured != null && !configured.isBlank()) {
+      return configured.equalsIgnoreCase("none") ? null : configured;
+    }
+    return url.startsWith("jdbc:postgresql:") ? POSTGRESQL_LAG_QUERY : null;
+  }
+
+  /**
+   * Opens a read-only entity manager on the replica, or returns null if searches should read from
+   * the primary. Its queries run in a transaction, so results can be streamed with a cursor; the
+   * caller closes it with {@link #close(EntityManager)}.
+   */
+  public EntityManager createEntityManager() {
+    if (!isUsable()) {
+      fallbacks.incrementAndGet();
+      return null;
+    }
+    return openEntityManager();
+  }
+
+  /**
+   * Opens another read-only entity manager on the replica without checking it again, for the other
+   * queries of a request that already reads from it.
+   *
+   * @throws IllegalStateException if the replica was never connected to
+   */
+  public EntityManager openEntityManager() {
+    SessionFactory current = factory;
+    if (current == null) {
+      throw new IllegalStateException("the replica is not connected");
+    }
+    reads.incrementAndGet();
+    Session session = current.openSession();
+    session.setDefaultReadOnly(true);
+    // Before the transaction starts, which some drivers require.
+    session.doWork(connection -> connection.setReadOnly(true));
+    session.getTransaction().begin();
+    return session;
+  }
+
+  /** Ends an entity manager's transaction, which only read, and closes it. */
+  public static void close(EntityManager em) {
+    try {
+      if (em.getTransaction().isActive()) {
+        em.getTransaction().rollback();
+      }
+    } finally {
+      em.close();
+    }
+  }
+
+  /** Returns whether the entity manager was opened on this replica. */
+  public boolean owns(EntityManager em) {
+    return factory != null && em.getEntityManagerFactory() == factory;
+  }
+
+  private boolean isUsable() {
+    if (System.currentTimeMillis() - checkedAt < checkIntervalMillis) {
+      return usable;
+    }
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (now - checkedAt >= checkIntervalMillis) {
+        usable = check();
+        checkedAt = now;
+      }
+      return usable;
+    }
+  }
+
+  /** Connects to the replica if needed and measures its lag. */
+  private boolean check() {
+    try {
+      if (factory == null) {
+        factory = buildFactory();
+      }
+      try (StatelessSession session = factory.openStatelessSession()) {
+        if (lagQuery == null) {
+          lagMillis = null;
+          return session.doReturningWork(connection -> connection.isValid(5));
+        }
+        Object lag = session.createNativeQuery(lagQuery, Object.class).getSingleResult();
+        lagMillis = lag != null ? Math.round(((Number) lag).doubleValue() * 1000) : 0L;
+      }
+      if (lagMillis > maxLagMillis) {
+        logger.warnf("Replica is %d ms behind, reading from the primary", lagMillis);
+        return false;
+      }
+      return true;
+    } catch (RuntimeException e) {
+      logger.warn("Replica is unavailable, reading from the primary", e);
+      return false;
+    }
+  }
+
+  private SessionFactory buildFactory() {
+    if (dataSource == null) {
+      dataSource = buildDataSource();
+    }
+    Configuration configuration = new Configuration();
+    SearchEntities.CLASSES.forEach(configuration::addAnnotatedClass);
+    configuration.getProperties().put(AvailableSettings.DATASOURCE, dataSource);
+    return configuration
+        .setProperty("hibernate.hbm2ddl.auto", "none")
+        // Keycloak's named queries refer to entities that aren't mapped here.
+        .setProperty("hibernate.query.startup_check", "false")
+        .buildSessionFactory();
+  }
+
+  private AgroalDataSource buildDataSource() {
+    AgroalDataSourceConfigurationSupplier configuration =
+        new AgroalDataSourceConfigurationSupplier()
+            .connectionPoolConfiguration(
+                pool ->
+                    pool.minSize(0)
+                        .maxSize(Math.max(1, poolSize))
+                        .acquisitionTimeout(ACQUISITION_TIMEOUT)
+                        .connectionValidator(ConnectionValidator.defaultValidator())
+                        .validationTimeout(VALIDATION_INTERVAL)
+                        .leakTimeout(LEAK_TIMEOUT)
+                        .reapTimeout(IDLE_TIMEOUT)
+                        .maxLifetime(MAX_LIFETIME)
+                        .connectionFactoryConfiguration(
+                            connection ->
+                                connection
+                                    .jdbcUrl(url)
+                                    .principal(user != null ? new NamePrincipal(user) : null)
+                                    .credential(
+                                        password != null ? new SimplePassword(password) : null)
+                                    .loginTimeout(ACQUISITION_TIMEOUT)));
+    try {
+      return AgroalDataSource.from(configuration);
+    } catch (SQLException e) {
+      throw new IllegalStateException("Failed to create the replica's connection pool", e);
+    }
+  }
+
+  /** Closes the session factory and the connection pool, e.g. when the server shuts down. */
+  public synchronized void close() {
+    usable = false;
+    // Searches check the replica again after the interval, so keep them from reconnecting.
+    checkedAt = Long.MAX_VALUE;
+    if (factory != null) {
+      factory.close();
+      factory = null;
+    }
+    if (dataSource != null) {
+      dataSource.close();
+      dataSource = null;
+    }
+  }
+
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("usable", usable);
+    stats.put("lagMillis", lagMillis);
+    stats.put("reads", reads.get());
+    stats.put("fallbacks", fallbacks.get());
+    return stats;
+  }
+}
@@ -0,0 +1,33 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.List;
+import org.keycloak.models.jpa.entities.CredentialEntity;
+import org.keycloak.models.jpa.entities.FederatedIdentityEntity;
+import org.keycloak.models.jpa.entities.GroupAttributeEntity;
+import org.keycloak.models.jpa.entities.GroupEntity;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.jpa.entities.UserGroupMembershipEntity;
+import org.keycloak.models.jpa.entities.UserRequiredActionEntity;
+import org.threatzero.keycloak.plugins.services.admin.users.jpa.TypedUserAttributeEntity;
+
+/**
+ * The JPA entities of the user tables searches read, for persistence units of their own like the
+ * replica's. Every entity {@link UserEntity} and {@link GroupEntity} map an association to must be
+ * listed, or Hibernate refuses to build the unit.
+ */
+final class SearchEntities {
+  static final List<Class<?>> CLASSES =
+      List.of(
+          UserEntity.class,
+          UserAttributeEntity.class,
+          UserRequiredActionEntity.class,
+          CredentialEntity.class,
+          FederatedIdentityEntity.class,
+          UserGroupMembershipEntity.class,
+          GroupEntity.class,
+          GroupAttributeEntity.class,
+          TypedUserAttributeEntity.class);
+
+  private SearchEntities() {}
+}
@@ -0,0 +1,99 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.connections.jpa.JpaConnectionProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+
+/**
+ * The plugin's optional search indexes found in the database. They are created by the opt-in
+ * {@code users-by-attribute-indexes} changelog, some only on some databases, so they are detected
+ * by name from the JDBC metadata rather than assumed.
+ */
+public class SearchIndexes {
+  private static final Logger logger = Logger.getLogger(SearchIndexes.class);
+
+  /** B-tree index on {@code USER_ATTRIBUTE (NAME, lower(VALUE))}. */
+  static final String ATTRIBUTE_LOWER_VALUE = "IDX_TZ_USER_ATTR_LOWER_VALUE";
+
+  /** Trigram index on {@code USER_ATTRIBUTE (lower(VALUE))}. */
+  static final String ATTRIBUTE_VALUE_TRIGRAM = "IDX_TZ_USER_ATTR_VALUE_TRGM";
+
+  public static final SearchIndexes NONE = new SearchIndexes(Set.of());
+
+  private static final String PREFIX = "IDX_TZ_";
+  private static final List<String> TABLES = List.of("USER_ATTRIBUTE", "USER_ENTITY");
+
+  private final Set<String> names;
+
+  public SearchIndexes(Set<String> names) {
+    this.names = Collections.unmodifiableSet(new TreeSet<>(names));
+  }
+
+  public Set<String> getNames() {
+    return names;
+  }
+
+  public boolean has(String name) {
+    return names.contains(name);
+  }
+
+  /**
+   * Returns whether a {@code lower(VALUE) LIKE} pattern for the operator can use an index on
+   * attribute values. Case-sensitive patterns can't use Keycloak's own {@code (NAME, VALUE)} index
+   * on every database, so they are prefiltered through the lowercased value when this holds.
+   */
+  boolean canPrefilterAttribute(QueryFilter.Condition.Operator operator) {
+    switch (operator) {
+      case STARTS:
+        return has(ATTRIBUTE_LOWER_VALUE) || has(ATTRIBUTE_VALUE_TRIGRAM);
+      case CONTAINS:
+      case ENDS:
+        return has(ATTRIBUTE_VALUE_TRIGRAM);
+      default:
+        return false;
+    }
+  }
+
+  /** Reads the plugin's indexes on the user tables from the database's metadata. */
+  public static SearchIndexes detect(KeycloakSession session) {
+    JpaConnectionProviderFactory factory =
+        (JpaConnectionProviderFactory)
+            session.getKeycloakSessionFactory().getProviderFactory(JpaConnectionProvider.class);
+
+    Set<String> names = new TreeSet<>();
+    try (Connection connection = factory.getConnection()) {
+      DatabaseMetaData metaData = connection.getMetaData();
+      for (String table : TABLES) {
+        // Unquoted names are stored upper case by most databases and lower case by PostgreSQL.
+        for (String name : Set.of(table, table.toLowerCase(Locale.ROOT))) {
+          try (ResultSet rs = metaData.getIndexInfo(null, factory.getSchema(), name, false, true)) {
+            while (rs.next()) {
+              String index = rs.getString("INDEX_NAME");
+              if (index != null && index.toUpperCase(Locale.ROOT).startsWith(PREFIX)) {
+                names.add(index.toUpperCase(Locale.ROOT));
+              }
+            }
+          }
+        }
+      }
+    } catch (SQLException e) {
+      logger.warn("Failed to detect search indexes, searching without them", e);
+      return NONE;
+    }
+
+    logger.debugf("Detected search indexes %s", names);
+    return new SearchIndexes(names);
+  }
+}
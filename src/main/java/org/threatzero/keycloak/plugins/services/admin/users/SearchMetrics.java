@@ -0,0 +1,212 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.hibernate.query.spi.SqmQuery;
+import org.jboss.logging.Logger;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import jakarta.persistence.TypedQuery;
+
+/**
+ * Records how long each phase of a search takes and how many users it returns, as Micrometer
+ * meters tagged by realm, filter shape and outcome, and logs searches slower than a threshold with
+ * their filter, query and phase breakdown. Searches that time out or fail are recorded and logged
+ * too. Only the first {@code maxShapes} shapes seen on the node get a tag of their own, the others
+ * share {@value #OTHER_SHAPE}, so clients sending ever new filters can't grow the number of meters
+ * without bound.
+ */
+public class SearchMetrics {
+  private static final Logger logger = Logger.getLogger(SearchMetrics.class);
+
+  static final String PHASE_TIMER = "keycloak.users_by_attribute.phase";
+  static final String RESULTS_SUMMARY = "keycloak.users_by_attribute.results";
+  static final String MATCHED_SUMMARY = "keycloak.users_by_attribute.matched";
+  static final String OTHER_SHAPE = "other";
+  static final String SUCCESS = "success";
+  static final String TIMEOUT = "timeout";
+  static final String ERROR = "error";
+
+  private final MeterRegistry registry;
+  private final long slowThresholdMillis;
+  private final int maxShapes;
+  private final Set<String> shapeTags = ConcurrentHashMap.newKeySet();
+
+  public SearchMetrics(MeterRegistry registry, long slowThresholdMillis, int maxShapes) {
+    this.registry = registry;
+    this.slowThresholdMillis = slowThresholdMillis;
+    this.maxShapes = maxShapes;
+  }
+
+  /** Starts timing a search of the realm. */
+  public Timing start(String realm) {
+    return new Timing(realm);
+  }
+
+  /**
+   * Returns a short, stable tag for a filter shape. Shapes can be long, so meters carry this hash
+   * and the slow log prints both.
+   */
+  static String shapeTag(String shape) {
+    return String.format("%08x", shape.hashCode());
+  }
+
+  /** Returns the shape's tag if it is among the first {@code maxShapes} seen, else "other". */
+  String boundedShapeTag(String shape) {
+    String tag = shapeTag(shape);
+    if (shapeTags.contains(tag)) {
+      return tag;
+    }
+    // Racing threads may let a few more shapes in, which is harmless.
+    if (shapeTags.size() < maxShapes) {
+      shapeTags.add(tag);
+      return tag;
+    }
+    return OTHER_SHAPE;
+  }
+
+  /** The phases of one search, timed one after the other on the request's thread. */
+  public class Timing {
+    private final String realm;
+    private final long started = System.nanoTime();
+    private long last = started;
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private String filter = "null";
+    private String shape = "";
+    private TypedQuery<?> query;
+    private boolean finished;
+
+    private Timing(String realm) {
+      this.realm = realm;
+    }
+
+    /** Ends the current phase, which started when the previous one ended. */
+    public void phase(String name) {
+      long now = System.nanoTime();
+      phases.merge(name, now - last, Long::sum);
+      last = now;
+    }
+
+    /** Times a task within the current phase, e.g. loading groups during hydration. */
+    public <T> T time(String name, Supplier<T> task) {
+      long start = System.nanoTime();
+      try {
+        return task.get();
+      } finally {
+        phases.merge(name, System.nanoTime() - start, Long::sum);
+      }
+    }
+
+    /** Sets the normalized filter the search runs. */
+    public void setFilter(QueryFilter queryFilter) {
+      this.filter = String.valueOf(queryFilter);
+      this.shape = UserQueryBuilder.shapeOf(queryFilter);
+    }
+
+    /** Sets the page query, rendered only if the search turns out slow. */
+    public void setQuery(TypedQuery<?> query) {
+      this.query = query;
+    }
+
+    /** Records the phases and result sizes, and logs the search if it was slow. */
+    public void finish(int results, Long matched) {
+      if (finished) {
+        return;
+      }
+      String shapeTag = record(SUCCESS);
+      summary(RESULTS_SUMMARY, "Users returned per users-by-attribute page", shapeTag)
+          .record(results);
+      if (matched != null) {
+        summary(MATCHED_SUMMARY, "Users matching a users-by-attribute search", shapeTag)
+            .record(matched);
+      }
+    }
+
+    /**
+     * Records a search that ended with a timeout or an error, with the time since its last phase
+     * as a {@code failed} phase, and logs it if it was slow.
+     */
+    public void fail(String outcome) {
+      if (finished) {
+        return;
+      }
+      phase("failed");
+      record(outcome);
+    }
+
+    /** Records the phases with the outcome, logs the search if slow, and returns its shape tag. */
+    private String record(String outcome) {
+      finished = true;
+      long elapsed = System.nanoTime() - started;
+      String shapeTag = boundedShapeTag(shape);
+      phases.forEach(
+          (phase, nanos) ->
+              Timer.builder(PHASE_TIMER)
+                  .description("Time spent in each phase of a users-by-attribute search")
+                  .tag("realm", realm)
+                  .tag("shape", shapeTag)
+                  .tag("phase", phase)
+                  .tag("outcome", outcome)
+                  .register(registry)
+                  .record(nanos, TimeUnit.NANOSECONDS));
+
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+      if (slowThresholdMillis > 0 && elapsedMillis >= slowThresholdMillis) {
+        logger.warnf(
+            "Slow user search (%s) in realm %s took %d ms %s: filter=%s shape=%s (%s) query=%s",
+            outcome,
+            realm,
+            elapsedMillis,
+            breakdown(),
+            filter,
+            shape,
+            shapeTag(shape),
+            render(query));
+      }
+      return shapeTag;
+    }
+
+    private DistributionSummary summary(String name, String description, String shapeTag) {
+      return DistributionSummary.builder(name)
+          .description(description)
+          .tag("realm", realm)
+          .tag("shape", shapeTag)
+          // Micrometer only takes positive boundaries; empty results fall in the first bucket.
+          .serviceLevelObjectives(1, 10, 100, 1000, 10000, 100000)
+          .register(registry);
+    }
+
+    private String breakdown() {
+      StringBuilder breakdown = new StringBuilder("[");
+      phases.forEach(
+          (phase, nanos) -> {
+            if (breakdown.length() > 1) {
+              breakdown.append(", ");
+            }
+            breakdown.append(phase).append('=').append(TimeUnit.NANOSECONDS.toMillis(nanos));
+          });
+      return breakdown.append(" ms]").toString();
+    }
+  }
+
+  /** Renders a criteria query as the HQL Hibernate translates to SQL. */
+  private static String render(TypedQuery<?> query) {
+    if (query == null) {
+      return "none";
+    }
+    try {
+      return query.unwrap(SqmQuery.class).getSqmStatement().toHqlString();
+    } catch (RuntimeException e) {
+      return "unavailable";
+    }
+  }
+}
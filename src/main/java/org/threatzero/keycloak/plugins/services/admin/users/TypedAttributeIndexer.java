@@ -0,0 +1,387 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.threatzero.keycloak.plugins.services.admin.users.jpa.TypedUserAttributeEntity;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+import org.threatzero.keycloak.plugins.services.models.QueryOrder;
+import org.threatzero.keycloak.plugins.services.models.ValueType;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaDelete;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Root;
+
+/**
+ * Keeps the typed attribute side table ({@link TypedUserAttributeEntity}) in sync with the user
+ * attributes configured as numbers or dates. Values that don't parse as their type are skipped, so
+ * they never match a typed condition.
+ *
+ * <p>Single users are reindexed when they change on any node through the event listener or the
+ * plugin's own authenticators and mappers. Other writes, like imports, LDAP syncs or a disabled
+ * listener, are caught up by full rebuilds, run in the background on request and every refresh
+ * interval.
+ *
+ * <p>A realm is rebuilt by one node at a time, under a cluster-wide lock, and every node refreshes
+ * on the same wall clock schedule, so the node that starts first does the refresh and the others
+ * skip it. Typed rows are identified by their user, name and value, so the primary key keeps a
+ * value from being indexed twice, and reindexing a user locks its row, so concurrent reindexes of
+ * one user run one after the other.
+ */
+public class TypedAttributeIndexer {
+  private static final Logger logger = Logger.getLogger(TypedAttributeIndexer.class);
+
+  private static final int BATCH_SIZE = 500;
+
+  private static final String REBUILD_TASK = "users-by-attribute-typed-index-";
+
+  /** How long a rebuild's cluster-wide lock outlives a node that dies while holding it. */
+  private static final int REBUILD_LOCK_SECONDS = 3600;
+
+  private static final Set<QueryFilter.Condition.Operator> TYPED_OPERATORS =
+      EnumSet.of(
+          QueryFilter.Condition.Operator.EQ,
+          QueryFilter.Condition.Operator.IN,
+          QueryFilter.Condition.Operator.GT,
+          QueryFilter.Condition.Operator.GTE,
+          QueryFilter.Condition.Operator.LT,
+          QueryFilter.Condition.Operator.LTE);
+
+  private final Map<String, ValueType> attributes;
+  private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "users-by-attribute-typed-index");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  public TypedAttributeIndexer(Map<String, ValueType> attributes) {
+    this.attributes = Collections.unmodifiableMap(new LinkedHashMap<>(attributes));
+  }
+
+  /**
+   * Parses a comma separated list of typed attributes, like {@code seats:number,hired:date}.
+   * Invalid entries are logged and skipped.
+   */
+  public static TypedAttributeIndexer fromConfig(String config) {
+    Map<String, ValueType> attributes = new LinkedHashMap<>();
+    if (config != null) {
+      for (String entry : config.split(",")) {
+        if (entry.isBlank()) {
+          continue;
+        }
+        int separator = entry.lastIndexOf(':');
+        ValueType type =
+            separator > 0 ? ValueType.fromString(entry.substring(separator + 1).trim()) : null;
+        if (type == null || type == ValueType.STRING) {
+          logger.warnf("Ignoring typed attribute '%s', expected name:number or name:date", entry);
+          continue;
+        }
+        attributes.put(entry.substring(0, separator).trim(), type);
+      }
+    }
+    return new TypedAttributeIndexer(attributes);
+  }
+
+  public Map<String, ValueType> getAttributes() {
+    return attributes;
+  }
+
+  public boolean isEnabled() {
+    return !attributes.isEmpty();
+  }
+
+  /**
+   * Checks that every typed condition and order of a request refers to an attribute indexed with
+   * that type, since the side table has no rows for any other, and that typed conditions only use
+   * comparisons and values of their type.
+   *
+   * @throws IllegalArgumentException if one doesn't
+   */
+  public void validate(QueryFilter filter, QueryOrder order) {
+    if (filter != null) {
+      validate(filter);
+    }
+    if (order != null) {
+      order.getValues().forEach(o -> validate(o.getKey(), o.getType()));
+    }
+  }
+
+  private void validate(QueryFilter filter) {
+    filter.getQ().ifPresent(this::validate);
+    filter.getAnd().ifPresent(children -> children.forEach(this::validate));
+    filter.getOr().ifPresent(children -> children.forEach(this::validate));
+  }
+
+  private void validate(QueryFilter.Condition condition) {
+    ValueType type = condition.getType().orElse(null);
+    validate(condition.getKey(), type);
+    if (type == null || type == ValueType.STRING) {
+      return;
+    }
+
+    QueryFilter.Condition.Operator operator =
+        condition.getOp().orElse(QueryFilter.Condition.Operator.EQ);
+    if (!TYPED_OPERATORS.contains(operator)) {
+      throw new IllegalArgumentException(operator + " does not apply to " + type + " values");
+    }
+    condition.getValues().forEach(type::parse);
+  }
+
+  private void validate(String key, ValueType type) {
+    if (type != null && type != ValueType.STRING && attributes.get(key) != type) {
+      throw new IllegalArgumentException("'" + key + "' is not indexed as a " + type);
+    }
+  }
+
+  /**
+   * Replaces the typed rows of one user with ones built from its current attributes. The user's
+   * row stays locked until the transaction ends, so a concurrent reindex of the same user waits for
+   * this one and then reads the attributes it committed.
+   */
+  public void reindexUser(KeycloakSession session, String realmId, String userId) {
+    if (!isEnabled()) {
+      return;
+    }
+    EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    if (em.find(UserEntity.class, userId, LockModeType.PESSIMISTIC_WRITE) == null) {
+      // Deleting the user deleted its typed rows.
+      return;
+    }
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+
+    CriteriaDelete<TypedUserAttributeEntity> delete =
+        cb.createCriteriaDelete(TypedUserAttributeEntity.class);
+    Root<TypedUserAttributeEntity> typedRoot = delete.from(TypedUserAttributeEntity.class);
+    em.createQuery(delete.where(cb.equal(typedRoot.get("userId"), userId))).executeUpdate();
+
+    CriteriaQuery<UserAttributeEntity> qb = cb.createQuery(UserAttributeEntity.class);
+    Root<UserAttributeEntity> attributeRoot = qb.from(UserAttributeEntity.class);
+    qb.select(attributeRoot)
+        .where(
+            cb.and(
+                cb.equal(attributeRoot.get("user").get("id"), userId),
+                attributeRoot.get("name").in(attributes.keySet())));
+    Set<String> ids = new HashSet<>();
+    em.createQuery(qb).getResultStream().forEach(a -> persist(em, realmId, userId, a, ids));
+  }
+
+  /**
+   * Rebuilds the typed rows of every user of a realm, e.g. after changing the typed attributes or
+   * importing users. Rows are written in batches, clearing the persistence context after each.
+   * Callers other than tests go through {@link #scheduleReindex}, which keeps other nodes from
+   * rebuilding the realm at the same time.
+   *
+   * @return the number of typed rows written
+   */
+  public long reindexRealm(KeycloakSession session, String realmId) {
+    EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+
+    CriteriaDelete<TypedUserAttributeEntity> delete =
+        cb.createCriteriaDelete(TypedUserAttributeEntity.class);
+    Root<TypedUserAttributeEntity> typedRoot = delete.from(TypedUserAttributeEntity.class);
+    em.createQuery(delete.where(cb.equal(typedRoot.get("realmId"), realmId))).executeUpdate();
+    if (!isEnabled()) {
+      return 0L;
+    }
+
+    CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+    Root<UserAttributeEntity> attributeRoot = qb.from(UserAttributeEntity.class);
+    qb.select(cb.tuple(attributeRoot.get("user").get("id"), attributeRoot))
+        .where(
+            cb.and(
+                cb.equal(attributeRoot.get("user").get("realmId"), realmId),
+                attributeRoot.get("name").in(attributes.keySet())))
+        // Grouped by user, so that repeated values are only skipped per user.
+        .orderBy(cb.asc(attributeRoot.get("user").get("id")));
+
+    long written = 0;
+    String userId = null;
+    Set<String> ids = new HashSet<>();
+    try (Stream<Tuple> rows = em.createQuery(qb).getResultStream()) {
+      Iterator<Tuple> it = rows.iterator();
+      while (it.hasNext()) {
+        Tuple t = it.next();
+        if (!Objects.equals(userId, t.get(0, String.class))) {
+          userId = t.get(0, String.class);
+          ids.clear();
+        }
+        if (persist(em, realmId, userId, t.get(1, UserAttributeEntity.class), ids)) {
+          written++;
+          if (written % BATCH_SIZE == 0) {
+            em.flush();
+            em.clear();
+          }
+        }
+      }
+    }
+    em.flush();
+    return written;
+  }
+
+  /**
+   * Rebuilds the realm's typed rows in the background, unless a rebuild is already under way on
+   * this node. A rebuild under way on another node makes this one a no-op.
+   *
+   * @return whether a rebuild was scheduled
+   */
+  public boolean scheduleReindex(KeycloakSessionFactory factory, String realmId) {
+    if (!rebuilding.add(realmId)) {
+      return false;
+    }
+    executor.execute(() -> rebuild(factory, realmId));
+    return true;
+  }
+
+  /**
+   * Rebuilds the typed rows of every realm every {@code intervalMillis}, to catch up with changes
+   * no listener saw. Runs are aligned to multiples of the interval since the epoch, so all nodes
+   * start them together and only the first to lock a realm rebuilds it. Does nothing if the
+   * interval isn't positive.
+   */
+  public void scheduleRefresh(KeycloakSessionFactory factory, long intervalMillis) {
+    if (!isEnabled() || intervalMillis <= 0) {
+      return;
+    }
+    executor.scheduleAtFixedRate(
+        () -> {
+          try {
+            List<String> realmIds =
+                KeycloakModelUtils.runJobInTransactionWithResult(
+                    factory, s -> s.realms().getRealmsStream().map(RealmModel::getId).toList());
+            // Rebuilt one after the other on this thread, so no realm is locked while waiting.
+            realmIds.stream()
+                .filter(rebuilding::add)
+                .forEach(realmId -> rebuild(factory, realmId));
+          } catch (RuntimeException e) {
+            logger.warn("Failed to refresh the typed attribute index", e);
+          }
+        },
+        intervalMillis - System.currentTimeMillis() % intervalMillis,
+        intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Rebuilds a realm unless another node holds its lock. The rebuild commits in a transaction of
+   * its own before the lock is released. Clears the realm's {@link #rebuilding} flag.
+   */
+  private void rebuild(KeycloakSessionFactory factory, String realmId) {
+    try {
+      long started = System.currentTimeMillis();
+      ExecutionResult<Long> result =
+          KeycloakModelUtils.runJobInTransactionWithResult(
+              factory,
+              s ->
+                  s.getProvider(ClusterProvider.class)
+                      .executeIfNotExecuted(
+                          REBUILD_TASK + realmId,
+                          REBUILD_LOCK_SECONDS,
+                          () ->
+                              KeycloakModelUtils.runJobInTransactionWithResult(
+                                  factory, r -> reindexRealm(r, realmId))));
+      if (result.isExecuted()) {
+        logger.debugf(
+            "Rebuilt the typed attribute index of realm %s, %d rows in %d ms",
+            realmId, result.getResult(), System.currentTimeMillis() - started);
+      } else {
+        logger.debugf("Skipped rebuilding realm %s, another node is rebuilding it", realmId);
+      }
+    } catch (RuntimeException e) {
+      logger.warnf(e, "Failed to rebuild the typed attribute index of realm %s", realmId);
+    } finally {
+      rebuilding.remove(realmId);
+    }
+  }
+
+  /** Stops pending rebuilds and the refresh schedule. */
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Writes the typed row of one attribute value, unless it doesn't parse or {@code ids}, the rows
+   * already written for the user, has it.
+   */
+  private boolean persist(
+      EntityManager em,
+      String realmId,
+      String userId,
+      UserAttributeEntity attribute,
+      Set<String> ids) {
+    ValueType type = attributes.get(attribute.getName());
+    Object value;
+    try {
+      value = type.parse(attribute.getValue());
+    } catch (IllegalArgumentException e) {
+      logger.debugf("Skipping typed attribute %s of user %s: %s", attribute.getName(), userId, e);
+      return false;
+    }
+
+    String id = typedId(userId, attribute.getName(), value);
+    if (!ids.add(id)) {
+      return false;
+    }
+
+    TypedUserAttributeEntity typed = new TypedUserAttributeEntity();
+    typed.setId(id);
+    typed.setUserId(userId);
+    typed.setRealmId(realmId);
+    typed.setName(attribute.getName());
+    if (type == ValueType.NUMBER) {
+      typed.setNumberValue((BigDecimal) value);
+    } else {
+      typed.setDateValue((Long) value);
+    }
+    em.persist(typed);
+    return true;
+  }
+
+  /**
+   * The id of a user's typed value, derived from it so that the primary key is unique on {@code
+   * (USER_ID, NAME, value)}. Numbers are compared at the column's scale, so {@code 10} and {@code
+   * 10.0} get the same id.
+   */
+  static String typedId(String userId, String name, Object value) {
+    String canonical =
+        value instanceof BigDecimal number
+            ? number.setScale(10, RoundingMode.HALF_UP).stripTrailingZeros().toPlainString()
+            : value.toString();
+    return UUID.nameUUIDFromBytes(
+            (userId + '\0' + name + '\0' + canonical).getBytes(StandardCharsets.UTF_8))
+        .toString();
+  }
+}
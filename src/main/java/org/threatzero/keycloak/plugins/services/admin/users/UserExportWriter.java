@@ -0,0 +1,188 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+/** Serializes exported users, one record per user, to an output stream. */
+public abstract class UserExportWriter {
+  public static final String NDJSON = "application/x-ndjson";
+  public static final String CSV = "text/csv";
+
+  private static final String MULTI_VALUE_SEPARATOR = "|";
+
+  protected final Writer out;
+
+  protected UserExportWriter(OutputStream output) {
+    this.out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+  }
+
+  public static UserExportWriter create(
+      Format format, OutputStream output, List<String> attributeColumns) {
+    switch (format) {
+      case CSV:
+        return new CsvWriter(output, attributeColumns);
+      case NDJSON:
+      default:
+        return new NdjsonWriter(output);
+    }
+  }
+
+  public void writeHeader() throws IOException {}
+
+  public void write(List<UserRepresentation> users) throws IOException {
+    for (UserRepresentation user : users) {
+      write(user);
+    }
+    // Push each chunk to the client as soon as it's ready.
+    out.flush();
+  }
+
+  protected abstract void write(UserRepresentation user) throws IOException;
+
+  /** Flushes any buffered output. The underlying stream is left open. */
+  public void finish() throws IOException {
+    out.flush();
+  }
+
+  public static enum Format {
+    NDJSON(UserExportWriter.NDJSON),
+    CSV(UserExportWriter.CSV);
+
+    private final String mediaType;
+
+    Format(String mediaType) {
+      this.mediaType = mediaType;
+    }
+
+    public String getMediaType() {
+      return mediaType;
+    }
+
+    /** Parses a format name, defaulting to NDJSON. Returns null for unknown formats. */
+    public static Format fromString(String format) {
+      if (format == null || format.isBlank()) {
+        return NDJSON;
+      }
+      try {
+        return Format.valueOf(format.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return name().toLowerCase();
+    }
+  }
+
+  private static class NdjsonWriter extends UserExportWriter {
+    NdjsonWriter(OutputStream output) {
+      super(output);
+    }
+
+    @Override
+    protected void write(UserRepresentation user) throws IOException {
+      out.write(JsonSerialization.writeValueAsString(user));
+      out.write('\n');
+    }
+  }
+
+  private static class CsvWriter extends UserExportWriter {
+    private static final List<String> CORE_COLUMNS =
+        List.of(
+            "id",
+            "username",
+            "email",
+            "firstName",
+            "lastName",
+            "enabled",
+            "emailVerified",
+            "createdTimestamp",
+            "groups");
+    private static final String FORMULA_PREFIXES = "=+-@\t\r";
+
+    private final List<String> attributeColumns;
+
+    CsvWriter(OutputStream output, List<String> attributeColumns) {
+      super(output);
+      this.attributeColumns = attributeColumns;
+    }
+
+    @Override
+    public void writeHeader() throws IOException {
+      List<String> header = new ArrayList<>(CORE_COLUMNS);
+      header.addAll(attributeColumns);
+      writeRow(header);
+    }
+
+    @Override
+    protected void write(UserRepresentation user) throws IOException {
+      List<String> row = new ArrayList<>();
+      row.add(user.getId());
+      row.add(user.getUsername());
+      row.add(user.getEmail());
+      row.add(user.getFirstName());
+      row.add(user.getLastName());
+      row.add(stringOf(user.isEnabled()));
+      row.add(stringOf(user.isEmailVerified()));
+      row.add(stringOf(user.getCreatedTimestamp()));
+      row.add(join(user.getGroups()));
+      Map<String, List<String>> userAttributes = user.getAttributes();
+      for (String attribute : attributeColumns) {
+        row.add(userAttributes == null ? null : join(userAttributes.get(attribute)));
+      }
+      writeRow(row);
+    }
+
+    private void writeRow(List<String> values) throws IOException {
+      for (int i = 0; i < values.size(); i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        out.write(escape(values.get(i)));
+      }
+      out.write("\r\n");
+    }
+
+    private static String stringOf(Object value) {
+      return value == null ? null : value.toString();
+    }
+
+    private static String join(List<String> values) {
+      return values == null ? null : String.join(MULTI_VALUE_SEPARATOR, values);
+    }
+
+    /**
+     * Quotes a field per RFC 4180 when it contains a delimiter, quote or line break. A field that
+     * a spreadsheet would read as a formula, i.e. one starting with {@code =}, {@code +}, {@code
+     * -}, {@code @}, a tab or a carriage return, is prefixed with {@code '} so it stays text:
+     * users control their own attribute values.
+     */
+    private static String escape(String value) {
+      if (value == null) {
+        return "";
+      }
+      if (!value.isEmpty() && FORMULA_PREFIXES.indexOf(value.charAt(0)) >= 0) {
+        value = "'" + value;
+      }
+      if (value.indexOf(',') < 0
+          && value.indexOf('"') < 0
+          && value.indexOf('\n') < 0
+          && value.indexOf('\r') < 0) {
+        return value;
+      }
+      return '"' + value.replace("\"", "\"\"") + '"';
+    }
+  }
+}
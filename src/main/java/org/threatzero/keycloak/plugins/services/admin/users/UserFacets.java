@@ -0,0 +1,157 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.jpa.entities.GroupEntity;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.jpa.entities.UserGroupMembershipEntity;
+import org.threatzero.keycloak.plugins.services.models.Facet;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Expression;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+
+/**
+ * Counts the users matching a filter per value of an attribute, or per group, with {@code GROUP
+ * BY} queries. Users with several values are counted once under each of them.
+ */
+public class UserFacets {
+  private final UserQueryBuilder queryBuilder;
+  private final QueryGuard guard;
+  private final EntityManager em;
+  private final UserHydrator hydrator;
+
+  public UserFacets(
+      UserQueryBuilder queryBuilder, QueryGuard guard, EntityManager em, UserHydrator hydrator) {
+    this.queryBuilder = queryBuilder;
+    this.guard = guard;
+    this.em = em;
+    this.hydrator = hydrator;
+  }
+
+  /**
+   * Returns the {@code size} most frequent values of {@code key} among the users matching the
+   * filter, and how many of these users have any other value. A key of {@link
+   * UserQueryBuilder#GROUPS} counts users per group path, any other key must be an attribute.
+   */
+  public Facet facet(QueryFilter filter, String key, int size) {
+    boolean groups = key.equals(UserQueryBuilder.GROUPS);
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+
+    CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+    QueryParameters params = new QueryParameters();
+    Root<UserEntity> root = qb.from(UserEntity.class);
+    Dimension dimension = dimension(qb, cb, root, key, groups, params);
+    Expression<Long> users = count(qb, cb, root, filter, params, dimension);
+    qb.select(cb.tuple(dimension.value(), users))
+        .groupBy(dimension.value())
+        .orderBy(cb.desc(users), cb.asc(dimension.value()));
+    List<Tuple> rows =
+        guard
+            .withTimeout(params.bind(em.createQuery(qb), QueryValues.of(filter)))
+            .setMaxResults(size)
+            .getResultList();
+
+    Map<String, Long> values = new LinkedHashMap<>();
+    List<String> top = rows.stream().map(t -> t.get(0, String.class)).toList();
+    for (Tuple row : rows) {
+      String value = row.get(0, String.class);
+      if (groups) {
+        value = hydrator.groupPath(value);
+      }
+      if (value != null) {
+        values.merge(value, row.get(1, Long.class), Long::sum);
+      }
+    }
+
+    Facet facet = new Facet();
+    facet.setKey(key);
+    facet.setValues(values);
+    facet.setOther(rows.size() < size ? 0L : countOther(filter, key, groups, top));
+    return facet;
+  }
+
+  /** Counts the matching users with a value for the key other than the given ones. */
+  private long countOther(QueryFilter filter, String key, boolean groups, List<String> top) {
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+
+    CriteriaQuery<Long> qb = cb.createQuery(Long.class);
+    QueryParameters params = new QueryParameters();
+    Root<UserEntity> root = qb.from(UserEntity.class);
+    Dimension dimension = dimension(qb, cb, root, key, groups, params);
+    dimension =
+        new Dimension(
+            dimension.value(),
+            cb.and(
+                dimension.predicate(),
+                cb.not(
+                    UserQueryBuilder.in(
+                        cb,
+                        dimension.value(),
+                        top.size(),
+                        params,
+                        (v, i) -> UserQueryBuilder.padded(top, i)))));
+    qb.select(count(qb, cb, root, filter, params, dimension));
+
+    return guard
+        .withTimeout(params.bind(em.createQuery(qb), QueryValues.of(filter)))
+        .getResultStream()
+        .findFirst()
+        .orElse(0L);
+  }
+
+  /** Applies the filter and the dimension to the query and returns its user count. */
+  private Expression<Long> count(
+      CriteriaQuery<?> qb,
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      QueryFilter filter,
+      QueryParameters params,
+      Dimension dimension) {
+    qb.where(
+        cb.and(queryBuilder.buildPredicate(qb, cb, root, filter, params), dimension.predicate()));
+    // Joins of the filter can match a user several times per value.
+    return cb.countDistinct(root.get("id"));
+  }
+
+  /**
+   * Joins the rows holding the key's values to the users. The attribute name is a parameter, so
+   * the query text doesn't depend on the key.
+   */
+  private static Dimension dimension(
+      CriteriaQuery<?> qb,
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      String key,
+      boolean groups,
+      QueryParameters params) {
+    if (groups) {
+      Root<UserGroupMembershipEntity> membershipRoot = qb.from(UserGroupMembershipEntity.class);
+      Root<GroupEntity> groupRoot = qb.from(GroupEntity.class);
+      return new Dimension(
+          membershipRoot.get("groupId"),
+          cb.and(
+              cb.equal(membershipRoot.get("user").get("id"), root.get("id")),
+              cb.equal(groupRoot.get("id"), membershipRoot.get("groupId")),
+              cb.equal(groupRoot.get("type"), GroupModel.Type.REALM.intValue())));
+    }
+
+    Root<UserAttributeEntity> attributeRoot = qb.from(UserAttributeEntity.class);
+    return new Dimension(
+        attributeRoot.get("value"),
+        cb.and(
+            cb.equal(attributeRoot.get("user").get("id"), root.get("id")),
+            cb.equal(attributeRoot.get("name"), params.add(cb, String.class, v -> key))));
+  }
+
+  private record Dimension(Expression<String> value, Predicate predicate) {}
+}
@@ -0,0 +1,372 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.keycloak.credential.CredentialInputUpdater;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.credential.PasswordCredentialProvider;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.credential.OTPCredentialModel;
+import org.keycloak.models.jpa.entities.CredentialEntity;
+import org.keycloak.models.jpa.entities.GroupEntity;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.jpa.entities.UserGroupMembershipEntity;
+import org.keycloak.models.jpa.entities.UserRequiredActionEntity;
+import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.storage.StorageId;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Expression;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+
+/** Turns pages of {@link UserEntity} rows into {@link UserRepresentation}s with their groups. */
+public class UserHydrator {
+  /** Maximum number of user ids per batched query. */
+  private static final int IN_CHUNK_SIZE = 512;
+
+  private final KeycloakSession session;
+  private final RealmModel realm;
+  private final EntityManager em;
+  private final BoundedCache<String, String> groupPaths;
+  private Function<List<String>, Map<String, List<String>>> groupLoader = this::loadGroups;
+
+  public UserHydrator(
+      KeycloakSession session,
+      RealmModel realm,
+      EntityManager em,
+      BoundedCache<String, String> groupPaths) {
+    this.session = session;
+    this.realm = realm;
+    this.em = em;
+    this.groupPaths = groupPaths;
+  }
+
+  /**
+   * Builds the same representations as {@link ModelToRepresentation}, but loads the attributes,
+   * required actions and OTP credentials of the page's local users with one query each (per chunk
+   * of {@value #IN_CHUNK_SIZE} users) instead of lazily per user.
+   *
+   * <p>The origin, OTP status and disableable credential types of a federated user come from its
+   * storage provider, so such users go through {@link ModelToRepresentation} one by one, as does
+   * every user if a local credential provider can disable credentials.
+   */
+  public List<UserRepresentation> toRepresentations(List<UserEntity> users) {
+    boolean localUpdaters = hasLocalCredentialUpdaters();
+    Map<String, UserRepresentation> fromModels = new HashMap<>();
+    List<String> localIds = new ArrayList<>();
+    for (UserEntity entity : users) {
+      UserModel model =
+          localUpdaters || !isLocal(entity)
+              ? session.users().getUserById(realm, entity.getId())
+              : null;
+      if (model != null) {
+        fromModels.put(
+            entity.getId(), ModelToRepresentation.toRepresentation(session, realm, model));
+      } else {
+        localIds.add(entity.getId());
+      }
+    }
+
+    Map<String, Map<String, List<String>>> attributes = loadAttributes(localIds, null);
+    Map<String, List<String>> requiredActions = loadRequiredActions(localIds);
+    Set<String> otpUsers = loadUsersWithCredential(localIds, OTPCredentialModel.TYPE);
+
+    List<UserRepresentation> results = new ArrayList<>(users.size());
+    for (UserEntity entity : users) {
+      UserRepresentation fromModel = fromModels.get(entity.getId());
+      if (fromModel != null) {
+        results.add(fromModel);
+        continue;
+      }
+      UserRepresentation user = new UserRepresentation();
+      user.setId(entity.getId());
+      user.setOrigin(new StorageId(entity.getId()).getProviderId());
+      user.setUsername(entity.getUsername());
+      user.setCreatedTimestamp(entity.getCreatedTimestamp());
+      user.setLastName(entity.getLastName());
+      user.setFirstName(entity.getFirstName());
+      user.setEmail(entity.getEmail());
+      user.setEnabled(entity.isEnabled());
+      user.setEmailVerified(entity.isEmailVerified());
+      user.setTotp(otpUsers.contains(entity.getId()));
+      // Without a storage provider or a local provider that can, nothing can disable credentials.
+      user.setDisableableCredentialTypes(new HashSet<>());
+      user.setFederationLink(entity.getFederationLink());
+      user.setNotBefore(entity.getNotBefore());
+      user.setRequiredActions(requiredActions.getOrDefault(entity.getId(), new ArrayList<>()));
+      Map<String, List<String>> userAttributes = attributes.get(entity.getId());
+      if (userAttributes != null) {
+        user.setAttributes(userAttributes);
+      }
+      results.add(user);
+    }
+    return populateGroups(results);
+  }
+
+  /** Returns whether a user is stored and linked locally, i.e. no storage provider backs it. */
+  private static boolean isLocal(UserEntity entity) {
+    return entity.getFederationLink() == null && StorageId.isLocalStorage(entity.getId());
+  }
+
+  /**
+   * Returns whether a credential provider of the server, e.g. one added by an extension, can
+   * disable the credentials of local users. Keycloak's password provider is an updater too, but
+   * never reports any disableable type.
+   */
+  private boolean hasLocalCredentialUpdaters() {
+    return session
+        .getKeycloakSessionFactory()
+        .getProviderFactoriesStream(CredentialProvider.class)
+        .map(f -> session.getProvider(CredentialProvider.class, f.getId()))
+        .anyMatch(
+            p ->
+                p instanceof CredentialInputUpdater
+                    && p.getClass() != PasswordCredentialProvider.class);
+  }
+
+  /**
+   * Builds lightweight representations from the rows of a projected page query without loading
+   * user entities. Each row holds the values of {@code columns}, in order. Only the id and the
+   * requested fields are set: core columns, attributes and, if requested, groups.
+   */
+  public List<UserRepresentation> fromColumns(
+      List<Tuple> rows, List<String> columns, Set<String> fields) {
+    List<UserRepresentation> results = new ArrayList<>(rows.size());
+    for (Tuple row : rows) {
+      UserRepresentation user = new UserRepresentation();
+      for (int i = 0; i < columns.size(); i++) {
+        String column = columns.get(i);
+        if (column.equals("id") || fields.contains(column)) {
+          setColumn(user, column, row.get(i));
+        }
+      }
+      results.add(user);
+    }
+
+    List<String> attributeNames =
+        fields.stream()
+            .filter(f -> UserQueryBuilder.isAttributeName(f) && !f.equals(UserQueryBuilder.GROUPS))
+            .toList();
+    if (!attributeNames.isEmpty()) {
+      Map<String, Map<String, List<String>>> attributes =
+          loadAttributes(results.stream().map(UserRepresentation::getId).toList(), attributeNames);
+      results.forEach(u -> u.setAttributes(attributes.getOrDefault(u.getId(), Map.of())));
+    }
+
+    return fields.contains(UserQueryBuilder.GROUPS) ? populateGroups(results) : results;
+  }
+
+  /**
+   * Loads the attributes of the given users, by user id and then attribute name. Only the named
+   * attributes are loaded, or all of them if {@code names} is null.
+   */
+  public Map<String, Map<String, List<String>>> loadAttributes(
+      List<String> userIds, List<String> names) {
+    Map<String, Map<String, List<String>>> attributes = new HashMap<>();
+    forEachRow(
+        userIds,
+        (cb, params, chunk) -> {
+          CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+          Root<UserAttributeEntity> attributeRoot = qb.from(UserAttributeEntity.class);
+          Expression<String> userId = attributeRoot.get("user").get("id");
+
+          Predicate thePredicate = in(cb, userId, chunk, params);
+          if (names != null) {
+            thePredicate = cb.and(thePredicate, in(cb, attributeRoot.get("name"), names, params));
+          }
+          return qb.select(cb.tuple(userId, attributeRoot)).where(thePredicate);
+        },
+        t -> {
+          UserAttributeEntity attribute = t.get(1, UserAttributeEntity.class);
+          attributes
+              .computeIfAbsent(t.get(0, String.class), k -> new HashMap<>())
+              .computeIfAbsent(attribute.getName(), k -> new ArrayList<>())
+              .add(attribute.getValue());
+        });
+    return attributes;
+  }
+
+  /** Loads the required actions of the given users, by user id. */
+  public Map<String, List<String>> loadRequiredActions(List<String> userIds) {
+    Map<String, List<String>> requiredActions = new HashMap<>();
+    forEachRow(
+        userIds,
+        (cb, params, chunk) -> {
+          CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+          Root<UserRequiredActionEntity> actionRoot = qb.from(UserRequiredActionEntity.class);
+          Expression<String> userId = actionRoot.get("user").get("id");
+
+          return qb.select(cb.tuple(userId, actionRoot.get("action")))
+              .where(in(cb, userId, chunk, params));
+        },
+        t ->
+            requiredActions
+                .computeIfAbsent(t.get(0, String.class), k -> new ArrayList<>())
+                .add(t.get(1, String.class)));
+    return requiredActions;
+  }
+
+  /** Returns the ids of the given users that have a stored credential of the given type. */
+  public Set<String> loadUsersWithCredential(List<String> userIds, String type) {
+    Set<String> users = new HashSet<>();
+    forEachRow(
+        userIds,
+        (cb, params, chunk) -> {
+          CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+          Root<CredentialEntity> credentialRoot = qb.from(CredentialEntity.class);
+          Expression<String> userId = credentialRoot.get("user").get("id");
+
+          return qb.select(cb.tuple(userId))
+              .distinct(true)
+              .where(
+                  cb.and(
+                      in(cb, userId, chunk, params),
+                      cb.equal(
+                          credentialRoot.get("type"),
+                          params.add(cb, String.class, v -> type))));
+        },
+        t -> users.add(t.get(0, String.class)));
+    return users;
+  }
+
+  /**
+   * Runs the query built for every chunk of user ids and passes each result row to {@code action}.
+   * Chunks keep IN lists, padded to a power of two, within the limits of every supported database.
+   */
+  private void forEachRow(List<String> userIds, ChunkQuery query, Consumer<Tuple> action) {
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+    for (int i = 0; i < userIds.size(); i += IN_CHUNK_SIZE) {
+      List<String> chunk = userIds.subList(i, Math.min(i + IN_CHUNK_SIZE, userIds.size()));
+      QueryParameters params = new QueryParameters();
+      CriteriaQuery<Tuple> qb = query.build(cb, params, chunk);
+      params.bind(em.createQuery(qb), QueryValues.of(null)).getResultStream().forEach(action);
+    }
+  }
+
+  private static Predicate in(
+      CriteriaBuilder cb,
+      Expression<String> expression,
+      List<String> values,
+      QueryParameters params) {
+    return UserQueryBuilder.in(
+        cb, expression, values.size(), params, (v, i) -> UserQueryBuilder.padded(values, i));
+  }
+
+  @FunctionalInterface
+  private interface ChunkQuery {
+    CriteriaQuery<Tuple> build(CriteriaBuilder cb, QueryParameters params, List<String> userIds);
+  }
+
+  private static void setColumn(UserRepresentation user, String column, Object value) {
+    switch (column) {
+      case "id":
+        user.setId((String) value);
+        break;
+      case UserModel.USERNAME:
+        user.setUsername((String) value);
+        break;
+      case UserModel.EMAIL:
+        user.setEmail((String) value);
+        break;
+      case UserModel.FIRST_NAME:
+        user.setFirstName((String) value);
+        break;
+      case UserModel.LAST_NAME:
+        user.setLastName((String) value);
+        break;
+      case UserModel.EMAIL_VERIFIED:
+        user.setEmailVerified((Boolean) value);
+        break;
+      case UserModel.ENABLED:
+        user.setEnabled((Boolean) value);
+        break;
+      case UserQueryBuilder.CREATED_TIMESTAMP:
+        user.setCreatedTimestamp((Long) value);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Makes {@link #populateGroups} get group paths from {@code loader} instead of loading them, e.g.
+   * from a query already running concurrently.
+   */
+  public UserHydrator withGroupLoader(
+      Function<List<String>, Map<String, List<String>>> loader) {
+    this.groupLoader = loader;
+    return this;
+  }
+
+  /** Sets the group paths of the given users. */
+  public List<UserRepresentation> populateGroups(List<UserRepresentation> users) {
+    Map<String, List<String>> userGroups =
+        groupLoader.apply(users.stream().map(UserRepresentation::getId).toList());
+    users.forEach(u -> u.setGroups(userGroups.getOrDefault(u.getId(), List.of())));
+    return users;
+  }
+
+  /**
+   * Loads the group paths of the given users, by user id. Memberships are loaded with one query
+   * per chunk of users, and paths come from the node's group path cache, so each group's path is
+   * only resolved once until a group in the realm changes.
+   */
+  public Map<String, List<String>> loadGroups(List<String> userIds) {
+    Map<String, List<String>> userGroups = new HashMap<>();
+    forEachRow(
+        userIds,
+        (cb, params, chunk) -> {
+          CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+          Root<UserGroupMembershipEntity> membershipRoot =
+              qb.from(UserGroupMembershipEntity.class);
+          Root<GroupEntity> groupRoot = qb.from(GroupEntity.class);
+          Expression<String> userId = membershipRoot.get("user").get("id");
+
+          Predicate thisPredicate =
+              cb.and(
+                  in(cb, userId, chunk, params),
+                  cb.equal(groupRoot.get("id"), membershipRoot.get("groupId")),
+                  cb.equal(groupRoot.get("type"), GroupModel.Type.REALM.intValue()));
+
+          return qb.select(cb.tuple(userId, groupRoot.get("id"))).where(thisPredicate);
+        },
+        t -> {
+          String path = groupPath(t.get(1, String.class));
+          if (path != null) {
+            userGroups.computeIfAbsent(t.get(0, String.class), k -> new ArrayList<>()).add(path);
+          }
+        });
+    return userGroups;
+  }
+
+  /** Returns the path of a group of the realm, or null if it no longer exists. */
+  String groupPath(String groupId) {
+    return groupPaths.computeIfAbsent(
+        groupPathKey(realm.getId(), groupId),
+        k -> {
+          GroupModel group = session.groups().getGroupById(realm, groupId);
+          return group != null ? ModelToRepresentation.buildGroupPath(group) : null;
+        });
+  }
+
+  /** Returns the group path cache key of a group. Keys of a realm share the realm id prefix. */
+  static String groupPathKey(String realmId, String groupId) {
+    return realmId + ":" + groupId;
+  }
+}
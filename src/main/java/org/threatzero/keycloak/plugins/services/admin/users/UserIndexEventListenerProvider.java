@@ -0,0 +1,168 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+
+/**
+ * Reindexes users whose attributes may have changed, in the typed attribute side table and in this
+ * node's n-gram index, and bumps the realm's user data version for any change that can show up in
+ * search results. Indexing runs in its own transaction once the change is committed, so it sees
+ * the new values and a failure to index never rolls back the change itself. The listener must be
+ * enabled for the realm (with admin events, for admin changes); writes it never sees, like imports,
+ * LDAP syncs or changes made while it was disabled, are caught up by the periodic rebuild or a
+ * {@code typed-index/rebuild}. Plugin code that sets attributes outside of an event calls {@link
+ * #userChanged(KeycloakSession, String, String)} instead.
+ */
+public class UserIndexEventListenerProvider implements EventListenerProvider {
+  private static final Logger logger = Logger.getLogger(UserIndexEventListenerProvider.class);
+
+  private static final Set<EventType> ATTRIBUTE_EVENTS =
+      EnumSet.of(
+          EventType.REGISTER,
+          EventType.UPDATE_PROFILE,
+          EventType.UPDATE_EMAIL,
+          EventType.VERIFY_PROFILE,
+          EventType.IDENTITY_PROVIDER_FIRST_LOGIN);
+
+  /** Events that change what a search returns for the user, besides its attributes. */
+  private static final Set<EventType> USER_DATA_EVENTS =
+      EnumSet.of(
+          EventType.VERIFY_EMAIL,
+          EventType.DELETE_ACCOUNT,
+          EventType.UPDATE_TOTP,
+          EventType.REMOVE_TOTP,
+          EventType.UPDATE_CREDENTIAL,
+          EventType.REMOVE_CREDENTIAL);
+
+  private static final Set<ResourceType> USER_DATA_RESOURCES =
+      EnumSet.of(ResourceType.USER, ResourceType.GROUP_MEMBERSHIP, ResourceType.GROUP);
+
+  private final KeycloakSession session;
+  private final TypedAttributeIndexer typedIndexer;
+  private final NgramIndex ngramIndex;
+  private final RealmVersions versions;
+
+  public UserIndexEventListenerProvider(
+      KeycloakSession session,
+      TypedAttributeIndexer typedIndexer,
+      NgramIndex ngramIndex,
+      RealmVersions versions) {
+    this.session = session;
+    this.typedIndexer = typedIndexer;
+    this.ngramIndex = ngramIndex;
+    this.versions = versions;
+  }
+
+  @Override
+  public void onEvent(Event event) {
+    boolean attributes = ATTRIBUTE_EVENTS.contains(event.getType());
+    if (!attributes && !USER_DATA_EVENTS.contains(event.getType())) {
+      return;
+    }
+    String realmId = event.getRealmId();
+    afterCommit(() -> versions.bump(realmId));
+    if (attributes && event.getUserId() != null) {
+      reindexAfterCommit(realmId, event.getUserId());
+    }
+  }
+
+  @Override
+  public void onEvent(AdminEvent event, boolean includeRepresentation) {
+    if (!USER_DATA_RESOURCES.contains(event.getResourceType())) {
+      return;
+    }
+    String realmId = event.getRealmId();
+    afterCommit(() -> versions.bump(realmId));
+
+    if (event.getResourceType() != ResourceType.USER
+        || (event.getOperationType() != OperationType.CREATE
+            && event.getOperationType() != OperationType.UPDATE)
+        || event.getResourcePath() == null) {
+      return;
+    }
+
+    // Only "users/{id}" itself carries attributes, not sub-resources like its credentials.
+    String[] path = event.getResourcePath().split("/");
+    if (path.length == 2 && path[0].equals("users")) {
+      reindexAfterCommit(realmId, path[1]);
+    }
+  }
+
+  /**
+   * Reindexes a user whose attributes were set outside of any event, like by an authenticator or an
+   * identity provider mapper, once the change is committed. This works whether or not the listener
+   * is enabled for the realm, and does nothing without the users-by-attribute provider.
+   */
+  public static void userChanged(KeycloakSession session, String realmId, String userId) {
+    Object factory =
+        session
+            .getKeycloakSessionFactory()
+            .getProviderFactory(
+                AdminRealmResourceProvider.class, UsersByAttributeResourceProvider.ID);
+    if (!(factory instanceof UsersByAttributeResourceProvider provider)) {
+      return;
+    }
+    UserIndexEventListenerProvider listener =
+        new UserIndexEventListenerProvider(
+            session,
+            provider.getTypedAttributeIndexer(),
+            provider.getNgramIndex(),
+            provider.getRealmVersions());
+    listener.afterCommit(() -> listener.versions.bump(realmId));
+    listener.reindexAfterCommit(realmId, userId);
+  }
+
+  private void reindexAfterCommit(String realmId, String userId) {
+    if (!typedIndexer.isEnabled() && !ngramIndex.isEnabled()) {
+      return;
+    }
+    afterCommit(
+        () -> {
+          try {
+            KeycloakModelUtils.runJobInTransaction(
+                session.getKeycloakSessionFactory(),
+                s -> {
+                  typedIndexer.reindexUser(s, realmId, userId);
+                  ngramIndex.reindexUser(s, realmId, userId);
+                });
+          } catch (RuntimeException e) {
+            logger.warnf(e, "Failed to index user %s", userId);
+          }
+        });
+  }
+
+  /** Runs the task once the current transaction commits, or now if there is none. */
+  private void afterCommit(Runnable task) {
+    KeycloakTransactionManager transactionManager = session.getTransactionManager();
+    if (transactionManager.isActive()) {
+      transactionManager.enlistAfterCompletion(
+          new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+              task.run();
+            }
+
+            @Override
+            protected void rollbackImpl() {}
+          });
+    } else {
+      task.run();
+    }
+  }
+
+  @Override
+  public void close() {}
+}
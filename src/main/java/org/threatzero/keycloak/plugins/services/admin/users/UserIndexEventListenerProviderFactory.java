@@ -0,0 +1,48 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+
+/**
+ * Registers {@link UserIndexEventListenerProvider}. Add it to a realm's event listeners to keep
+ * that realm's typed attribute and n-gram indexes and search result versions up to date; it
+ * indexes the attributes configured on the users-by-attribute provider.
+ */
+public class UserIndexEventListenerProviderFactory implements EventListenerProviderFactory {
+  public static final String ID = "users-by-attribute-index";
+
+  private KeycloakSessionFactory factory;
+
+  @Override
+  public EventListenerProvider create(KeycloakSession session) {
+    UsersByAttributeResourceProvider provider =
+        (UsersByAttributeResourceProvider)
+            factory.getProviderFactory(
+                AdminRealmResourceProvider.class, UsersByAttributeResourceProvider.ID);
+    return new UserIndexEventListenerProvider(
+        session,
+        provider.getTypedAttributeIndexer(),
+        provider.getNgramIndex(),
+        provider.getRealmVersions());
+  }
+
+  @Override
+  public void init(Scope config) {}
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {
+    this.factory = factory;
+  }
+
+  @Override
+  public void close() {}
+
+  @Override
+  public String getId() {
+    return ID;
+  }
+}
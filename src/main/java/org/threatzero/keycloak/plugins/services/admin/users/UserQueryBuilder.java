@@ -0,0 +1,1017 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+import org.hibernate.query.criteria.HibernateCriteriaBuilder;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.GroupEntity;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.jpa.entities.UserGroupMembershipEntity;
+import org.threatzero.keycloak.plugins.services.admin.users.jpa.TypedUserAttributeEntity;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+import org.threatzero.keycloak.plugins.services.models.QueryOrder;
+import org.threatzero.keycloak.plugins.services.models.ValueType;
+
+import jakarta.persistence.Tuple;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Expression;
+import jakarta.persistence.criteria.From;
+import jakarta.persistence.criteria.Join;
+import jakarta.persistence.criteria.JoinType;
+import jakarta.persistence.criteria.Order;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import jakarta.persistence.criteria.Selection;
+import jakarta.persistence.criteria.Subquery;
+
+/**
+ * Translates {@link QueryFilter} trees and {@link QueryOrder}s into Criteria API predicates and
+ * orderings over {@link UserEntity}. Shared by every endpoint that searches users so they all
+ * apply the same realm scoping and filter semantics.
+ */
+public class UserQueryBuilder {
+  public static final String CREATED_TIMESTAMP = "createdTimestamp";
+  public static final String DEFAULT_ORDER = "-" + CREATED_TIMESTAMP;
+
+  /** Reserved projection field that selects the user's group paths. */
+  public static final String GROUPS = "groups";
+
+  private static final String NUMBER_VALUE = "numberValue";
+  private static final String DATE_VALUE = "dateValue";
+
+  /** Core columns that Keycloak lowercases before storing them. */
+  private static final Set<String> LOWERCASE_COLUMNS = Set.of("username", "email");
+
+  private final AtomicInteger attributeCount = new AtomicInteger(0);
+
+  private final String realmId;
+  private final SortStrategy sortStrategy;
+  private final ConditionStrategy conditionStrategy;
+  private final SearchIndexes searchIndexes;
+
+  public UserQueryBuilder(String realmId) {
+    this(realmId, SortStrategy.AGGREGATE, ConditionStrategy.JOIN, SearchIndexes.NONE);
+  }
+
+  public UserQueryBuilder(
+      String realmId,
+      SortStrategy sortStrategy,
+      ConditionStrategy conditionStrategy,
+      SearchIndexes searchIndexes) {
+    this.realmId = realmId;
+    this.sortStrategy = sortStrategy;
+    this.conditionStrategy = conditionStrategy;
+    this.searchIndexes = searchIndexes;
+  }
+
+  /**
+   * Returns whether a query over {@code root} can return a user more than once, i.e. whether it
+   * joins any collection and needs DISTINCT.
+   */
+  public static boolean needsDistinct(Root<UserEntity> root) {
+    return !root.getJoins().isEmpty();
+  }
+
+  /**
+   * Builds the where clause for the filter. Filter values are added to {@code params} rather than
+   * embedded in the query.
+   */
+  public Predicate buildPredicate(
+      CriteriaQuery<?> qb,
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      QueryFilter filter,
+      QueryParameters params) {
+    // IMPORTANT: Base query should only include users from specified realm AND exclude all service
+    // accounts.
+    Predicate thePredicate =
+        cb.and(
+            cb.equal(root.get("realmId"), params.add(cb, String.class, v -> realmId)),
+            root.get("serviceAccountClientLink").isNull());
+
+    if (filter != null) {
+      thePredicate = cb.and(thePredicate, getPredicate(qb, cb, root, filter, params));
+    }
+
+    return thePredicate;
+  }
+
+  /**
+   * Describes the structure of a filter with its values left out. Filters with the same shape
+   * compile to the same query and differ only in their parameter values.
+   */
+  public static String shapeOf(QueryFilter filter) {
+    StringBuilder shape = new StringBuilder();
+    if (filter != null) {
+      appendShape(filter, shape);
+    }
+    return shape.toString();
+  }
+
+  /**
+   * Returns the number of parameters used for a list of {@code size} values: the next power of two.
+   * Lists are padded to this size so that lists of similar length share one SQL text.
+   */
+  public static int bucketOf(int size) {
+    return size <= 1 ? size : Integer.highestOneBit(size - 1) << 1;
+  }
+
+  /**
+   * Builds {@code expression IN (...)} with one parameter per value, padded to {@link #bucketOf}
+   * the value count by repeating the last value.
+   */
+  public static Predicate in(
+      CriteriaBuilder cb,
+      Expression<String> expression,
+      int size,
+      QueryParameters params,
+      BiFunction<QueryValues, Integer, String> value) {
+    return expression.in(
+        IntStream.range(0, bucketOf(size))
+            .mapToObj(i -> params.add(cb, String.class, v -> value.apply(v, i)))
+            .toArray(Expression[]::new));
+  }
+
+  /** Returns the value at {@code index}, or the last value for padding positions. */
+  static <T> T padded(List<T> values, int index) {
+    return values.get(Math.min(index, values.size() - 1));
+  }
+
+  /** Orders the query by the given order, or by creation time (newest first) if there is none. */
+  public void applyOrder(
+      CriteriaQuery<Tuple> qb,
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      QueryOrder order,
+      QueryParameters params) {
+    if (order != null && !order.getValues().isEmpty()) {
+      AtomicInteger idx = new AtomicInteger(0);
+      qb.orderBy(
+          order.getValues().stream()
+              .map(
+                  o -> {
+                    String aliasName = "attribute_order_" + idx.getAndIncrement();
+                    // If the sortable key comes from the user attributes table, we need to select
+                    // the value for the given key to sort by it. Otherwise, we can simply use the
+                    // key.
+                    if (isAttributeName(o.getKey()) && isTyped(o.getType())) {
+                      Expression<?> alias = typedSortValue(qb, cb, root, o, params);
+                      List<Selection<?>> existingSelections =
+                          new ArrayList<>(qb.getSelection().getCompoundSelectionItems());
+                      existingSelections.add(alias.alias(aliasName));
+                      qb.select(cb.tuple(existingSelections.toArray(Selection[]::new)));
+                      return o.isAsc() ? cb.asc(alias) : cb.desc(alias);
+                    } else if (isAttributeName(o.getKey())
+                        && sortStrategy == SortStrategy.SUBQUERY) {
+                      Expression<String> alias = attributeSortValue(qb, cb, root, o, params);
+                      List<Selection<?>> existingSelections =
+                          new ArrayList<>(qb.getSelection().getCompoundSelectionItems());
+                      existingSelections.add(alias.alias(aliasName));
+                      qb.select(cb.tuple(existingSelections.toArray(Selection[]::new)));
+                      return o.isAsc() ? cb.asc(alias) : cb.desc(alias);
+                    } else if (isAttributeName(o.getKey())) {
+                      Join<UserEntity, UserAttributeEntity> attributesJoin =
+                          root.join("attributes", JoinType.LEFT);
+                      attributesJoin.on(
+                          cb.and(
+                              cb.equal(root.get("id"), attributesJoin.get("user").get("id")),
+                              cb.equal(
+                                  attributesJoin.get("name"),
+                                  params.add(cb, String.class, v -> o.getKey()))));
+                      Expression<Number> valueExpr = attributesJoin.get("value");
+                      Expression<Number> alias = o.isAsc() ? cb.min(valueExpr) : cb.max(valueExpr);
+                      List<Selection<?>> existingSelections =
+                          new ArrayList<>(qb.getSelection().getCompoundSelectionItems());
+                      existingSelections.add(alias.alias(aliasName));
+                      qb.distinct(true)
+                          .select(cb.tuple(existingSelections.toArray(Selection[]::new)))
+                          .groupBy(root);
+                      return o.isAsc() ? cb.asc(alias) : cb.desc(alias);
+                    } else {
+                      Expression<String> alias = root.get(o.getKey());
+                      return o.isAsc() ? cb.asc(alias) : cb.desc(alias);
+                    }
+                  })
+              .toList());
+    } else {
+      qb.orderBy(cb.desc(root.get(CREATED_TIMESTAMP)));
+    }
+  }
+
+  /**
+   * Returns the sort value of an attribute key as a correlated scalar subquery: the user's lowest
+   * value for ascending orders and highest for descending ones, like the aggregate strategy, but
+   * evaluated per returned row instead of grouping every matching user.
+   */
+  private Expression<String> attributeSortValue(
+      CriteriaQuery<?> qb,
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      QueryOrder.Order order,
+      QueryParameters params) {
+    Subquery<String> sub = qb.subquery(String.class);
+    Root<UserAttributeEntity> attributeRoot = sub.from(UserAttributeEntity.class);
+    Expression<String> value = attributeRoot.get("value");
+
+    return sub.select(order.isAsc() ? cb.least(value) : cb.greatest(value))
+        .where(
+            cb.equal(attributeRoot.get("user").get("id"), root.get("id")),
+            cb.equal(
+                attributeRoot.get("name"), params.add(cb, String.class, v -> order.getKey())));
+  }
+
+  /**
+   * Returns the sort value of a typed attribute from the typed attribute side table, as a
+   * correlated scalar subquery like {@link #attributeSortValue}.
+   */
+  private Expression<?> typedSortValue(
+      CriteriaQuery<?> qb,
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      QueryOrder.Order order,
+      QueryParameters params) {
+    return order.getType() == ValueType.NUMBER
+        ? typedSortValue(qb, cb, root, order, params, NUMBER_VALUE, BigDecimal.class)
+        : typedSortValue(qb, cb, root, order, params, DATE_VALUE, Long.class);
+  }
+
+  private <T extends Comparable<? super T>> Expression<T> typedSortValue(
+      CriteriaQuery<?> qb,
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      QueryOrder.Order order,
+      QueryParameters params,
+      String column,
+      Class<T> javaType) {
+    Subquery<T> sub = qb.subquery(javaType);
+    Root<TypedUserAttributeEntity> typedRoot = sub.from(TypedUserAttributeEntity.class);
+    Expression<T> value = typedRoot.get(column);
+
+    return sub.select(order.isAsc() ? cb.least(value) : cb.greatest(value))
+        .where(typedAttribute(cb, root, typedRoot, params, v -> order.getKey()));
+  }
+
+  /**
+   * Returns the core columns selected by a projected page query: the user id, the requested core
+   * fields and the core order keys, since DISTINCT queries can only be ordered by selected columns.
+   */
+  public static List<String> projectionColumns(Collection<String> fields, QueryOrder order) {
+    Set<String> columns = new LinkedHashSet<>();
+    columns.add("id");
+    fields.stream().filter(f -> !isAttributeName(f)).forEach(columns::add);
+    if (order != null && !order.getValues().isEmpty()) {
+      order.getValues().stream()
+          .map(QueryOrder.Order::getKey)
+          .filter(k -> !isAttributeName(k))
+          .forEach(columns::add);
+    } else {
+      columns.add(CREATED_TIMESTAMP);
+    }
+    return List.copyOf(columns);
+  }
+
+  /**
+   * Returns the sort keys used for keyset pagination: the requested order (creation time, newest
+   * first, by default) followed by the user id, which makes every row's position unique.
+   *
+   * @throws IllegalArgumentException if the order contains attribute keys
+   */
+  public static List<QueryOrder.Order> keysetOrders(QueryOrder order) {
+    if (order.getValues().stream().anyMatch(o -> isAttributeName(o.getKey()))) {
+      throw new IllegalArgumentException("cursor pagination only supports core user columns");
+    }
+
+    List<QueryOrder.Order> orders = new ArrayList<>(order.getValues());
+    if (orders.stream().noneMatch(o -> o.getKey().equals("id"))) {
+      orders.add(QueryOrder.Order.builder().key("id").asc(true).build());
+    }
+    return orders;
+  }
+
+  /**
+   * Appends the keyset sort expressions to the query's selection and orders the query by them.
+   * Returns the sort expressions; they are the last elements of every result tuple.
+   *
+   * <p>Keys are sorted on their raw columns so the database can walk or range scan their indexes.
+   * Nulls of nullable columns come first in either direction: once a page is past them, the rest of
+   * the keyset is a plain range of non-null values.
+   */
+  public List<Expression<?>> applyKeysetOrder(
+      CriteriaQuery<Tuple> qb,
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      List<QueryOrder.Order> orders) {
+    List<Expression<?>> expressions =
+        orders.stream().<Expression<?>>map(o -> root.get(o.getKey())).toList();
+
+    List<Selection<?>> selections = new ArrayList<>(qb.getSelection().getCompoundSelectionItems());
+    selections.addAll(expressions);
+    qb.select(cb.tuple(selections.toArray(Selection[]::new)));
+
+    HibernateCriteriaBuilder hcb = (HibernateCriteriaBuilder) cb;
+    AtomicInteger idx = new AtomicInteger(0);
+    qb.orderBy(
+        orders.stream()
+            .<Order>map(
+                o -> {
+                  Expression<?> expr = expressions.get(idx.getAndIncrement());
+                  if (!isNullableKey(o.getKey())) {
+                    return o.isAsc() ? cb.asc(expr) : cb.desc(expr);
+                  }
+                  return o.isAsc() ? hcb.asc(expr, true) : hcb.desc(expr, true);
+                })
+            .toList());
+
+    return expressions;
+  }
+
+  /**
+   * Builds the "row comes after the cursor" predicate for the given sort keys, i.e. {@code (k1 >
+   * v1) OR (k1 = v1 AND k2 > v2) OR ...}, with the comparison flipped for descending keys. The
+   * cursor values are taken from {@link QueryValues#cursorKey(int)} when the query is bound.
+   *
+   * <p>A null cursor key changes the predicate rather than a parameter, so {@code nullKeys} says
+   * which keys of the cursor are null and must be part of the plan's cache key. Since nulls sort
+   * first, a null key is followed by every non-null value, and a non-null key only by values
+   * beyond it. The first key also bounds the whole predicate, e.g. {@code k1 >= v1}, so the
+   * database can start from it instead of evaluating every branch for every row.
+   */
+  @SuppressWarnings("unchecked")
+  public Predicate keysetPredicate(
+      CriteriaBuilder cb,
+      List<QueryOrder.Order> orders,
+      List<Expression<?>> expressions,
+      List<Boolean> nullKeys,
+      QueryParameters params) {
+    List<Expression<?>> cursorValues = new ArrayList<>();
+    for (int i = 0; i < orders.size(); i++) {
+      int index = i;
+      String key = orders.get(i).getKey();
+      if (nullKeys.get(i) && !isNullableKey(key)) {
+        throw new IllegalArgumentException("cursor key for " + key + " is null");
+      }
+      cursorValues.add(
+          nullKeys.get(i)
+              ? null
+              : params.add(cb, columnType(key), v -> keysetValue(key, v.cursorKey(index))));
+    }
+
+    List<Predicate> branches = new ArrayList<>();
+    for (int i = 0; i < orders.size(); i++) {
+      List<Predicate> branch = new ArrayList<>();
+      for (int j = 0; j < i; j++) {
+        branch.add(
+            cursorValues.get(j) == null
+                ? cb.isNull(expressions.get(j))
+                : cb.equal(expressions.get(j), cursorValues.get(j)));
+      }
+      branch.add(
+          cursorValues.get(i) == null
+              ? cb.isNotNull(expressions.get(i))
+              : compare(cb, expressions.get(i), cursorValues.get(i), orders.get(i).isAsc()));
+      branches.add(cb.and(branch.toArray(Predicate[]::new)));
+    }
+    Predicate after = cb.or(branches.toArray(Predicate[]::new));
+    if (cursorValues.get(0) == null) {
+      return after;
+    }
+    return cb.and(
+        compareOrEqual(cb, expressions.get(0), cursorValues.get(0), orders.get(0).isAsc()), after);
+  }
+
+  /** Returns which keys of a decoded cursor are null, in order. */
+  public static List<Boolean> nullKeys(List<Object> cursorKeys) {
+    return cursorKeys.stream().map(k -> k == null).toList();
+  }
+
+  /** Returns whether a core column used as a keyset sort key can be null. */
+  private static boolean isNullableKey(String key) {
+    switch (key) {
+      case UserModel.EMAIL:
+      case UserModel.FIRST_NAME:
+      case UserModel.LAST_NAME:
+      case CREATED_TIMESTAMP:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Predicate compare(CriteriaBuilder cb, Expression expr, Expression value, boolean asc) {
+    return asc ? cb.greaterThan(expr, value) : cb.lessThan(expr, value);
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Predicate compareOrEqual(
+      CriteriaBuilder cb, Expression expr, Expression value, boolean asc) {
+    return asc ? cb.greaterThanOrEqualTo(expr, value) : cb.lessThanOrEqualTo(expr, value);
+  }
+
+  /** Returns the Java type of a core column: strings, but for the timestamp and the flags. */
+  @SuppressWarnings("rawtypes")
+  private static Class columnType(String key) {
+    switch (key) {
+      case CREATED_TIMESTAMP:
+        return Long.class;
+      case UserModel.EMAIL_VERIFIED:
+      case UserModel.ENABLED:
+        return Boolean.class;
+      default:
+        return String.class;
+    }
+  }
+
+  /** Coerces a decoded cursor value back to the Java type of its column. */
+  private static Comparable<?> keysetValue(String key, Object value) {
+    if (value == null) {
+      throw new IllegalArgumentException("cursor key for " + key + " is null");
+    }
+    try {
+      switch (key) {
+        case CREATED_TIMESTAMP:
+          return ((Number) value).longValue();
+        case UserModel.EMAIL_VERIFIED:
+        case UserModel.ENABLED:
+          return (Boolean) value;
+        default:
+          return value.toString();
+      }
+    } catch (ClassCastException e) {
+      throw new IllegalArgumentException("cursor key for " + key + " has the wrong type", e);
+    }
+  }
+
+  // QueryValues.collectLeaves and appendShape must visit nodes in the same order and with the same
+  // precedence as this method.
+  private Predicate getPredicate(
+      CriteriaQuery<?> qb,
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      QueryFilter filter,
+      QueryParameters params) {
+    if (filter.getQ().isPresent()) {
+      QueryFilter.Condition condition = filter.getQ().get();
+      return getPredicate(qb, cb, root, condition, params);
+    } else if (filter.getGroupQ().isPresent()) {
+      QueryFilter.GroupCondition groupCondition = filter.getGroupQ().get();
+      return getPredicate(qb, cb, root, groupCondition, params);
+    } else if (filter.getAnd().isPresent()) {
+      return cb.and(
+          filter.getAnd().get().stream()
+              .map(f -> getPredicate(qb, cb, root, f, params))
+              .toArray(Predicate[]::new));
+    } else if (filter.getOr().isPresent()) {
+      return cb.or(
+          filter.getOr().get().stream()
+              .map(f -> getPredicate(qb, cb, root, f, params))
+              .toArray(Predicate[]::new));
+    }
+    return cb.conjunction();
+  }
+
+  private static void appendShape(QueryFilter filter, StringBuilder shape) {
+    if (filter.getQ().isPresent()) {
+      QueryFilter.Condition condition = filter.getQ().get();
+      QueryFilter.Condition.Operator operator =
+          condition.getOp().orElse(QueryFilter.Condition.Operator.EQ);
+      shape
+          .append("q(")
+          .append(quote(condition.getKey()))
+          .append(',')
+          .append(operator)
+          .append(',')
+          .append(condition.isNot().orElse(false))
+          .append(',')
+          .append(condition.isIgnoreCase().orElse(true));
+      if (operator == QueryFilter.Condition.Operator.IN) {
+        shape.append(',').append(bucketOf(condition.getValues().size()));
+      }
+      condition.getType().ifPresent(type -> shape.append(',').append(type));
+      shape.append(')');
+    } else if (filter.getGroupQ().isPresent()) {
+      QueryFilter.GroupCondition groupCondition = filter.getGroupQ().get();
+      shape
+          .append("g(")
+          .append(quote(groupCondition.getKey().orElse("name")))
+          .append(',')
+          .append(groupCondition.getOp().orElse(QueryFilter.GroupCondition.Operator.ALL))
+          .append(',')
+          .append(groupCondition.isSubtree().orElse(false))
+          .append(',')
+          .append(bucketOf(groupCondition.getGroups().size()))
+          .append(')');
+    } else if (filter.getAnd().isPresent()) {
+      appendShape("and", filter.getAnd().get(), shape);
+    } else if (filter.getOr().isPresent()) {
+      appendShape("or", filter.getOr().get(), shape);
+    } else {
+      shape.append("true");
+    }
+  }
+
+  private static void appendShape(String operator, List<QueryFilter> filters, StringBuilder shape) {
+    shape.append(operator).append('(');
+    for (int i = 0; i < filters.size(); i++) {
+      if (i > 0) {
+        shape.append(',');
+      }
+      appendShape(filters.get(i), shape);
+    }
+    shape.append(')');
+  }
+
+  private static String quote(String key) {
+    return "'" + key.replace("'", "''") + "'";
+  }
+
+  private Predicate getPredicate(
+      CriteriaQuery<?> qb,
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      QueryFilter.Condition condition,
+      QueryParameters params) {
+    int leaf = params.nextLeaf();
+    if (isTyped(condition.getType().orElse(null))) {
+      return typedPredicate(qb, cb, root, condition, leaf, params);
+    }
+
+    boolean ignoreCase = condition.isIgnoreCase().orElse(true);
+    boolean not = condition.isNot().orElse(false);
+
+    QueryFilter.Condition.Operator operator =
+        condition.getOp().orElse(QueryFilter.Condition.Operator.EQ);
+
+    String attributeName = condition.getKey();
+    if (!isAttributeName(attributeName) && columnType(attributeName) != String.class) {
+      // Numbers and flags are compared as such, ignoring case doesn't apply to them.
+      Predicate comparison = columnComparison(cb, root, condition, leaf, params);
+      return not ? cb.not(comparison) : comparison;
+    }
+
+    From<?, UserAttributeEntity> attributes = null;
+    Subquery<Integer> attributesSub = null;
+    Expression<String> alias;
+    if (isAttributeName(attributeName) && conditionStrategy == ConditionStrategy.EXISTS) {
+      attributesSub = qb.subquery(Integer.class);
+      attributes = attributesSub.from(UserAttributeEntity.class);
+      alias = attributes.get("value");
+    } else if (isAttributeName(attributeName)) {
+      Join<UserEntity, UserAttributeEntity> attributesJoin = root.join("attributes");
+      attributesJoin.alias("ua" + attributeCount.incrementAndGet());
+      attributes = attributesJoin;
+      alias = attributes.get("value");
+    } else {
+      alias = root.get(attributeName);
+    }
+
+    // Stored lowercase columns are compared as they are, so their own indexes apply.
+    if (ignoreCase && !LOWERCASE_COLUMNS.contains(attributeName)) {
+      alias = cb.lower(alias);
+    }
+
+    Predicate thePredicate;
+
+    switch (operator) {
+      case IN:
+        thePredicate =
+            in(
+                cb,
+                alias,
+                condition.getValues().size(),
+                params,
+                (v, i) -> caseOf(padded(v.condition(leaf).getValues(), i), ignoreCase));
+        break;
+      case CONTAINS:
+        thePredicate = cb.like(alias, value(cb, params, leaf, ignoreCase, "%", "%"));
+        break;
+      case STARTS:
+        thePredicate = cb.like(alias, value(cb, params, leaf, ignoreCase, "", "%"));
+        break;
+      case ENDS:
+        thePredicate = cb.like(alias, value(cb, params, leaf, ignoreCase, "%", ""));
+        break;
+      case GT:
+        thePredicate = cb.greaterThan(alias, value(cb, params, leaf, ignoreCase, "", ""));
+        break;
+      case GTE:
+        thePredicate =
+            cb.greaterThanOrEqualTo(alias, value(cb, params, leaf, ignoreCase, "", ""));
+        break;
+      case LT:
+        thePredicate = cb.lessThan(alias, value(cb, params, leaf, ignoreCase, "", ""));
+        break;
+      case LTE:
+        thePredicate = cb.lessThanOrEqualTo(alias, value(cb, params, leaf, ignoreCase, "", ""));
+        break;
+      case EQ:
+      default:
+        thePredicate = cb.equal(alias, value(cb, params, leaf, ignoreCase, "", ""));
+        break;
+    }
+
+    // A case-sensitive pattern is first narrowed down to the values that match it ignoring case,
+    // which an index on the lowercased value can find.
+    if (attributes != null
+        && !ignoreCase
+        && !not
+        && searchIndexes.canPrefilterAttribute(operator)) {
+      Expression<String> pattern =
+          value(
+              cb,
+              params,
+              leaf,
+              true,
+              operator == QueryFilter.Condition.Operator.STARTS ? "" : "%",
+              operator == QueryFilter.Condition.Operator.ENDS ? "" : "%");
+      thePredicate = cb.and(cb.like(cb.lower(attributes.get("value")), pattern), thePredicate);
+    }
+
+    if (not) {
+      thePredicate = cb.not(thePredicate);
+    }
+
+    if (attributes != null) {
+      thePredicate =
+          cb.and(
+              cb.equal(
+                  attributes.get("name"),
+                  params.add(cb, String.class, v -> v.condition(leaf).getKey())),
+              thePredicate);
+    }
+
+    // A correlated EXISTS semi-join matches each user at most once, so unlike a join it neither
+    // multiplies rows nor needs DISTINCT to collapse them again.
+    if (attributesSub != null) {
+      attributesSub
+          .select(cb.literal(1))
+          .where(cb.equal(attributes.get("user").get("id"), root.get("id")), thePredicate);
+      thePredicate = cb.exists(attributesSub);
+    }
+
+    return thePredicate;
+  }
+
+  /**
+   * Builds a typed condition as an EXISTS subquery over the typed attribute side table, which
+   * compares values as numbers or dates and can range scan its {@code (realm, name, value)}
+   * indexes.
+   *
+   * @throws IllegalArgumentException if the condition is on a core column or its operator doesn't
+   *     apply to typed values
+   */
+  private Predicate typedPredicate(
+      CriteriaQuery<?> qb,
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      QueryFilter.Condition condition,
+      int leaf,
+      QueryParameters params) {
+    if (!isAttributeName(condition.getKey())) {
+      throw new IllegalArgumentException("only attribute conditions can be typed");
+    }
+    ValueType type = condition.getType().get();
+
+    Subquery<Integer> sub = qb.subquery(Integer.class);
+    Root<TypedUserAttributeEntity> typedRoot = sub.from(TypedUserAttributeEntity.class);
+    Predicate thePredicate =
+        type == ValueType.NUMBER
+            ? typedComparison(
+                cb,
+                typedRoot.get(NUMBER_VALUE),
+                BigDecimal.class,
+                type::parse,
+                type + " values",
+                condition,
+                leaf,
+                params)
+            : typedComparison(
+                cb,
+                typedRoot.get(DATE_VALUE),
+                Long.class,
+                type::parse,
+                type + " values",
+                condition,
+                leaf,
+                params);
+
+    if (condition.isNot().orElse(false)) {
+      thePredicate = cb.not(thePredicate);
+    }
+
+    sub.select(cb.literal(1))
+        .where(
+            typedAttribute(cb, root, typedRoot, params, v -> v.condition(leaf).getKey()),
+            thePredicate);
+    return cb.exists(sub);
+  }
+
+  /**
+   * Compares a number or boolean core column with the condition's values, bound with the column's
+   * Java type.
+   */
+  private static Predicate columnComparison(
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      QueryFilter.Condition condition,
+      int leaf,
+      QueryParameters params) {
+    String key = condition.getKey();
+    Function<String, ?> parse = value -> parseColumnValue(key, value);
+    String description = "'" + key + "'";
+    return columnType(key) == Long.class
+        ? typedComparison(
+            cb, root.<Long>get(key), Long.class, parse, description, condition, leaf, params)
+        : typedComparison(
+            cb, root.<Boolean>get(key), Boolean.class, parse, description, condition, leaf, params);
+  }
+
+  /**
+   * Compares a column with the condition's values, each parsed to the column's Java type.
+   *
+   * @param description what the column holds, for the error of an operator that doesn't apply
+   */
+  private static <T extends Comparable<? super T>> Predicate typedComparison(
+      CriteriaBuilder cb,
+      Expression<T> column,
+      Class<T> javaType,
+      Function<String, ?> parse,
+      String description,
+      QueryFilter.Condition condition,
+      int leaf,
+      QueryParameters params) {
+    IntFunction<Expression<T>> value =
+        i ->
+            params.add(
+                cb,
+                javaType,
+                v -> {
+                  QueryFilter.Condition c = v.condition(leaf);
+                  return javaType.cast(parse.apply(padded(c.getValues(), i)));
+                });
+
+    QueryFilter.Condition.Operator operator =
+        condition.getOp().orElse(QueryFilter.Condition.Operator.EQ);
+    switch (operator) {
+      case IN:
+        return column.in(
+            IntStream.range(0, bucketOf(condition.getValues().size()))
+                .mapToObj(value)
+                .toArray(Expression[]::new));
+      case GT:
+        return cb.greaterThan(column, value.apply(0));
+      case GTE:
+        return cb.greaterThanOrEqualTo(column, value.apply(0));
+      case LT:
+        return cb.lessThan(column, value.apply(0));
+      case LTE:
+        return cb.lessThanOrEqualTo(column, value.apply(0));
+      case EQ:
+        return cb.equal(column, value.apply(0));
+      default:
+        throw new IllegalArgumentException(operator + " does not apply to " + description);
+    }
+  }
+
+  /**
+   * Checks that conditions on number and boolean core columns compare values that parse as such.
+   *
+   * @throws IllegalArgumentException if one doesn't
+   */
+  public static void validateColumnValues(QueryFilter filter) {
+    if (filter == null) {
+      return;
+    }
+    filter
+        .getQ()
+        .filter(c -> !isAttributeName(c.getKey()) && columnType(c.getKey()) != String.class)
+        .ifPresent(
+            c -> {
+              QueryFilter.Condition.Operator operator =
+                  c.getOp().orElse(QueryFilter.Condition.Operator.EQ);
+              switch (operator) {
+                case CONTAINS:
+                case STARTS:
+                case ENDS:
+                  throw new IllegalArgumentException(
+                      operator + " does not apply to '" + c.getKey() + "'");
+                default:
+                  c.getValues().forEach(v -> parseColumnValue(c.getKey(), v));
+              }
+            });
+    filter.getAnd().ifPresent(children -> children.forEach(UserQueryBuilder::validateColumnValues));
+    filter.getOr().ifPresent(children -> children.forEach(UserQueryBuilder::validateColumnValues));
+  }
+
+  /**
+   * Parses a condition value of a number or boolean core column.
+   *
+   * @throws IllegalArgumentException if it isn't one
+   */
+  static Object parseColumnValue(String key, String value) {
+    String trimmed = value != null ? value.trim() : "";
+    if (columnType(key) == Long.class) {
+      try {
+        return Long.parseLong(trimmed);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(
+            "'" + key + "' takes whole numbers, not '" + value + "'");
+      }
+    }
+    if (trimmed.equalsIgnoreCase("true") || trimmed.equalsIgnoreCase("false")) {
+      return Boolean.parseBoolean(trimmed);
+    }
+    throw new IllegalArgumentException("'" + key + "' takes true or false, not '" + value + "'");
+  }
+
+  /** Correlates a typed attribute row with the user and scopes it to the realm and a name. */
+  private Predicate typedAttribute(
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      Root<TypedUserAttributeEntity> typedRoot,
+      QueryParameters params,
+      Function<QueryValues, String> name) {
+    return cb.and(
+        cb.equal(typedRoot.get("userId"), root.get("id")),
+        cb.equal(typedRoot.get("realmId"), params.add(cb, String.class, v -> realmId)),
+        cb.equal(typedRoot.get("name"), params.add(cb, String.class, name)));
+  }
+
+  private static boolean isTyped(ValueType type) {
+    return type != null && type != ValueType.STRING;
+  }
+
+  /** Adds a parameter for the first value of the leaf condition, wrapped in prefix and suffix. */
+  private static Expression<String> value(
+      CriteriaBuilder cb,
+      QueryParameters params,
+      int leaf,
+      boolean ignoreCase,
+      String prefix,
+      String suffix) {
+    return params.add(
+        cb,
+        String.class,
+        v -> prefix + caseOf(v.condition(leaf).getValues().get(0), ignoreCase) + suffix);
+  }
+
+  private static String caseOf(String value, boolean ignoreCase) {
+    return ignoreCase ? value.toLowerCase() : value;
+  }
+
+  private Predicate getPredicate(
+      CriteriaQuery<?> qb,
+      CriteriaBuilder cb,
+      Root<UserEntity> root,
+      QueryFilter.GroupCondition groupCondition,
+      QueryParameters params) {
+    int leaf = params.nextLeaf();
+    QueryFilter.GroupCondition.Operator operator =
+        groupCondition.getOp().orElse(QueryFilter.GroupCondition.Operator.ALL);
+    List<String> values = groupCondition.getGroups();
+    String attributeName = groupCondition.getKey().orElse("name");
+
+    List<String> allowedGroupColumns = List.of("id", "name", "parentId");
+    if (!allowedGroupColumns.contains(attributeName)) {
+      return cb.disjunction();
+    }
+
+    // Subtree conditions come expanded by GroupClosure into the ids of realm groups, so any/none
+    // of them is a semi-join on the memberships alone.
+    if (groupCondition.isSubtree().orElse(false)
+        && attributeName.equals("id")
+        && operator != QueryFilter.GroupCondition.Operator.ALL) {
+      Subquery<Integer> member = qb.subquery(Integer.class);
+      Root<UserGroupMembershipEntity> membershipRoot = member.from(UserGroupMembershipEntity.class);
+      member
+          .select(cb.literal(1))
+          .where(
+              cb.equal(membershipRoot.get("user").get("id"), root.get("id")),
+              in(
+                  cb,
+                  membershipRoot.get("groupId"),
+                  values.size(),
+                  params,
+                  (v, i) -> padded(v.groupCondition(leaf).getGroups(), i)));
+      return operator == QueryFilter.GroupCondition.Operator.NONE
+          ? cb.not(cb.exists(member))
+          : cb.exists(member);
+    }
+
+    Subquery<Long> sub = qb.subquery(Long.class);
+    Root<UserGroupMembershipEntity> membershipRoot = sub.from(UserGroupMembershipEntity.class);
+    Root<GroupEntity> groupRoot = sub.from(GroupEntity.class);
+
+    Predicate subPredicate =
+        cb.and(
+            cb.equal(root.get("id"), membershipRoot.get("user").get("id")),
+            cb.equal(groupRoot.get("id"), membershipRoot.get("groupId")),
+            in(
+                cb,
+                groupRoot.get(attributeName),
+                values.size(),
+                params,
+                (v, i) -> padded(v.groupCondition(leaf).getGroups(), i)),
+            cb.equal(groupRoot.get("type"), GroupModel.Type.REALM.intValue()));
+
+    sub.select(cb.count(groupRoot)).where(subPredicate);
+
+    Predicate thePredicate;
+
+    switch (operator) {
+      case ANY:
+        thePredicate = cb.greaterThanOrEqualTo(sub, 1L);
+        break;
+      case NONE:
+        thePredicate = cb.equal(sub, 0L);
+        break;
+      case ALL:
+      default:
+        // The group count is a parameter too, since filters with a different number of groups can
+        // share a template once the group list is padded.
+        thePredicate =
+            cb.equal(
+                sub,
+                params.add(
+                    cb, Long.class, v -> (long) v.groupCondition(leaf).getGroups().size()));
+        break;
+    }
+
+    return thePredicate;
+  }
+
+  /** How orders by attribute keys are compiled. */
+  public static enum SortStrategy {
+    /** Left join the attributes and aggregate them, grouping by the whole user row. */
+    AGGREGATE,
+    /** Select one sort value per user with a correlated scalar subquery, without grouping. */
+    SUBQUERY;
+
+    public static SortStrategy fromString(String strategy) {
+      if (strategy == null) {
+        return null;
+      }
+      try {
+        return SortStrategy.valueOf(strategy.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    public String toString() {
+      return name().toLowerCase();
+    }
+  }
+
+  /** How conditions on attribute keys are compiled. */
+  public static enum ConditionStrategy {
+    /** Inner join the attributes once per condition. */
+    JOIN,
+    /** Match the attributes with one correlated EXISTS subquery per condition. */
+    EXISTS;
+
+    public static ConditionStrategy fromString(String strategy) {
+      if (strategy == null) {
+        return null;
+      }
+      try {
+        return ConditionStrategy.valueOf(strategy.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    public String toString() {
+      return name().toLowerCase();
+    }
+  }
+
+  public static boolean isAttributeName(String name) {
+    switch (name) {
+      case "id":
+      case UserModel.USERNAME:
+      case UserModel.EMAIL:
+      case UserModel.FIRST_NAME:
+      case UserModel.LAST_NAME:
+      case UserModel.EMAIL_VERIFIED:
+      case UserModel.ENABLED:
+      case CREATED_TIMESTAMP:
+        return false;
+      default:
+        return true;
+    }
+  }
+}
@@ -1,10 +1,20 @@
 package org.threatzero.keycloak.plugins.services.admin.users;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.jboss.logging.Logger;
@@ -12,82 +22,65 @@ import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
-import org.keycloak.models.UserModel;
-import org.keycloak.models.jpa.GroupAdapter;
-import org.keycloak.models.jpa.UserAdapter;
-import org.keycloak.models.jpa.entities.GroupEntity;
-import org.keycloak.models.jpa.entities.UserAttributeEntity;
 import org.keycloak.models.jpa.entities.UserEntity;
-import org.keycloak.models.jpa.entities.UserGroupMembershipEntity;
-import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.representations.idm.ErrorRepresentation;
 import org.keycloak.representations.idm.UserRepresentation;
 import org.keycloak.services.resources.admin.AdminEventBuilder;
 import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.threatzero.keycloak.plugins.services.models.CountMode;
+import org.threatzero.keycloak.plugins.services.models.Facet;
 import org.threatzero.keycloak.plugins.services.models.Paginated;
+import org.threatzero.keycloak.plugins.services.models.QueryCursor;
 import org.threatzero.keycloak.plugins.services.models.QueryFilter;
 import org.threatzero.keycloak.plugins.services.models.QueryOrder;
 
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
-import com.fasterxml.jackson.core.json.JsonReadFeature;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
 
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.QueryTimeoutException;
 import jakarta.persistence.Tuple;
 import jakarta.persistence.TypedQuery;
 import jakarta.persistence.criteria.CriteriaBuilder;
 import jakarta.persistence.criteria.CriteriaQuery;
 import jakarta.persistence.criteria.Expression;
-import jakarta.persistence.criteria.Join;
-import jakarta.persistence.criteria.JoinType;
-import jakarta.persistence.criteria.Predicate;
 import jakarta.persistence.criteria.Root;
 import jakarta.persistence.criteria.Selection;
-import jakarta.persistence.criteria.Subquery;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 
 public class UsersByAttributeResource {
   private static final Logger logger = Logger.getLogger(UsersByAttributeResource.class);
 
-  private static final String CREATED_TIMESTAMP = "createdTimestamp";
-
   private static final int DEFAULT_LIMIT = 10;
   private static final int MAX_LIMIT = 1000;
-
-  private final AtomicInteger attributeCount = new AtomicInteger(0);
+  private static final int DEFAULT_FACET_SIZE = 10;
+  private static final int MAX_FACET_SIZE = 100;
+  private static final int MAX_FACETS = 10;
 
   private final KeycloakSession session;
   private final RealmModel realm;
   private final AdminPermissionEvaluator auth;
-  private final JsonMapper mapper =
-      JsonMapper.builder()
-          .findAndAddModules()
-          // BEGIN Enable features for compatibility with JSON5.
-          .enable(JsonReadFeature.ALLOW_UNQUOTED_FIELD_NAMES)
-          .enable(JsonReadFeature.ALLOW_TRAILING_COMMA)
-          .enable(JsonReadFeature.ALLOW_SINGLE_QUOTES)
-          .enable(JsonReadFeature.ALLOW_BACKSLASH_ESCAPING_ANY_CHARACTER)
-          .enable(JsonReadFeature.ALLOW_NON_NUMERIC_NUMBERS)
-          .enable(JsonReadFeature.ALLOW_JAVA_COMMENTS)
-          .enable(JsonReadFeature.ALLOW_LEADING_DECIMAL_POINT_FOR_NUMBERS)
-          // END JSON5 features.
-          .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
-          .serializationInclusion(Include.NON_ABSENT)
-          .build();
+  private final UsersByAttributeResourceProvider provider;
 
   public UsersByAttributeResource(
       KeycloakSession session,
       RealmModel realm,
       AdminPermissionEvaluator auth,
-      AdminEventBuilder event) {
+      AdminEventBuilder event,
+      UsersByAttributeResourceProvider provider) {
     this.session = session;
     this.realm = realm;
     this.auth = auth;
+    this.provider = provider;
   }
 
   @GET
@@ -97,318 +90,751 @@ public class UsersByAttributeResource {
       @QueryParam("filter") String filter,
       @QueryParam("order") QueryOrder order,
       @QueryParam("limit") Integer limit,
-      @QueryParam("offset") Integer offset) {
+      @QueryParam("offset") Integer offset,
+      @QueryParam("cursor") String cursor,
+      @QueryParam("count") CountMode count,
+      @QueryParam("fields") String fields) {
     // IMPORTANT: Check for permissions before executing query.
     auth.users().requireQuery();
 
-    EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    SearchMetrics.Timing timing = provider.getSearchMetrics().start(realm.getName());
+    EntityManager em = searchEntityManager(session);
     CriteriaBuilder cb = em.getCriteriaBuilder();
 
-    CriteriaQuery<Tuple> qb = cb.createTupleQuery();
-    Root<UserEntity> root = qb.from(UserEntity.class);
-
     QueryFilter queryFilter = null;
-    if (filter != null) {
+    try {
+      queryFilter = parseFilter(filter);
+      validateTypes(queryFilter, order);
+      queryFilter = resolveGroups(queryFilter);
+    } catch (IllegalArgumentException e) {
+      // E.g. a subtree over the group limit or an unknown group: the client's to fix.
+      logger.debugf("Invalid filter: %s", e.getMessage());
+      return badRequest(e.getMessage());
+    } catch (Exception e) {
+      logger.error("Failed to parse filter", e);
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+    Response tooExpensive = checkCost(queryFilter, order);
+    if (tooExpensive != null) {
+      return tooExpensive;
+    }
+
+    QueryOrder pageOrder =
+        order != null && !order.getValues().isEmpty()
+            ? order
+            : new QueryOrder(UserQueryBuilder.DEFAULT_ORDER);
+
+    // Until the realm's users change, the same request gets the same page: answer it from the
+    // client's copy or the result cache.
+    EntityTag etag =
+        entityTag(
+            String.join(
+                "|",
+                String.valueOf(queryFilter),
+                pageOrder.toString(),
+                String.valueOf(limit),
+                String.valueOf(offset),
+                String.valueOf(cursor),
+                String.valueOf(Optional.ofNullable(count).orElse(provider.getDefaultCountMode())),
+                String.valueOf(fields)));
+    if (isNotModified(etag)) {
+      return Response.notModified(etag).build();
+    }
+    String resultKey = realm.getId() + "|" + etag.getValue();
+    Paginated<UserRepresentation> cached = provider.getResultCache().get(resultKey);
+    if (cached != null) {
+      return taggedPage(cached, etag);
+    }
+
+    // Only the page is narrowed down with the n-gram index, counts are exact.
+    QueryFilter countFilter = queryFilter;
+    queryFilter = resolveFilter(queryFilter);
+    timing.setFilter(queryFilter);
+    timing.phase("parse");
+
+    // A filter that can never match doesn't need to reach the database.
+    if (FilterNormalizer.isFalse(queryFilter)) {
+      boolean counted =
+          Optional.ofNullable(count).orElse(provider.getDefaultCountMode()) != CountMode.NONE;
+      Paginated<UserRepresentation> page = new Paginated<>();
+      page.setCount(counted ? 0L : null);
+      page.setCountMode(counted ? CountMode.EXACT : CountMode.NONE);
+      page.setLimit(0);
+      page.setOffset(Optional.ofNullable(offset).orElse(0));
+      page.setResults(List.of());
+      provider.getResultCache().put(resultKey, page);
+      return taggedPage(page, etag);
+    }
+
+    // Passing a cursor (an empty one for the first page) switches to keyset pagination: rows are
+    // located by their sort keys instead of skipped over by offset.
+    boolean keyset = cursor != null;
+    boolean hasCursor = keyset && !cursor.isEmpty();
+    List<QueryOrder.Order> keysetOrders = List.of();
+    List<Object> cursorKeys = List.of();
+    if (keyset) {
       try {
-        queryFilter = mapper.readValue(filter, QueryFilter.class);
-      } catch (Exception e) {
-        logger.error("Failed to parse filter", e);
+        keysetOrders = UserQueryBuilder.keysetOrders(pageOrder);
+        if (hasCursor) {
+          QueryCursor queryCursor = QueryCursor.decode(cursor);
+          if (!queryCursor.getOrder().equals(pageOrder.toString())
+              || queryCursor.getKeys().size() != keysetOrders.size()) {
+            throw new IllegalArgumentException("cursor does not match the requested order");
+          }
+          cursorKeys = queryCursor.getKeys();
+        }
+      } catch (IllegalArgumentException e) {
+        logger.debug("Invalid cursor request", e);
         return Response.status(Response.Status.BAD_REQUEST).build();
       }
     }
 
-    // Apply query filter to where clause.
-    qb.distinct(true).select(cb.tuple(root)).where(buildPredicate(qb, cb, root, queryFilter));
-
-    // Set order by.
-    if (order != null && !order.getValues().isEmpty()) {
-      AtomicInteger idx = new AtomicInteger(0);
-      qb.orderBy(
-          order.getValues().stream()
-              .map(
-                  o -> {
-                    String aliasName = "attribute_order_" + idx.getAndIncrement();
-                    // If the sortable key comes from the user attributes table, we need to select
-                    // the value for the given key to sort by it. Otherwise, we can simply use the
-                    // key.
-                    if (isAttributeName(o.getKey())) {
-                      Join<UserEntity, UserAttributeEntity> attributesJoin =
-                          root.join("attributes", JoinType.LEFT);
-                      attributesJoin.on(
-                          cb.and(
-                              cb.equal(root.get("id"), attributesJoin.get("user").get("id")),
-                              cb.equal(attributesJoin.get("name"), o.getKey())));
-                      Expression<Number> valueExpr = attributesJoin.get("value");
-                      Expression<Number> alias = o.isAsc() ? cb.min(valueExpr) : cb.max(valueExpr);
-                      List<Selection<?>> existingSelections =
-                          new ArrayList<>(qb.getSelection().getCompoundSelectionItems());
-                      existingSelections.add(alias.alias(aliasName));
-                      qb.distinct(true)
-                          .select(cb.tuple(existingSelections.toArray(Selection[]::new)))
-                          .groupBy(root);
-                      return o.isAsc() ? cb.asc(alias) : cb.desc(alias);
-                    } else {
-                      Expression<String> alias = root.get(o.getKey());
-                      return o.isAsc() ? cb.asc(alias) : cb.desc(alias);
-                    }
-                  })
-              .toList());
-    } else {
-      qb.orderBy(cb.desc(root.get(CREATED_TIMESTAMP)));
+    // With a list of fields, only those columns are selected instead of whole user entities.
+    Set<String> fieldSet = parseFields(fields);
+    List<String> columns =
+        fieldSet != null ? UserQueryBuilder.projectionColumns(fieldSet, pageOrder) : null;
+
+    // Reuse the page query compiled for this filter shape and order, if there is one.
+    // Null cursor keys change the seek predicate, so they are part of the plan's key.
+    QueryFilter shapeFilter = queryFilter;
+    List<QueryOrder.Order> shapeKeysetOrders = keysetOrders;
+    List<Boolean> nullKeys = UserQueryBuilder.nullKeys(cursorKeys);
+    String mode =
+        keyset
+            ? (hasCursor
+                ? "after" + nullKeys.stream().map(n -> n ? "N" : "V").collect(Collectors.joining())
+                : "first")
+            : "offset";
+    String select = columns != null ? String.join(",", columns) : "*";
+    TypedQuery<Tuple> query;
+    try {
+      CompiledQuery<Tuple> pagePlan =
+          provider
+              .getPlanCache()
+              .get(
+                  realm.getId(),
+                  String.join(
+                      "|",
+                      planSource(em),
+                      "page",
+                      mode,
+                      pageOrder.toString(),
+                      select,
+                      UserQueryBuilder.shapeOf(queryFilter)),
+                  () ->
+                      compilePage(
+                          cb,
+                          shapeFilter,
+                          pageOrder,
+                          shapeKeysetOrders,
+                          hasCursor,
+                          nullKeys,
+                          columns));
+      query =
+          provider
+              .getQueryGuard()
+              .withTimeout(pagePlan.createQuery(em, QueryValues.of(queryFilter, cursorKeys)));
+      timing.setQuery(query);
+      timing.phase("build");
+    } catch (IllegalArgumentException e) {
+      // E.g. a malformed cursor, or a typed value that doesn't parse.
+      logger.debug("Invalid query request", e);
+      return Response.status(Response.Status.BAD_REQUEST).build();
     }
-
     // Limit and offset.
-    TypedQuery<Tuple> query = em.createQuery(qb);
     int cleanedLimit = Math.min(Optional.ofNullable(limit).orElse(DEFAULT_LIMIT), MAX_LIMIT);
     query = query.setMaxResults(cleanedLimit);
-    query = query.setFirstResult(Optional.ofNullable(offset).orElse(0));
-
-    // Get results.
-    List<UserRepresentation> results =
-        query
-            .getResultStream()
-            .map(t -> t.get(0, UserEntity.class))
-            .map(
-                u ->
-                    ModelToRepresentation.toRepresentation(
-                        session, realm, new UserAdapter(session, realm, em, u)))
-            .toList();
-    results = populateGroups(em, cb, results);
-
-    // Get total count.
-    CriteriaQuery<Tuple> countQb = cb.createTupleQuery();
-    Root<UserEntity> countRoot = countQb.from(UserEntity.class);
-
-    countQb
-        .select(cb.tuple(cb.countDistinct(countRoot.get("id"))))
-        .where(buildPredicate(qb, cb, countRoot, queryFilter));
-
-    Long total =
-        em.createQuery(countQb)
-            .getResultStream()
-            .findFirst()
-            .map(t -> t.get(0, Long.class))
-            .orElse(0L);
+    query = query.setFirstResult(keyset ? 0 : Optional.ofNullable(offset).orElse(0));
+
+    CountMode countMode = Optional.ofNullable(count).orElse(provider.getDefaultCountMode());
+    Long total = null;
+    List<Tuple> rows;
+    List<UserRepresentation> results;
+    try (ParallelQueries parallel = provider.newParallelQueries(session, realm)) {
+      // In parallel mode the count runs alongside the page query, and group memberships alongside
+      // the rest of the hydration once the page's ids are known. They read from the same database
+      // as the page query, even if the replica's state changes meanwhile.
+      boolean fromReplica = provider.isReplica(em);
+      CountMode requestedMode = countMode;
+      Future<Long> countFuture =
+          parallel != null && countMode != CountMode.NONE
+              ? parallel.submit(
+                  s -> {
+                    EntityManager countEm = provider.searchEntityManager(s, fromReplica);
+                    return countUsers(
+                        countEm, countEm.getCriteriaBuilder(), countFilter, requestedMode);
+                  })
+              : null;
+
+      // Get results.
+      rows = query.getResultList();
+      timing.phase("page");
+      UserHydrator hydrator =
+          new UserHydrator(session, realm, em, provider.getGroupPathCache());
+      if (parallel != null && (columns == null || fieldSet.contains(UserQueryBuilder.GROUPS))) {
+        List<String> ids =
+            rows.stream()
+                .map(
+                    t ->
+                        columns != null
+                            ? t.get(0, String.class)
+                            : t.get(0, UserEntity.class).getId())
+                .toList();
+        Future<Map<String, List<String>>> groupsFuture =
+            parallel.submit(
+                s ->
+                    new UserHydrator(
+                            s,
+                            s.getContext().getRealm(),
+                            provider.searchEntityManager(s, fromReplica),
+                            provider.getGroupPathCache())
+                        .loadGroups(ids));
+        hydrator.withGroupLoader(
+            userIds -> timing.time("groups", () -> ParallelQueries.await(groupsFuture)));
+      } else {
+        hydrator.withGroupLoader(
+            userIds -> timing.time("groups", () -> hydrator.loadGroups(userIds)));
+      }
+      results =
+          columns != null
+              ? hydrator.fromColumns(rows, columns, fieldSet)
+              : hydrator.toRepresentations(
+                  rows.stream().map(t -> t.get(0, UserEntity.class)).toList());
+      timing.phase("hydrate");
+
+      // Get total count.
+      if (countMode != CountMode.NONE) {
+        int firstResult = query.getFirstResult();
+        if (!keyset && rows.size() < cleanedLimit && (!rows.isEmpty() || firstResult == 0)) {
+          // A partial page already tells us how many rows match, no need to ask the database.
+          total = (long) firstResult + rows.size();
+          countMode = CountMode.EXACT;
+          if (countFuture != null) {
+            countFuture.cancel(true);
+          }
+        } else if (countFuture != null) {
+          total = ParallelQueries.await(countFuture);
+        } else {
+          total = countUsers(em, cb, countFilter, countMode);
+        }
+        timing.phase("count");
+      }
+    } catch (QueryTimeoutException e) {
+      timing.fail(SearchMetrics.TIMEOUT);
+      return timedOut(e);
+    } catch (RuntimeException e) {
+      timing.fail(SearchMetrics.ERROR);
+      throw e;
+    }
 
     // Build response.
     Paginated<UserRepresentation> page = new Paginated<>();
     page.setCount(total);
+    page.setCountMode(countMode);
     page.setLimit(results.size());
     page.setOffset(query.getFirstResult());
     page.setResults(results);
 
-    return Response.ok(page).build();
+    // A full page may be followed by more rows, so hand out a cursor positioned after its last row.
+    if (keyset && !rows.isEmpty() && rows.size() == cleanedLimit) {
+      Tuple last = rows.get(rows.size() - 1);
+      int first = last.getElements().size() - keysetOrders.size();
+      List<Object> keys = new ArrayList<>();
+      for (int i = 0; i < keysetOrders.size(); i++) {
+        keys.add(last.get(first + i));
+      }
+      page.setNext(new QueryCursor(pageOrder.toString(), keys).encode());
+    }
+
+    timing.finish(results.size(), total);
+    provider.getResultCache().put(resultKey, page);
+    return taggedPage(page, etag);
   }
 
-  private Predicate buildPredicate(
-      CriteriaQuery<?> qb, CriteriaBuilder cb, Root<UserEntity> root, QueryFilter filter) {
-    // IMPORTANT: Base query should only include users from specified realm AND exclude all service
-    // accounts.
-    Predicate thePredicate =
-        cb.and(
-            cb.equal(root.get("realmId"), realm.getId()),
-            root.get("serviceAccountClientLink").isNull());
+  /**
+   * Counts the users matching a filter per value of each requested attribute key, or per group for
+   * {@code groups}, returning the most frequent values of each and a count of the rest.
+   */
+  @GET
+  @Path("facets")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getFacets(
+      @QueryParam("filter") String filter,
+      @QueryParam("key") List<String> keys,
+      @QueryParam("size") Integer size) {
+    // IMPORTANT: Check for permissions before executing query.
+    auth.users().requireQuery();
 
-    if (filter != null) {
-      thePredicate = cb.and(thePredicate, getPredicate(qb, cb, root, filter));
+    if (keys == null
+        || keys.isEmpty()
+        || keys.size() > MAX_FACETS
+        || !keys.stream().allMatch(UserQueryBuilder::isAttributeName)) {
+      return Response.status(Response.Status.BAD_REQUEST).build();
     }
+    int cleanedSize =
+        Math.max(1, Math.min(Optional.ofNullable(size).orElse(DEFAULT_FACET_SIZE), MAX_FACET_SIZE));
 
-    return thePredicate;
-  }
-
-  private Predicate getPredicate(
-      CriteriaQuery<?> qb, CriteriaBuilder cb, Root<UserEntity> root, QueryFilter filter) {
-    if (filter.getQ().isPresent()) {
-      QueryFilter.Condition condition = filter.getQ().get();
-      return getPredicate(cb, root, condition);
-    } else if (filter.getGroupQ().isPresent()) {
-      QueryFilter.GroupCondition groupCondition = filter.getGroupQ().get();
-      return getPredicate(qb, cb, root, groupCondition);
-    } else if (filter.getAnd().isPresent()) {
-      return cb.and(
-          filter.getAnd().get().stream()
-              .map(f -> getPredicate(qb, cb, root, f))
-              .toArray(Predicate[]::new));
-    } else if (filter.getOr().isPresent()) {
-      return cb.or(
-          filter.getOr().get().stream()
-              .map(f -> getPredicate(qb, cb, root, f))
-              .toArray(Predicate[]::new));
+    QueryFilter queryFilter = null;
+    try {
+      queryFilter = parseFilter(filter);
+      validateTypes(queryFilter, null);
+      queryFilter = resolveGroups(queryFilter);
+    } catch (IllegalArgumentException e) {
+      // E.g. a subtree over the group limit or an unknown group: the client's to fix.
+      logger.debugf("Invalid filter: %s", e.getMessage());
+      return badRequest(e.getMessage());
+    } catch (Exception e) {
+      logger.error("Failed to parse filter", e);
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+    Response tooExpensive = checkCost(queryFilter, null);
+    if (tooExpensive != null) {
+      return tooExpensive;
     }
-    return cb.conjunction();
-  }
 
-  private Predicate getPredicate(
-      CriteriaBuilder cb, Root<UserEntity> root, QueryFilter.Condition condition) {
-    Boolean ignoreCase = condition.isIgnoreCase().orElse(true);
+    List<Facet> facets = new ArrayList<>();
+    if (FilterNormalizer.isFalse(queryFilter)) {
+      // A filter that can never match doesn't need to reach the database.
+      for (String key : new LinkedHashSet<>(keys)) {
+        Facet facet = new Facet();
+        facet.setKey(key);
+        facet.setValues(Map.of());
+        facets.add(facet);
+      }
+      return Response.ok(facets).build();
+    }
 
-    List<String> values = condition.getValues();
-    if (ignoreCase) {
-      values = values.stream().map(String::toLowerCase).toList();
+    EntityManager em = searchEntityManager(session);
+    UserFacets userFacets =
+        new UserFacets(
+            provider.newQueryBuilder(realm.getId()),
+            provider.getQueryGuard(),
+            em,
+            new UserHydrator(session, realm, em, provider.getGroupPathCache()));
+    try {
+      for (String key : new LinkedHashSet<>(keys)) {
+        facets.add(userFacets.facet(queryFilter, key, cleanedSize));
+      }
+    } catch (QueryTimeoutException e) {
+      return timedOut(e);
+    } catch (IllegalArgumentException e) {
+      // E.g. a typed value that doesn't parse.
+      logger.debug("Invalid facets request", e);
+      return Response.status(Response.Status.BAD_REQUEST).build();
     }
+    return Response.ok(facets).build();
+  }
 
-    String value = values.get(0);
-    QueryFilter.Condition.Operator operator =
-        condition.getOp().orElse(QueryFilter.Condition.Operator.EQ);
-
-    String attributeName = condition.getKey();
-    Join<UserEntity, UserAttributeEntity> attributesJoin = null;
-    Expression<String> alias;
-    if (isAttributeName(attributeName)) {
-      attributesJoin = root.join("attributes");
-      attributesJoin.alias("ua" + attributeCount.incrementAndGet());
-      alias = attributesJoin.get("value");
-    } else {
-      alias = root.get(attributeName);
+  /** Streams every user matching a filter as NDJSON or CSV. */
+  @Path("export")
+  public UsersExportResource export() {
+    return new UsersExportResource(session, realm, auth, this);
+  }
+
+  /** Exports the users matching a filter in the background, to a file downloaded later. */
+  @Path("export-jobs")
+  public UsersExportJobsResource exportJobs() {
+    return new UsersExportJobsResource(session, realm, auth, this);
+  }
+
+  /** Streams the users matching a list of ids, usernames, emails or attribute values. */
+  @Path("lookup")
+  public UsersLookupResource lookup() {
+    return new UsersLookupResource(session, realm, auth, this);
+  }
+
+  /** Reports the hit and miss counts of the provider's caches on this node. */
+  @GET
+  @Path("stats")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getStats() {
+    auth.realm().requireViewRealm();
+
+    return Response.ok(provider.getStats()).build();
+  }
+
+  /**
+   * Rebuilds the realm's typed attribute index from its users' current attributes in the
+   * background. {@code scheduled} is false if a rebuild of the realm is already under way.
+   */
+  @POST
+  @Path("typed-index/rebuild")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response rebuildTypedIndex() {
+    // IMPORTANT: Rebuilding rewrites the index rows of every user in the realm.
+    auth.realm().requireManageRealm();
+
+    boolean scheduled =
+        provider
+            .getTypedAttributeIndexer()
+            .scheduleReindex(session.getKeycloakSessionFactory(), realm.getId());
+    return Response.accepted(Map.of("scheduled", scheduled)).build();
+  }
+
+  /**
+   * Tags a request with the realm's user data version and the current result cache period, so the
+   * tag changes whenever the realm's users change on this node, and at least once per cache TTL to
+   * pick up changes made on other nodes.
+   */
+  private EntityTag entityTag(String request) {
+    long ttl = provider.getResultCacheTtlMillis();
+    String version =
+        provider.getRealmVersions().get(realm.getId())
+            + "."
+            + (ttl > 0 ? System.currentTimeMillis() / ttl : 0);
+    try {
+      byte[] hash =
+          MessageDigest.getInstance("SHA-256")
+              .digest((version + "|" + request).getBytes(StandardCharsets.UTF_8));
+      return new EntityTag(
+          Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, 16)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
     }
+  }
 
-    if (ignoreCase) {
-      alias = cb.lower(alias);
+  /** Returns whether the request's {@code If-None-Match} header matches the tag. */
+  private boolean isNotModified(EntityTag etag) {
+    List<String> values =
+        session.getContext().getRequestHeaders().getRequestHeader(HttpHeaders.IF_NONE_MATCH);
+    if (values == null) {
+      return false;
     }
+    return values.stream()
+        .flatMap(v -> Arrays.stream(v.split(",")))
+        .map(String::trim)
+        .map(t -> t.startsWith("W/") ? t.substring(2) : t)
+        .anyMatch(t -> t.equals("*") || t.equals("\"" + etag.getValue() + "\""));
+  }
+
+  private static Response taggedPage(Paginated<UserRepresentation> page, EntityTag etag) {
+    CacheControl cacheControl = new CacheControl();
+    cacheControl.setPrivate(true);
+    cacheControl.setNoCache(true);
+    return Response.ok(page).tag(etag).cacheControl(cacheControl).build();
+  }
 
-    Predicate thePredicate;
-
-    switch (operator) {
-      case IN:
-        thePredicate = alias.in(values);
-        break;
-      case CONTAINS:
-        thePredicate = cb.like(alias, "%" + value + "%");
-        break;
-      case STARTS:
-        thePredicate = cb.like(alias, value + "%");
-        break;
-      case ENDS:
-        thePredicate = cb.like(alias, "%" + value);
-        break;
-      case GT:
-        thePredicate = cb.greaterThan(alias, value);
-        break;
-      case GTE:
-        thePredicate = cb.greaterThanOrEqualTo(alias, value);
-        break;
-      case LT:
-        thePredicate = cb.lessThan(alias, value);
-        break;
-      case LTE:
-        thePredicate = cb.lessThanOrEqualTo(alias, value);
-        break;
-      case EQ:
-      default:
-        thePredicate = cb.equal(alias, value);
-        break;
+  /**
+   * Checks a request against the provider's query guard, returning a 400 response saying which
+   * limit it exceeds, or null if it may run.
+   */
+  Response checkCost(QueryFilter queryFilter, QueryOrder order) {
+    try {
+      // Counts, facets and exports scan for contains/ends conditions even when the n-gram index
+      // narrows the page down, so they all count against the wildcard limit.
+      provider.getQueryGuard().check(queryFilter, order, condition -> false);
+      return null;
+    } catch (IllegalArgumentException e) {
+      logger.debugf("Refused search: %s", e.getMessage());
+      return badRequest(e.getMessage());
     }
+  }
 
-    if (condition.isNot().orElse(false)) {
-      thePredicate = cb.not(thePredicate);
+  /** Returns a 400 response whose {@code errorMessage} says what is wrong with the request. */
+  static Response badRequest(String message) {
+    return error(Response.Status.BAD_REQUEST, message);
+  }
+
+  /** Returns a response with the status and an {@link ErrorRepresentation} of the message. */
+  static Response error(Response.Status status, String message) {
+    ErrorRepresentation error = new ErrorRepresentation();
+    error.setErrorMessage(message);
+    return Response.status(status).entity(error).type(MediaType.APPLICATION_JSON).build();
+  }
+
+  private static Response timedOut(QueryTimeoutException e) {
+    logger.warn("Search query timed out", e);
+    return error(
+        Response.Status.SERVICE_UNAVAILABLE, "The search took too long, try a narrower filter");
+  }
+
+  /** Parses a JSON5 filter, returning null when there is none. */
+  QueryFilter parseFilter(String filter) throws JsonProcessingException {
+    return provider.getPlanCache().parse(filter);
+  }
+
+  /**
+   * Checks that typed conditions and orders refer to attributes indexed with their type, and that
+   * conditions on number and boolean core columns have values of that type.
+   *
+   * @throws IllegalArgumentException if one doesn't
+   */
+  void validateTypes(QueryFilter queryFilter, QueryOrder order) {
+    provider.getTypedAttributeIndexer().validate(queryFilter, order);
+    UserQueryBuilder.validateColumnValues(queryFilter);
+  }
+
+  /**
+   * Expands subtree and path group conditions into the ids of the realm groups they cover, using
+   * the realm's cached group tree.
+   *
+   * @throws IllegalArgumentException if a subtree covers more groups than allowed
+   */
+  QueryFilter resolveGroups(QueryFilter queryFilter) {
+    if (!GroupClosure.needsExpansion(queryFilter)) {
+      return queryFilter;
     }
+    GroupClosure closure =
+        provider
+            .getGroupClosureCache()
+            .computeIfAbsent(
+                realm.getId(),
+                realmId ->
+                    GroupClosure.load(
+                        session.getProvider(JpaConnectionProvider.class).getEntityManager(),
+                        realmId));
+    return closure.expand(
+        queryFilter,
+        path -> {
+          GroupModel group = KeycloakModelUtils.findGroupByPath(session, realm, path);
+          return group != null ? group.getId() : null;
+        },
+        provider.getMaxSubtreeGroups());
+  }
 
-    if (attributesJoin != null) {
-      thePredicate = cb.and(cb.equal(attributesJoin.get("name"), attributeName), thePredicate);
+  /**
+   * Narrows substring conditions down to the users the node's n-gram index matches. Only for pages
+   * of results: counts, facets and exports must not depend on what the index has seen.
+   */
+  private QueryFilter resolveFilter(QueryFilter queryFilter) {
+    return provider.getNgramIndex().resolve(session, realm, queryFilter);
+  }
+
+  /** Splits a comma separated list of fields, returning null when there is none. */
+  private static Set<String> parseFields(String fields) {
+    if (fields == null || fields.isBlank()) {
+      return null;
     }
+    return Arrays.stream(fields.split(","))
+        .map(String::trim)
+        .filter(f -> !f.isEmpty())
+        .collect(Collectors.toCollection(LinkedHashSet::new));
+  }
 
-    return thePredicate;
+  ExportJobs getExportJobs() {
+    return provider.getExportJobs();
   }
 
-  private Predicate getPredicate(
-      CriteriaQuery<?> qb,
+  boolean isClusteredExportJobs() {
+    return provider.isClusteredExportJobs();
+  }
+
+  BoundedCache<String, String> getGroupPathCache() {
+    return provider.getGroupPathCache();
+  }
+
+  UserQueryBuilder newQueryBuilder() {
+    return provider.newQueryBuilder(realm.getId());
+  }
+
+  QueryGuard getQueryGuard() {
+    return provider.getQueryGuard();
+  }
+
+  private CompiledQuery<Tuple> compilePage(
       CriteriaBuilder cb,
-      Root<UserEntity> root,
-      QueryFilter.GroupCondition groupCondition) {
-    QueryFilter.GroupCondition.Operator operator =
-        groupCondition.getOp().orElse(QueryFilter.GroupCondition.Operator.ALL);
-    List<String> values = groupCondition.getGroups();
-    String attributeName = groupCondition.getKey().orElse("name");
-
-    List<String> allowedGroupColumns = List.of("id", "name", "parentId");
-    if (!allowedGroupColumns.contains(attributeName)) {
-      return cb.disjunction();
-    }
+      QueryFilter queryFilter,
+      QueryOrder order,
+      List<QueryOrder.Order> keysetOrders,
+      boolean hasCursor,
+      List<Boolean> nullKeys,
+      List<String> columns) {
+    UserQueryBuilder queryBuilder = provider.newQueryBuilder(realm.getId());
+    QueryParameters params = new QueryParameters();
 
-    Subquery<Long> sub = qb.subquery(Long.class);
-    Root<UserGroupMembershipEntity> membershipRoot = sub.from(UserGroupMembershipEntity.class);
-    Root<GroupEntity> groupRoot = sub.from(GroupEntity.class);
+    CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+    Root<UserEntity> root = qb.from(UserEntity.class);
 
-    Predicate subPredicate =
-        cb.and(
-            cb.equal(root.get("id"), membershipRoot.get("user").get("id")),
-            cb.equal(groupRoot.get("id"), membershipRoot.get("groupId")),
-            groupRoot.get(attributeName).in(values),
-            cb.equal(groupRoot.get("type"), GroupModel.Type.REALM.intValue()));
-
-    sub.select(cb.count(groupRoot)).where(subPredicate);
-
-    Predicate thePredicate;
-
-    switch (operator) {
-      case ANY:
-        thePredicate = cb.greaterThanOrEqualTo(sub, 1L);
-        break;
-      case NONE:
-        thePredicate = cb.equal(sub, 0L);
-        break;
-      case ALL:
-      default:
-        thePredicate = cb.equal(sub, (long) values.size());
-        break;
+    // Select the user entity, or only the projected columns.
+    Selection<?>[] selections =
+        columns != null
+            ? columns.stream().map(root::get).toArray(Selection[]::new)
+            : new Selection<?>[] {root};
+
+    // Apply query filter to where clause.
+    qb.select(cb.tuple(selections))
+        .where(queryBuilder.buildPredicate(qb, cb, root, queryFilter, params));
+
+    // Set order by.
+    List<Expression<?>> keysetExpressions = List.of();
+    if (keysetOrders.isEmpty()) {
+      queryBuilder.applyOrder(qb, cb, root, order, params);
+    } else {
+      keysetExpressions = queryBuilder.applyKeysetOrder(qb, cb, root, keysetOrders);
+      if (hasCursor) {
+        qb.where(
+            cb.and(
+                qb.getRestriction(),
+                queryBuilder.keysetPredicate(
+                    cb, keysetOrders, keysetExpressions, nullKeys, params)));
+      }
     }
 
-    return thePredicate;
-  }
-
-  private boolean isAttributeName(String name) {
-    switch (name) {
-      case "id":
-      case UserModel.USERNAME:
-      case UserModel.EMAIL:
-      case UserModel.FIRST_NAME:
-      case UserModel.LAST_NAME:
-      case UserModel.EMAIL_VERIFIED:
-      case UserModel.ENABLED:
-      case CREATED_TIMESTAMP:
-        return false;
-      default:
-        return true;
+    // Without joins every user appears once, and DISTINCT would only add a sort or hash.
+    qb.distinct(UserQueryBuilder.needsDistinct(root));
+    return new CompiledQuery<>(qb, params, keysetExpressions);
+  }
+
+  private CompiledQuery<Long> compileCount(CriteriaBuilder cb, QueryFilter queryFilter) {
+    UserQueryBuilder queryBuilder = provider.newQueryBuilder(realm.getId());
+    QueryParameters params = new QueryParameters();
+
+    CriteriaQuery<Long> countQb = cb.createQuery(Long.class);
+    Root<UserEntity> countRoot = countQb.from(UserEntity.class);
+
+    countQb.where(queryBuilder.buildPredicate(countQb, cb, countRoot, queryFilter, params));
+    countQb.select(count(cb, countRoot));
+
+    return new CompiledQuery<>(countQb, params);
+  }
+
+  /** Counts the users matching a filter the way the count mode asks for. */
+  private long countUsers(
+      EntityManager em, CriteriaBuilder cb, QueryFilter queryFilter, CountMode countMode) {
+    if (countMode == CountMode.CACHED) {
+      return provider
+          .getCountCache()
+          .computeIfAbsent(countCacheKey(queryFilter), k -> exactCount(em, cb, queryFilter));
+    } else if (countMode == CountMode.ESTIMATE) {
+      return estimateCount(em, cb, queryFilter);
     }
+    return exactCount(em, cb, queryFilter);
   }
 
-  private List<UserRepresentation> populateGroups(
-      EntityManager em, CriteriaBuilder cb, List<UserRepresentation> users) {
+  /**
+   * Returns the entity manager a session's searches read from: the read replica's while it is
+   * usable, otherwise the primary's.
+   */
+  EntityManager searchEntityManager(KeycloakSession session) {
+    return provider.searchEntityManager(session);
+  }
 
-    CriteriaQuery<Tuple> qb = cb.createTupleQuery();
-    Root<UserGroupMembershipEntity> membershipRoot = qb.from(UserGroupMembershipEntity.class);
-    Root<GroupEntity> groupRoot = qb.from(GroupEntity.class);
+  /**
+   * Returns entity managers for the sessions of a long running read, like an export job, that all
+   * read from the database chosen for the first one.
+   */
+  Function<KeycloakSession, EntityManager> searchEntityManagers() {
+    AtomicReference<Boolean> fromReplica = new AtomicReference<>();
+    return s -> {
+      Boolean chosen = fromReplica.get();
+      if (chosen != null) {
+        return provider.searchEntityManager(s, chosen);
+      }
+      EntityManager em = provider.searchEntityManager(s);
+      fromReplica.set(provider.isReplica(em));
+      return em;
+    };
+  }
 
-    Predicate thisPredicate =
-        cb.and(
-            membershipRoot.get("user").get("id").in(users.stream().map(u -> u.getId()).toList()),
-            cb.equal(groupRoot.get("id"), membershipRoot.get("groupId")),
-            cb.equal(groupRoot.get("type"), GroupModel.Type.REALM.intValue()));
+  /**
+   * Names the database a plan is compiled for, as part of its cache key: a plan is bound to the
+   * metamodel of the entity manager that compiled it.
+   */
+  private String planSource(EntityManager em) {
+    return provider.isReplica(em) ? "replica" : "primary";
+  }
+
+  private long exactCount(EntityManager em, CriteriaBuilder cb, QueryFilter queryFilter) {
+    CompiledQuery<Long> countPlan =
+        provider
+            .getPlanCache()
+            .get(
+                realm.getId(),
+                planSource(em) + "|count|" + UserQueryBuilder.shapeOf(queryFilter),
+                () -> compileCount(cb, queryFilter));
+
+    return provider
+        .getQueryGuard()
+        .withTimeout(countPlan.createQuery(em, QueryValues.of(queryFilter)))
+        .getResultStream()
+        .findFirst()
+        .orElse(0L);
+  }
+
+  /**
+   * Estimates the number of matching users by evaluating the filter against a sample of the
+   * realm's users and scaling the matching fraction up to the realm total. User ids are random
+   * UUIDs, so a run of ids starting at a random pivot is a cheap, index-only random sample.
+   */
+  private long estimateCount(EntityManager em, CriteriaBuilder cb, QueryFilter queryFilter) {
+    int sampleSize = provider.getCountSampleSize();
+    long realmTotal =
+        provider
+            .getCountCache()
+            .computeIfAbsent(countCacheKey(null), k -> exactCount(em, cb, null));
+    if (queryFilter == null) {
+      return realmTotal;
+    }
+    if (realmTotal <= sampleSize) {
+      return exactCount(em, cb, queryFilter);
+    }
 
-    qb.select(cb.tuple(membershipRoot.get("user").get("id"), groupRoot)).where(thisPredicate);
+    String pivot = UUID.randomUUID().toString();
+    List<String> sample = new ArrayList<>(sampleIds(em, cb, pivot, true, sampleSize));
+    if (sample.size() < sampleSize) {
+      sample.addAll(sampleIds(em, cb, pivot, false, sampleSize - sample.size()));
+    }
+    if (sample.isEmpty()) {
+      return 0L;
+    }
 
-    TypedQuery<Tuple> query = em.createQuery(qb);
-    Map<String, List<GroupEntity>> userGroupMap =
-        query
+    UserQueryBuilder queryBuilder = provider.newQueryBuilder(realm.getId());
+    QueryParameters params = new QueryParameters();
+    CriteriaQuery<Long> matchedQb = cb.createQuery(Long.class);
+    Root<UserEntity> matchedRoot = matchedQb.from(UserEntity.class);
+    matchedQb.where(
+        cb.and(
+            queryBuilder.buildPredicate(matchedQb, cb, matchedRoot, queryFilter, params),
+            UserQueryBuilder.in(
+                cb,
+                matchedRoot.get("id"),
+                sample.size(),
+                params,
+                (v, i) -> UserQueryBuilder.padded(sample, i))));
+    matchedQb.select(count(cb, matchedRoot));
+    long matched =
+        provider
+            .getQueryGuard()
+            .withTimeout(params.bind(em.createQuery(matchedQb), QueryValues.of(queryFilter)))
             .getResultStream()
-            .collect(
-                Collectors.groupingBy(
-                    t -> t.get(0, String.class),
-                    Collectors.mapping(t -> t.get(1, GroupEntity.class), Collectors.toList())));
-
-    return users.stream()
-        .map(
-            u -> {
-              u.setGroups(
-                  userGroupMap.getOrDefault(u.getId(), List.of()).stream()
-                      .map(
-                          g ->
-                              ModelToRepresentation.toRepresentation(
-                                      new GroupAdapter(session, realm, em, g), false)
-                                  .getPath())
-                      .toList());
-              return u;
-            })
-        .toList();
+            .findFirst()
+            .orElse(0L);
+
+    return Math.round((double) matched / sample.size() * realmTotal);
+  }
+
+  private List<String> sampleIds(
+      EntityManager em, CriteriaBuilder cb, String pivot, boolean fromPivot, int size) {
+    UserQueryBuilder queryBuilder = provider.newQueryBuilder(realm.getId());
+    QueryParameters params = new QueryParameters();
+    CriteriaQuery<String> sampleQb = cb.createQuery(String.class);
+    Root<UserEntity> sampleRoot = sampleQb.from(UserEntity.class);
+    Expression<String> id = sampleRoot.get("id");
+    Expression<String> from = params.add(cb, String.class, v -> pivot);
+
+    sampleQb
+        .select(id)
+        .where(
+            cb.and(
+                queryBuilder.buildPredicate(sampleQb, cb, sampleRoot, null, params),
+                fromPivot ? cb.greaterThanOrEqualTo(id, from) : cb.lessThan(id, from)))
+        .orderBy(cb.asc(id));
+
+    return provider
+        .getQueryGuard()
+        .withTimeout(params.bind(em.createQuery(sampleQb), QueryValues.of(null)))
+        .setMaxResults(size)
+        .getResultList();
+  }
+
+  /** Counts the users of a query, counting distinct ids only if the query joins collections. */
+  static Expression<Long> count(CriteriaBuilder cb, Root<UserEntity> root) {
+    return UserQueryBuilder.needsDistinct(root)
+        ? cb.countDistinct(root.get("id"))
+        : cb.count(root.get("id"));
+  }
+
+  private String countCacheKey(QueryFilter queryFilter) {
+    return realm.getId() + ":" + (queryFilter == null ? "" : queryFilter.toString());
   }
 }
@@ -1,17 +1,107 @@
 package org.threatzero.keycloak.plugins.services.admin.users;
 
+import io.micrometer.core.instrument.Metrics;
+import jakarta.persistence.EntityManager;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import org.keycloak.Config.Scope;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.representations.idm.UserRepresentation;
 import org.keycloak.services.resources.admin.AdminEventBuilder;
 import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
 import org.keycloak.services.resources.admin.ext.AdminRealmResourceProviderFactory;
 import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.threatzero.keycloak.plugins.services.models.CountMode;
+import org.threatzero.keycloak.plugins.services.models.Paginated;
 
 public class UsersByAttributeResourceProvider
     implements AdminRealmResourceProvider, AdminRealmResourceProviderFactory {
-  private static final String ID = "users-by-attribute";
+  static final String ID = "users-by-attribute";
+
+  private static final String DEFAULT_COUNT_MODE = "defaultCountMode";
+  private static final String COUNT_CACHE_SIZE = "countCacheSize";
+  private static final String COUNT_CACHE_TTL = "countCacheTtl";
+  private static final String COUNT_SAMPLE_SIZE = "countSampleSize";
+  private static final String PLAN_CACHE_SIZE = "planCacheSize";
+  private static final String FILTER_CACHE_SIZE = "filterCacheSize";
+  private static final String GROUP_PATH_CACHE_SIZE = "groupPathCacheSize";
+  private static final String GROUP_PATH_CACHE_TTL = "groupPathCacheTtl";
+  private static final String GROUP_CLOSURE_CACHE_SIZE = "groupClosureCacheSize";
+  private static final String GROUP_CLOSURE_CACHE_TTL = "groupClosureCacheTtl";
+  private static final String MAX_SUBTREE_GROUPS = "maxSubtreeGroups";
+  private static final String ATTRIBUTE_SORT_STRATEGY = "attributeSortStrategy";
+  private static final String ATTRIBUTE_CONDITION_STRATEGY = "attributeConditionStrategy";
+  private static final String TYPED_ATTRIBUTES = "typedAttributes";
+  private static final String TYPED_INDEX_REFRESH_INTERVAL = "typedIndexRefreshInterval";
+  private static final String NGRAM_FIELDS = "ngramFields";
+  private static final String NGRAM_MAX_POSTINGS = "ngramMaxPostings";
+  private static final String NGRAM_MAX_CANDIDATES = "ngramMaxCandidates";
+  private static final String NGRAM_REFRESH_INTERVAL = "ngramRefreshInterval";
+  private static final String RESULT_CACHE_SIZE = "resultCacheSize";
+  private static final String RESULT_CACHE_TTL = "resultCacheTtl";
+  private static final String PARALLEL_QUERIES = "parallelQueries";
+  private static final String MAX_PARALLEL_QUERIES = "maxParallelQueries";
+  private static final String MAX_FILTER_DEPTH = "maxFilterDepth";
+  private static final String MAX_FILTER_CONDITIONS = "maxFilterConditions";
+  private static final String MAX_WILDCARD_CONDITIONS = "maxWildcardConditions";
+  private static final String MAX_ATTRIBUTE_SORTS = "maxAttributeSorts";
+  private static final String QUERY_TIMEOUT = "queryTimeout";
+  private static final String SLOW_QUERY_THRESHOLD = "slowQueryThreshold";
+  private static final String METRICS_MAX_SHAPES = "metricsMaxShapes";
+  private static final String REPLICA_URL = "replicaUrl";
+  private static final String REPLICA_USER = "replicaUser";
+  private static final String REPLICA_PASSWORD = "replicaPassword";
+  private static final String REPLICA_POOL_SIZE = "replicaPoolSize";
+  private static final String REPLICA_MAX_LAG = "replicaMaxLag";
+  private static final String REPLICA_LAG_QUERY = "replicaLagQuery";
+  private static final String REPLICA_CHECK_INTERVAL = "replicaCheckInterval";
+  private static final String EXPORT_DIRECTORY = "exportDirectory";
+  private static final String EXPORT_RETENTION = "exportRetention";
+  private static final String MAX_EXPORT_JOBS = "maxExportJobs";
+  private static final String MAX_QUEUED_EXPORT_JOBS = "maxQueuedExportJobs";
+  private static final String CLUSTERED_EXPORT_JOBS = "clusteredExportJobs";
+
+  private CountMode defaultCountMode = CountMode.EXACT;
+  private UserQueryBuilder.SortStrategy sortStrategy = UserQueryBuilder.SortStrategy.AGGREGATE;
+  private UserQueryBuilder.ConditionStrategy conditionStrategy =
+      UserQueryBuilder.ConditionStrategy.JOIN;
+  private int countSampleSize = 1000;
+  private BoundedCache<String, Long> countCache;
+  private FilterPlanCache planCache;
+  private BoundedCache<String, String> groupPathCache;
+  private BoundedCache<String, GroupClosure> groupClosureCache;
+  private int maxSubtreeGroups = 1024;
+  private TypedAttributeIndexer typedAttributeIndexer = new TypedAttributeIndexer(Map.of());
+  private long typedIndexRefreshMillis;
+  private volatile SearchIndexes searchIndexes;
+  private NgramIndex ngramIndex = new NgramIndex(Set.of(), 0, 0, 0);
+  private final RealmVersions realmVersions = new RealmVersions();
+  private BoundedCache<String, Paginated<UserRepresentation>> resultCache;
+  private long resultCacheTtlMillis;
+  private boolean parallelQueries;
+  private int maxParallelQueries = 2;
+  private QueryGuard queryGuard = QueryGuard.NONE;
+  private SearchMetrics searchMetrics = new SearchMetrics(Metrics.globalRegistry, 0, 100);
+  private ReplicaDatabase replica;
+  private ExportJobs exportJobs;
+  private boolean clusteredExportJobs;
 
   @Override
   public AdminRealmResourceProvider create(KeycloakSession session) {
@@ -19,25 +109,629 @@ public class UsersByAttributeResourceProvider
   }
 
   @Override
-  public void init(Scope config) {}
+  public void init(Scope config) {
+    defaultCountMode =
+        CountMode.fromString(config.get(DEFAULT_COUNT_MODE, CountMode.EXACT.toString()));
+    if (defaultCountMode == null) {
+      defaultCountMode = CountMode.EXACT;
+    }
+    sortStrategy =
+        UserQueryBuilder.SortStrategy.fromString(
+            config.get(
+                ATTRIBUTE_SORT_STRATEGY, UserQueryBuilder.SortStrategy.AGGREGATE.toString()));
+    if (sortStrategy == null) {
+      sortStrategy = UserQueryBuilder.SortStrategy.AGGREGATE;
+    }
+    conditionStrategy =
+        UserQueryBuilder.ConditionStrategy.fromString(
+            config.get(
+                ATTRIBUTE_CONDITION_STRATEGY, UserQueryBuilder.ConditionStrategy.JOIN.toString()));
+    if (conditionStrategy == null) {
+      conditionStrategy = UserQueryBuilder.ConditionStrategy.JOIN;
+    }
+    countSampleSize = config.getInt(COUNT_SAMPLE_SIZE, 1000);
+    countCache =
+        new BoundedCache<>(
+            config.getInt(COUNT_CACHE_SIZE, 1000),
+            TimeUnit.SECONDS.toMillis(config.getInt(COUNT_CACHE_TTL, 60)));
+    planCache =
+        new FilterPlanCache(
+            config.getInt(FILTER_CACHE_SIZE, 1024), config.getInt(PLAN_CACHE_SIZE, 256));
+    groupPathCache =
+        new BoundedCache<>(
+            config.getInt(GROUP_PATH_CACHE_SIZE, 10000),
+            TimeUnit.SECONDS.toMillis(config.getInt(GROUP_PATH_CACHE_TTL, 300)));
+    groupClosureCache =
+        new BoundedCache<>(
+            config.getInt(GROUP_CLOSURE_CACHE_SIZE, 100),
+            TimeUnit.SECONDS.toMillis(config.getInt(GROUP_CLOSURE_CACHE_TTL, 60)));
+    maxSubtreeGroups = config.getInt(MAX_SUBTREE_GROUPS, 1024);
+    typedAttributeIndexer = TypedAttributeIndexer.fromConfig(config.get(TYPED_ATTRIBUTES));
+    typedIndexRefreshMillis =
+        TimeUnit.SECONDS.toMillis(config.getInt(TYPED_INDEX_REFRESH_INTERVAL, 86400));
+    ngramIndex =
+        new NgramIndex(
+            Arrays.stream(config.get(NGRAM_FIELDS, "").split(","))
+                .map(String::trim)
+                .filter(f -> !f.isEmpty())
+                .collect(Collectors.toCollection(LinkedHashSet::new)),
+            config.getInt(NGRAM_MAX_POSTINGS, 5_000_000),
+            config.getInt(NGRAM_MAX_CANDIDATES, 512),
+            TimeUnit.SECONDS.toMillis(config.getInt(NGRAM_REFRESH_INTERVAL, 3600)));
+    resultCacheTtlMillis = TimeUnit.SECONDS.toMillis(config.getInt(RESULT_CACHE_TTL, 10));
+    resultCache =
+        new BoundedCache<>(config.getInt(RESULT_CACHE_SIZE, 0), resultCacheTtlMillis);
+    parallelQueries = config.getBoolean(PARALLEL_QUERIES, false);
+    maxParallelQueries = config.getInt(MAX_PARALLEL_QUERIES, 2);
+    queryGuard =
+        new QueryGuard(
+            config.getInt(MAX_FILTER_DEPTH, 8),
+            config.getInt(MAX_FILTER_CONDITIONS, 64),
+            config.getInt(MAX_WILDCARD_CONDITIONS, 8),
+            config.getInt(MAX_ATTRIBUTE_SORTS, 3),
+            TimeUnit.SECONDS.toMillis(config.getInt(QUERY_TIMEOUT, 30)));
+    searchMetrics =
+        new SearchMetrics(
+            Metrics.globalRegistry,
+            config.getInt(SLOW_QUERY_THRESHOLD, 2000),
+            config.getInt(METRICS_MAX_SHAPES, 100));
+    String replicaUrl = config.get(REPLICA_URL);
+    replica =
+        replicaUrl == null || replicaUrl.isBlank()
+            ? null
+            : new ReplicaDatabase(
+                replicaUrl,
+                config.get(REPLICA_USER),
+                config.get(REPLICA_PASSWORD),
+                config.getInt(REPLICA_POOL_SIZE, 5),
+                TimeUnit.SECONDS.toMillis(config.getInt(REPLICA_MAX_LAG, 10)),
+                ReplicaDatabase.lagQueryFor(replicaUrl, config.get(REPLICA_LAG_QUERY)),
+                TimeUnit.SECONDS.toMillis(config.getInt(REPLICA_CHECK_INTERVAL, 5)));
+    // Export files hold every exported user in full, so they stay out of shared temporary
+    // directories: by default they go to Keycloak's data directory, and without one jobs are off.
+    String exportDirectory = config.get(EXPORT_DIRECTORY);
+    String homeDirectory = System.getProperty("kc.home.dir");
+    Path exportPath =
+        exportDirectory != null && !exportDirectory.isBlank()
+            ? Path.of(exportDirectory)
+            : homeDirectory != null ? Path.of(homeDirectory, "data", "user-exports") : null;
+    exportJobs =
+        exportPath == null
+            ? null
+            : new ExportJobs(
+                exportPath,
+                config.getInt(MAX_EXPORT_JOBS, 2),
+                config.getInt(MAX_QUEUED_EXPORT_JOBS, 5),
+                TimeUnit.HOURS.toMillis(config.getInt(EXPORT_RETENTION, 24)));
+    clusteredExportJobs = config.getBoolean(CLUSTERED_EXPORT_JOBS, false);
+  }
 
   @Override
-  public void postInit(KeycloakSessionFactory factory) {}
+  public void postInit(KeycloakSessionFactory factory) {
+    factory.register(this::onEvent);
+    typedAttributeIndexer.scheduleRefresh(factory, typedIndexRefreshMillis);
+    if (exportJobs != null) {
+      exportJobs.start();
+    }
+  }
+
+  private void onEvent(ProviderEvent event) {
+    // Drop everything cached for a realm once it is gone.
+    if (event instanceof RealmModel.RealmRemovedEvent removed) {
+      String realmId = removed.getRealm().getId();
+      planCache.invalidateRealm(realmId);
+      countCache.invalidateIf(k -> k.startsWith(realmId + ":"));
+      invalidateGroupPaths(realmId);
+      ngramIndex.invalidateRealm(realmId);
+      invalidateResults(realmId);
+      realmVersions.remove(realmId);
+    }
+
+    // Build the n-gram indexes in the background once the database is ready, and drop users
+    // removed on this node from them.
+    if (event instanceof PostMigrationEvent migrated) {
+      ngramIndex.scheduleBuildAll(migrated.getFactory());
+    } else if (event instanceof UserModel.UserRemovedEvent removed) {
+      ngramIndex.removeUser(removed.getRealm().getId(), removed.getUser().getId());
+      bumpVersion(removed.getRealm().getId());
+    }
+
+    // Creating, renaming, moving or removing a group can change the paths of its whole subtree, so
+    // drop every cached path of the realm, and its group tree. The TTLs cover changes made on other
+    // nodes.
+    if (event instanceof GroupModel.GroupCreatedEvent created) {
+      invalidateGroupPaths(created.getRealm().getId());
+    } else if (event instanceof GroupModel.GroupPathChangeEvent changed) {
+      invalidateGroupPaths(changed.getRealm().getId());
+      bumpVersion(changed.getRealm().getId());
+    } else if (event instanceof GroupModel.GroupRemovedEvent removed) {
+      invalidateGroupPaths(removed.getRealm().getId());
+      bumpVersion(removed.getRealm().getId());
+    }
+  }
+
+  /** Marks the realm's search results as outdated and drops the cached ones. */
+  private void bumpVersion(String realmId) {
+    realmVersions.bump(realmId);
+    invalidateResults(realmId);
+  }
+
+  private void invalidateResults(String realmId) {
+    resultCache.invalidateIf(k -> k.startsWith(realmId + "|"));
+  }
+
+  private void invalidateGroupPaths(String realmId) {
+    groupPathCache.invalidateIf(k -> k.startsWith(UserHydrator.groupPathKey(realmId, "")));
+    groupClosureCache.invalidate(realmId);
+  }
 
   @Override
-  public void close() {}
+  public void close() {
+    typedAttributeIndexer.close();
+    if (exportJobs != null) {
+      exportJobs.close();
+    }
+    if (replica != null) {
+      replica.close();
+    }
+  }
 
   @Override
   public String getId() {
     return ID;
   }
 
+  @Override
+  public List<ProviderConfigProperty> getConfigMetadata() {
+    return ProviderConfigurationBuilder.create()
+        .property()
+        .name(DEFAULT_COUNT_MODE)
+        .type("string")
+        .helpText("Count mode used when a request does not specify one.")
+        .options("exact", "none", "estimate", "cached")
+        .defaultValue("exact")
+        .add()
+        .property()
+        .name(COUNT_CACHE_SIZE)
+        .type("int")
+        .helpText("Maximum number of filter counts kept for the 'cached' count mode.")
+        .defaultValue(1000)
+        .add()
+        .property()
+        .name(COUNT_CACHE_TTL)
+        .type("int")
+        .helpText("Seconds a cached count is reused before it is recomputed.")
+        .defaultValue(60)
+        .add()
+        .property()
+        .name(COUNT_SAMPLE_SIZE)
+        .type("int")
+        .helpText("Number of users sampled to extrapolate 'estimate' counts.")
+        .defaultValue(1000)
+        .add()
+        .property()
+        .name(PLAN_CACHE_SIZE)
+        .type("int")
+        .helpText("Maximum number of compiled query templates kept across all realms.")
+        .defaultValue(256)
+        .add()
+        .property()
+        .name(FILTER_CACHE_SIZE)
+        .type("int")
+        .helpText("Maximum number of parsed filters kept, keyed by their JSON5 text.")
+        .defaultValue(1024)
+        .add()
+        .property()
+        .name(GROUP_PATH_CACHE_SIZE)
+        .type("int")
+        .helpText("Maximum number of group paths kept across all realms.")
+        .defaultValue(10000)
+        .add()
+        .property()
+        .name(GROUP_PATH_CACHE_TTL)
+        .type("int")
+        .helpText("Seconds a cached group path is reused before it is resolved again.")
+        .defaultValue(300)
+        .add()
+        .property()
+        .name(GROUP_CLOSURE_CACHE_SIZE)
+        .type("int")
+        .helpText("Maximum number of realms whose group tree is kept for subtree conditions.")
+        .defaultValue(100)
+        .add()
+        .property()
+        .name(GROUP_CLOSURE_CACHE_TTL)
+        .type("int")
+        .helpText("Seconds a cached group tree is reused before it is loaded again.")
+        .defaultValue(60)
+        .add()
+        .property()
+        .name(MAX_SUBTREE_GROUPS)
+        .type("int")
+        .helpText(
+            "Maximum number of groups a subtree group condition may cover. 0 disables the limit.")
+        .defaultValue(1024)
+        .add()
+        .property()
+        .name(ATTRIBUTE_SORT_STRATEGY)
+        .type("string")
+        .helpText(
+            "How orders by attribute keys are compiled: 'aggregate' (join and group by user) or"
+                + " 'subquery' (one correlated subquery per sort key).")
+        .options("aggregate", "subquery")
+        .defaultValue("aggregate")
+        .add()
+        .property()
+        .name(ATTRIBUTE_CONDITION_STRATEGY)
+        .type("string")
+        .helpText(
+            "How conditions on attribute keys are compiled: 'join' (one join per condition) or"
+                + " 'exists' (one correlated EXISTS subquery per condition).")
+        .options("join", "exists")
+        .defaultValue("join")
+        .add()
+        .property()
+        .name(TYPED_ATTRIBUTES)
+        .type("string")
+        .helpText(
+            "Comma separated attributes indexed as numbers or dates for typed conditions and"
+                + " orders, e.g. 'seats:number,hired:date'. Requires the users-by-attribute JPA"
+                + " entity provider.")
+        .add()
+        .property()
+        .name(TYPED_INDEX_REFRESH_INTERVAL)
+        .type("int")
+        .helpText(
+            "Seconds between rebuilds of every realm's typed attribute index, to pick up changes"
+                + " the event listener doesn't see, like imports and LDAP syncs. 0 disables"
+                + " rebuilds.")
+        .defaultValue(86400)
+        .add()
+        .property()
+        .name(NGRAM_FIELDS)
+        .type("string")
+        .helpText(
+            "Comma separated core fields and attributes kept in an in-memory n-gram index on each"
+                + " node, to resolve case-insensitive 'contains' and 'ends' conditions.")
+        .add()
+        .property()
+        .name(NGRAM_MAX_POSTINGS)
+        .type("int")
+        .helpText(
+            "Maximum number of (gram, user) entries kept in the n-gram indexes of all realms."
+                + " Realms that don't fit are searched in the database.")
+        .defaultValue(5_000_000)
+        .add()
+        .property()
+        .name(NGRAM_MAX_CANDIDATES)
+        .type("int")
+        .helpText(
+            "Maximum number of users an n-gram match may return to be used, larger matches are"
+                + " searched in the database.")
+        .defaultValue(512)
+        .add()
+        .property()
+        .name(NGRAM_REFRESH_INTERVAL)
+        .type("int")
+        .helpText(
+            "Seconds after which a realm's n-gram index is rebuilt, to pick up changes made on"
+                + " other nodes. 0 disables rebuilds.")
+        .defaultValue(3600)
+        .add()
+        .property()
+        .name(RESULT_CACHE_SIZE)
+        .type("int")
+        .helpText(
+            "Maximum number of search result pages cached until the realm's users change. 0"
+                + " disables the cache; ETags are sent either way.")
+        .defaultValue(0)
+        .add()
+        .property()
+        .name(RESULT_CACHE_TTL)
+        .type("int")
+        .helpText(
+            "Seconds a cached page or ETag stays valid, which bounds how long changes made on"
+                + " other nodes can go unnoticed.")
+        .defaultValue(10)
+        .add()
+        .property()
+        .name(PARALLEL_QUERIES)
+        .type("boolean")
+        .helpText(
+            "Run a search's count and group memberships queries concurrently with its page query,"
+                + " each on a virtual thread with its own read-only transaction.")
+        .defaultValue(false)
+        .add()
+        .property()
+        .name(MAX_PARALLEL_QUERIES)
+        .type("int")
+        .helpText(
+            "Maximum number of a search's queries running at the same time besides its page"
+                + " query, and so of extra database connections it takes.")
+        .defaultValue(2)
+        .add()
+        .property()
+        .name(MAX_FILTER_DEPTH)
+        .type("int")
+        .helpText("Maximum nesting depth of a search filter. 0 disables the limit.")
+        .defaultValue(8)
+        .add()
+        .property()
+        .name(MAX_FILTER_CONDITIONS)
+        .type("int")
+        .helpText("Maximum number of conditions in a search filter. 0 disables the limit.")
+        .defaultValue(64)
+        .add()
+        .property()
+        .name(MAX_WILDCARD_CONDITIONS)
+        .type("int")
+        .helpText(
+            "Maximum number of 'contains' and 'ends' conditions in a search filter. 0 disables"
+                + " the limit.")
+        .defaultValue(8)
+        .add()
+        .property()
+        .name(MAX_ATTRIBUTE_SORTS)
+        .type("int")
+        .helpText("Maximum number of attribute keys in a search order. 0 disables the limit.")
+        .defaultValue(3)
+        .add()
+        .property()
+        .name(QUERY_TIMEOUT)
+        .type("int")
+        .helpText(
+            "Seconds a search, count, facet, export or lookup query may run before the database"
+                + " cancels it. 0 disables the timeout.")
+        .defaultValue(30)
+        .add()
+        .property()
+        .name(SLOW_QUERY_THRESHOLD)
+        .type("int")
+        .helpText(
+            "Milliseconds after which a search is logged with its filter, query and phase"
+                + " timings. 0 disables the log.")
+        .defaultValue(2000)
+        .add()
+        .property()
+        .name(METRICS_MAX_SHAPES)
+        .type("int")
+        .helpText(
+            "Maximum number of filter shapes tagged on their own in search metrics on each node."
+                + " Searches with other shapes are tagged 'other'.")
+        .defaultValue(100)
+        .add()
+        .property()
+        .name(REPLICA_URL)
+        .type("string")
+        .helpText(
+            "JDBC URL of a read-only copy of the database that searches, counts, facets and"
+                + " exports read from. Empty reads everything from the primary.")
+        .add()
+        .property()
+        .name(REPLICA_USER)
+        .type("string")
+        .helpText("Database user for the replica.")
+        .add()
+        .property()
+        .name(REPLICA_PASSWORD)
+        .type("string")
+        .helpText("Database password for the replica.")
+        .secret(true)
+        .add()
+        .property()
+        .name(REPLICA_POOL_SIZE)
+        .type("int")
+        .helpText("Maximum number of connections to the replica per node.")
+        .defaultValue(5)
+        .add()
+        .property()
+        .name(REPLICA_MAX_LAG)
+        .type("int")
+        .helpText(
+            "Seconds the replica may be behind the primary before searches read from the primary"
+                + " instead.")
+        .defaultValue(10)
+        .add()
+        .property()
+        .name(REPLICA_LAG_QUERY)
+        .type("string")
+        .helpText(
+            "Query returning how many seconds the replica is behind. Defaults to PostgreSQL's"
+                + " replay delay for PostgreSQL URLs; 'none' never checks.")
+        .add()
+        .property()
+        .name(REPLICA_CHECK_INTERVAL)
+        .type("int")
+        .helpText("Seconds between checks of the replica's lag and availability.")
+        .defaultValue(5)
+        .add()
+        .property()
+        .name(EXPORT_DIRECTORY)
+        .type("string")
+        .helpText(
+            "Local directory export jobs write their files to, only accessible to the server's"
+                + " user. Defaults to data/user-exports in the Keycloak home directory.")
+        .add()
+        .property()
+        .name(EXPORT_RETENTION)
+        .type("int")
+        .helpText("Hours a finished export job and its file are kept.")
+        .defaultValue(24)
+        .add()
+        .property()
+        .name(MAX_EXPORT_JOBS)
+        .type("int")
+        .helpText("Maximum number of export jobs running at once on a node. Others wait in line.")
+        .defaultValue(2)
+        .add()
+        .property()
+        .name(MAX_QUEUED_EXPORT_JOBS)
+        .type("int")
+        .helpText("Maximum number of queued or running export jobs of a realm on a node.")
+        .defaultValue(5)
+        .add()
+        .property()
+        .name(CLUSTERED_EXPORT_JOBS)
+        .type("boolean")
+        .helpText(
+            "Allows export jobs on a cluster. Jobs are only known to the node running them, so"
+                + " the load balancer must route an admin's requests to the same node (sticky"
+                + " sessions).")
+        .defaultValue(false)
+        .add()
+        .build();
+  }
+
   @Override
   public Object getResource(
       KeycloakSession session,
       RealmModel realm,
       AdminPermissionEvaluator auth,
       AdminEventBuilder event) {
-    return new UsersByAttributeResource(session, realm, auth, event);
+    // Indexes are only created while the server starts, so detecting them once per node is enough.
+    if (searchIndexes == null) {
+      searchIndexes = SearchIndexes.detect(session);
+    }
+    return new UsersByAttributeResource(session, realm, auth, event, this);
+  }
+
+  CountMode getDefaultCountMode() {
+    return defaultCountMode;
+  }
+
+  int getCountSampleSize() {
+    return countSampleSize;
+  }
+
+  BoundedCache<String, Long> getCountCache() {
+    return countCache;
+  }
+
+  FilterPlanCache getPlanCache() {
+    return planCache;
+  }
+
+  UserQueryBuilder newQueryBuilder(String realmId) {
+    return new UserQueryBuilder(
+        realmId,
+        sortStrategy,
+        conditionStrategy,
+        searchIndexes != null ? searchIndexes : SearchIndexes.NONE);
+  }
+
+  BoundedCache<String, String> getGroupPathCache() {
+    return groupPathCache;
+  }
+
+  BoundedCache<String, GroupClosure> getGroupClosureCache() {
+    return groupClosureCache;
+  }
+
+  int getMaxSubtreeGroups() {
+    return maxSubtreeGroups;
+  }
+
+  TypedAttributeIndexer getTypedAttributeIndexer() {
+    return typedAttributeIndexer;
+  }
+
+  NgramIndex getNgramIndex() {
+    return ngramIndex;
+  }
+
+  RealmVersions getRealmVersions() {
+    return realmVersions;
+  }
+
+  BoundedCache<String, Paginated<UserRepresentation>> getResultCache() {
+    return resultCache;
+  }
+
+  long getResultCacheTtlMillis() {
+    return resultCacheTtlMillis;
+  }
+
+  SearchMetrics getSearchMetrics() {
+    return searchMetrics;
+  }
+
+  ExportJobs getExportJobs() {
+    return exportJobs;
+  }
+
+  boolean isClusteredExportJobs() {
+    return clusteredExportJobs;
+  }
+
+  /** Whether other Keycloak nodes share this node's caches. */
+  static boolean isClustered(KeycloakSession session) {
+    InfinispanConnectionProvider infinispan =
+        session.getProvider(InfinispanConnectionProvider.class);
+    if (infinispan == null) {
+      return false;
+    }
+    // A cache manager without a transport, in local mode, has no members.
+    List<?> members =
+        infinispan
+            .getCache(InfinispanConnectionProvider.WORK_CACHE_NAME)
+            .getCacheManager()
+            .getMembers();
+    return members != null && members.size() > 1;
+  }
+
+  QueryGuard getQueryGuard() {
+    return queryGuard;
+  }
+
+  /**
+   * Returns the entity manager a session's searches read from: one on the read replica while it is
+   * usable, closed with the session, otherwise the primary's.
+   */
+  EntityManager searchEntityManager(KeycloakSession session) {
+    EntityManager em = replica != null ? replica.createEntityManager() : null;
+    if (em == null) {
+      return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+    session.enlistForClose(() -> ReplicaDatabase.close(em));
+    return em;
+  }
+
+  /**
+   * Returns an entity manager on the database a request already chose, for its other queries, so
+   * one request never mixes replica and primary reads. A replica one is closed with the session.
+   */
+  EntityManager searchEntityManager(KeycloakSession session, boolean fromReplica) {
+    if (!fromReplica || replica == null) {
+      return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+    EntityManager em = replica.openEntityManager();
+    session.enlistForClose(() -> ReplicaDatabase.close(em));
+    return em;
+  }
+
+  boolean isReplica(EntityManager em) {
+    return replica != null && replica.owns(em);
+  }
+
+  /** Returns a runner for a search's concurrent queries, or null if they run one after another. */
+  ParallelQueries newParallelQueries(KeycloakSession session, RealmModel realm) {
+    return parallelQueries
+        ? new ParallelQueries(
+            session.getKeycloakSessionFactory(), realm.getId(), maxParallelQueries)
+        : null;
+  }
+
+  Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>(planCache.getStats());
+    stats.put("counts", FilterPlanCache.statsOf(countCache));
+    stats.put("groupPaths", FilterPlanCache.statsOf(groupPathCache));
+    stats.put("groupClosures", FilterPlanCache.statsOf(groupClosureCache));
+    stats.put("indexes", searchIndexes != null ? searchIndexes.getNames() : Set.of());
+    stats.put("ngram", ngramIndex.getStats());
+    stats.put("results", FilterPlanCache.statsOf(resultCache));
+    if (replica != null) {
+      stats.put("replica", replica.getStats());
+    }
+    return stats;
   }
 }
@@ -0,0 +1,259 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.threatzero.keycloak.plugins.services.models.ExportJob;
+import org.threatzero.keycloak.plugins.services.models.ExportJobRequest;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+
+import jakarta.persistence.EntityManager;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+
+/**
+ * Exports the users matching a {@link QueryFilter} in the background, for exports too large to
+ * stream within one request. A job is created with a POST, polled for its status and progress,
+ * and its gzip compressed file downloaded, in parts if need be, once it completes.
+ *
+ * <p>Jobs and their files are only known to the node running them. On a cluster the API answers
+ * 503 unless it is enabled with {@code clusteredExportJobs}, for load balancers that route an
+ * admin's requests to the same node (sticky sessions).
+ */
+public class UsersExportJobsResource {
+  private static final Logger logger = Logger.getLogger(UsersExportJobsResource.class);
+
+  private static final String GZIP = "application/gzip";
+
+  private final KeycloakSession session;
+  private final RealmModel realm;
+  private final AdminPermissionEvaluator auth;
+  private final UsersByAttributeResource parent;
+
+  public UsersExportJobsResource(
+      KeycloakSession session,
+      RealmModel realm,
+      AdminPermissionEvaluator auth,
+      UsersByAttributeResource parent) {
+    this.session = session;
+    this.realm = realm;
+    this.auth = auth;
+    this.parent = parent;
+  }
+
+  @POST
+  @Path("/")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response createJob(ExportJobRequest request) {
+    // IMPORTANT: Check for permissions before executing query. Exports hand out every matching
+    // user in full, so they require view rather than just query permission.
+    auth.users().requireView();
+    Response unavailable = checkAvailable();
+    if (unavailable != null) {
+      return unavailable;
+    }
+
+    if (request == null) {
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+    UserExportWriter.Format format = UserExportWriter.Format.fromString(request.getFormat());
+    if (format == null) {
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+    List<String> attributes =
+        request.getAttributes() == null
+            ? List.of()
+            : request.getAttributes().stream()
+                .filter(a -> a != null && !a.isBlank())
+                .map(String::trim)
+                .toList();
+
+    QueryFilter queryFilter;
+    try {
+      queryFilter = FilterNormalizer.normalize(request.getFilter());
+      parent.validateTypes(queryFilter, null);
+      queryFilter = parent.resolveGroups(queryFilter);
+    } catch (IllegalArgumentException e) {
+      // E.g. a subtree over the group limit or an unknown group: the client's to fix.
+      logger.debugf("Invalid filter: %s", e.getMessage());
+      return UsersByAttributeResource.badRequest(e.getMessage());
+    } catch (Exception e) {
+      logger.error("Failed to parse filter", e);
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+    Response refused = parent.checkCost(queryFilter, null);
+    if (refused != null) {
+      return refused;
+    }
+
+    // The job reads through sessions of its own, since it outlives this request. Like a direct
+    // export, it doesn't narrow its filter down with the n-gram index.
+    String realmId = realm.getId();
+    QueryFilter jobFilter = queryFilter;
+    BoundedCache<String, String> groupPaths = parent.getGroupPathCache();
+    UserQueryBuilder queryBuilder = parent.newQueryBuilder();
+    QueryGuard guard = parent.getQueryGuard();
+    KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+    Function<KeycloakSession, EntityManager> entityManagers = parent.searchEntityManagers();
+    ExportJob job;
+    try {
+      job =
+          parent
+              .getExportJobs()
+              .submit(
+                  realmId,
+                  format,
+                  attributes,
+                  (writer, progress) ->
+                      UsersExportResource.writeUsersInChunks(
+                          sessionFactory,
+                          entityManagers,
+                          realmId,
+                          queryBuilder,
+                          guard,
+                          jobFilter,
+                          groupPaths,
+                          writer,
+                          progress));
+    } catch (RejectedExecutionException e) {
+      return UsersByAttributeResource.error(Response.Status.TOO_MANY_REQUESTS, e.getMessage());
+    }
+
+    return Response.accepted(job).build();
+  }
+
+  @GET
+  @Path("/")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response listJobs() {
+    // IMPORTANT: Check for permissions before returning jobs.
+    auth.users().requireView();
+    Response unavailable = checkAvailable();
+    if (unavailable != null) {
+      return unavailable;
+    }
+
+    return Response.ok(parent.getExportJobs().list(realm.getId())).build();
+  }
+
+  @GET
+  @Path("{id}")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getJob(@PathParam("id") String id) {
+    // IMPORTANT: Check for permissions before returning the job.
+    auth.users().requireView();
+    Response unavailable = checkAvailable();
+    if (unavailable != null) {
+      return unavailable;
+    }
+
+    ExportJob job = parent.getExportJobs().get(realm.getId(), id);
+    if (job == null) {
+      return Response.status(Response.Status.NOT_FOUND).build();
+    }
+    return Response.ok(job).build();
+  }
+
+  /**
+   * Downloads the file of a completed job. A {@code Range} header with a single byte range gets
+   * just that part of the file, so an interrupted download can be resumed.
+   */
+  @GET
+  @Path("{id}/file")
+  @Produces(GZIP)
+  public Response downloadFile(
+      @PathParam("id") String id, @HeaderParam("Range") String rangeHeader) {
+    // IMPORTANT: Check for permissions before returning the file.
+    auth.users().requireView();
+    Response unavailable = checkAvailable();
+    if (unavailable != null) {
+      return unavailable;
+    }
+
+    ExportJobs exportJobs = parent.getExportJobs();
+    String realmId = realm.getId();
+    ExportJob job = exportJobs.get(realmId, id);
+    if (job == null || job.getStatus() != ExportJob.Status.COMPLETED) {
+      return Response.status(Response.Status.NOT_FOUND).build();
+    }
+
+    long size = job.getSize();
+    long[] range;
+    try {
+      range = ExportJobs.parseRange(rangeHeader, size);
+    } catch (IllegalArgumentException e) {
+      return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+          .header("Content-Range", "bytes */" + size)
+          .build();
+    }
+    long first = range != null ? range[0] : 0;
+    long length = range != null ? range[1] - range[0] + 1 : size;
+
+    StreamingOutput body = output -> exportJobs.copyFile(realmId, id, first, length, output);
+    Response.ResponseBuilder response =
+        range != null
+            ? Response.status(Response.Status.PARTIAL_CONTENT)
+                .header("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size)
+            : Response.ok();
+    return response
+        .entity(body)
+        .type(GZIP)
+        .header("Accept-Ranges", "bytes")
+        .header(HttpHeaders.CONTENT_LENGTH, length)
+        .header(
+            HttpHeaders.CONTENT_DISPOSITION,
+            "attachment; filename=\"users-" + realm.getName() + "." + job.getFormat() + ".gz\"")
+        .build();
+  }
+
+  /** Cancels a job that hasn't finished yet, and deletes it with its file. */
+  @DELETE
+  @Path("{id}")
+  public Response deleteJob(@PathParam("id") String id) {
+    // IMPORTANT: Check for permissions before deleting the job.
+    auth.users().requireView();
+    Response unavailable = checkAvailable();
+    if (unavailable != null) {
+      return unavailable;
+    }
+
+    if (!parent.getExportJobs().delete(realm.getId(), id)) {
+      return Response.status(Response.Status.NOT_FOUND).build();
+    }
+    return Response.noContent().build();
+  }
+
+  /**
+   * Returns a 503 response saying why export jobs can't be used on this node, or null if they can.
+   */
+  private Response checkAvailable() {
+    String reason = null;
+    if (parent.getExportJobs() == null) {
+      reason = "Export jobs are disabled: no export directory is configured";
+    } else if (!parent.isClusteredExportJobs()
+        && UsersByAttributeResourceProvider.isClustered(session)) {
+      reason = "Export jobs are disabled on a cluster unless requests use sticky sessions";
+    }
+    if (reason == null) {
+      return null;
+    }
+    return UsersByAttributeResource.error(Response.Status.SERVICE_UNAVAILABLE, reason);
+  }
+}
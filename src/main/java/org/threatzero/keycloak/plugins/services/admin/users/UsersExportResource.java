@@ -0,0 +1,324 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+import org.threatzero.keycloak.plugins.services.models.QueryOrder;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.TypedQuery;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.ParameterExpression;
+import jakarta.persistence.criteria.Root;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+
+/**
+ * Streams every user matching a {@link QueryFilter} as NDJSON or CSV. Rows are read through a
+ * forward-only result stream and hydrated in fixed-size chunks, clearing the persistence context
+ * after each chunk, so memory use does not grow with the size of the export.
+ */
+public class UsersExportResource {
+  private static final Logger logger = Logger.getLogger(UsersExportResource.class);
+
+  private static final int CHUNK_SIZE = 500;
+
+  private final KeycloakSession session;
+  private final RealmModel realm;
+  private final AdminPermissionEvaluator auth;
+  private final UsersByAttributeResource parent;
+
+  public UsersExportResource(
+      KeycloakSession session,
+      RealmModel realm,
+      AdminPermissionEvaluator auth,
+      UsersByAttributeResource parent) {
+    this.session = session;
+    this.realm = realm;
+    this.auth = auth;
+    this.parent = parent;
+  }
+
+  @GET
+  @Path("/")
+  @Produces({UserExportWriter.NDJSON, UserExportWriter.CSV})
+  public Response exportUsers(
+      @QueryParam("filter") String filter,
+      @QueryParam("order") QueryOrder order,
+      @QueryParam("format") String format,
+      @QueryParam("attributes") String attributes) {
+    // IMPORTANT: Check for permissions before executing query. Exports hand out every matching
+    // user in full, so they require view rather than just query permission.
+    auth.users().requireView();
+
+    QueryFilter parsedFilter;
+    try {
+      parsedFilter = parent.parseFilter(filter);
+      parent.validateTypes(parsedFilter, order);
+      parsedFilter = parent.resolveGroups(parsedFilter);
+    } catch (IllegalArgumentException e) {
+      // E.g. a subtree over the group limit or an unknown group: the client's to fix.
+      logger.debugf("Invalid filter: %s", e.getMessage());
+      return UsersByAttributeResource.badRequest(e.getMessage());
+    } catch (Exception e) {
+      logger.error("Failed to parse filter", e);
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+    Response tooExpensive = parent.checkCost(parsedFilter, order);
+    if (tooExpensive != null) {
+      return tooExpensive;
+    }
+    // Not narrowed down with the n-gram index: an export must hold every matching user.
+    QueryFilter queryFilter = parsedFilter;
+
+    UserExportWriter.Format exportFormat = UserExportWriter.Format.fromString(format);
+    if (exportFormat == null) {
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+    List<String> attributeColumns =
+        attributes == null || attributes.isBlank()
+            ? List.of()
+            : Stream.of(attributes.split(","))
+                .map(String::trim)
+                .filter(a -> !a.isEmpty())
+                .toList();
+
+    // The export runs in its own session and transaction: the response body is written after this
+    // method returns, when the request's session may already be closed.
+    String realmId = realm.getId();
+    BoundedCache<String, String> groupPaths = parent.getGroupPathCache();
+    UserQueryBuilder queryBuilder = parent.newQueryBuilder();
+    QueryGuard guard = parent.getQueryGuard();
+    KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+    StreamingOutput stream =
+        output ->
+            KeycloakModelUtils.runJobInTransaction(
+                sessionFactory,
+                exportSession -> {
+                  try {
+                    writeUsers(
+                        exportSession,
+                        parent.searchEntityManager(exportSession),
+                        realmId,
+                        queryBuilder,
+                        guard,
+                        queryFilter,
+                        order,
+                        groupPaths,
+                        UserExportWriter.create(exportFormat, output, attributeColumns));
+                  } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                  }
+                });
+
+    return Response.ok(stream, exportFormat.getMediaType())
+        .header(
+            HttpHeaders.CONTENT_DISPOSITION,
+            "attachment; filename=\"users-" + realm.getName() + "." + exportFormat + "\"")
+        .build();
+  }
+
+  /**
+   * Writes every user matching the filter to the writer and returns how many were written. The
+   * guard's statement timeout applies to the query, not to how long the client takes to read the
+   * export.
+   */
+  static long writeUsers(
+      KeycloakSession session,
+      EntityManager em,
+      String realmId,
+      UserQueryBuilder queryBuilder,
+      QueryGuard guard,
+      QueryFilter queryFilter,
+      QueryOrder order,
+      BoundedCache<String, String> groupPaths,
+      UserExportWriter writer)
+      throws IOException {
+    RealmModel realm = session.realms().getRealm(realmId);
+    session.getContext().setRealm(realm);
+
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+    QueryParameters params = new QueryParameters();
+    UserHydrator hydrator = new UserHydrator(session, realm, em, groupPaths);
+
+    CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+    Root<UserEntity> root = qb.from(UserEntity.class);
+    qb.select(cb.tuple(root))
+        .where(queryBuilder.buildPredicate(qb, cb, root, queryFilter, params));
+    queryBuilder.applyOrder(qb, cb, root, order, params);
+    qb.distinct(UserQueryBuilder.needsDistinct(root));
+
+    TypedQuery<Tuple> query =
+        guard
+            .withTimeout(params.bind(em.createQuery(qb), QueryValues.of(queryFilter)))
+            .setHint("org.hibernate.fetchSize", CHUNK_SIZE)
+            .setHint("org.hibernate.readOnly", true);
+
+    long written = 0;
+    writer.writeHeader();
+    try (Stream<Tuple> rows = query.getResultStream()) {
+      List<UserEntity> chunk = new ArrayList<>(CHUNK_SIZE);
+      Iterator<Tuple> it = rows.iterator();
+      while (it.hasNext()) {
+        chunk.add(it.next().get(0, UserEntity.class));
+        if (chunk.size() == CHUNK_SIZE) {
+          written += writeChunk(em, hydrator, writer, chunk);
+        }
+      }
+      if (!chunk.isEmpty()) {
+        written += writeChunk(em, hydrator, writer, chunk);
+      }
+    }
+    writer.finish();
+
+    return written;
+  }
+
+  /**
+   * Writes every user matching the filter in id order, for an export job. The count and each chunk
+   * are read in their own read-only transaction, so no transaction or cursor stays open for the
+   * whole export, and nothing is written to the file while a transaction is open. Each query is
+   * bounded by the guard's statement timeout.
+   */
+  static void writeUsersInChunks(
+      KeycloakSessionFactory sessionFactory,
+      Function<KeycloakSession, EntityManager> entityManagers,
+      String realmId,
+      UserQueryBuilder queryBuilder,
+      QueryGuard guard,
+      QueryFilter queryFilter,
+      BoundedCache<String, String> groupPaths,
+      UserExportWriter writer,
+      ExportJobs.Progress progress)
+      throws IOException {
+    progress.setTotal(
+        KeycloakModelUtils.runJobInTransactionWithResult(
+            sessionFactory,
+            s -> {
+              s.getTransactionManager().setRollbackOnly();
+              return countUsers(entityManagers.apply(s), queryBuilder, guard, queryFilter);
+            }));
+
+    writer.writeHeader();
+    String after = "";
+    while (true) {
+      progress.checkCancelled();
+      String from = after;
+      Chunk chunk =
+          KeycloakModelUtils.runJobInTransactionWithResult(
+              sessionFactory,
+              s -> {
+                s.getTransactionManager().setRollbackOnly();
+                return readChunk(
+                    s,
+                    entityManagers.apply(s),
+                    realmId,
+                    queryBuilder,
+                    guard,
+                    queryFilter,
+                    from,
+                    groupPaths);
+              });
+      writer.write(chunk.users());
+      progress.addExported(chunk.users().size());
+      if (chunk.users().size() < CHUNK_SIZE) {
+        return;
+      }
+      after = chunk.lastId();
+    }
+  }
+
+  private record Chunk(List<UserRepresentation> users, String lastId) {}
+
+  /** Reads and hydrates the next chunk of users with an id greater than {@code after}. */
+  private static Chunk readChunk(
+      KeycloakSession session,
+      EntityManager em,
+      String realmId,
+      UserQueryBuilder queryBuilder,
+      QueryGuard guard,
+      QueryFilter queryFilter,
+      String after,
+      BoundedCache<String, String> groupPaths) {
+    RealmModel realm = session.realms().getRealm(realmId);
+    if (realm == null) {
+      throw new IllegalStateException("the realm no longer exists");
+    }
+    session.getContext().setRealm(realm);
+
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+    QueryParameters params = new QueryParameters();
+    CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+    Root<UserEntity> root = qb.from(UserEntity.class);
+    ParameterExpression<String> afterId = cb.parameter(String.class);
+    qb.select(cb.tuple(root))
+        .where(
+            cb.and(
+                queryBuilder.buildPredicate(qb, cb, root, queryFilter, params),
+                cb.greaterThan(root.get("id"), afterId)))
+        .orderBy(cb.asc(root.get("id")));
+    qb.distinct(UserQueryBuilder.needsDistinct(root));
+
+    List<UserEntity> users =
+        guard
+            .withTimeout(params.bind(em.createQuery(qb), QueryValues.of(queryFilter)))
+            .setParameter(afterId, after)
+            .setMaxResults(CHUNK_SIZE)
+            .setHint("org.hibernate.readOnly", true)
+            .getResultList()
+            .stream()
+            .map(t -> t.get(0, UserEntity.class))
+            .toList();
+    if (users.isEmpty()) {
+      return new Chunk(List.of(), after);
+    }
+    return new Chunk(
+        new UserHydrator(session, realm, em, groupPaths).toRepresentations(users),
+        users.get(users.size() - 1).getId());
+  }
+
+  private static long countUsers(
+      EntityManager em, UserQueryBuilder queryBuilder, QueryGuard guard, QueryFilter queryFilter) {
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+    QueryParameters params = new QueryParameters();
+    CriteriaQuery<Long> qb = cb.createQuery(Long.class);
+    Root<UserEntity> root = qb.from(UserEntity.class);
+    qb.where(queryBuilder.buildPredicate(qb, cb, root, queryFilter, params));
+    qb.select(UsersByAttributeResource.count(cb, root));
+    return guard
+        .withTimeout(params.bind(em.createQuery(qb), QueryValues.of(queryFilter)))
+        .getSingleResult();
+  }
+
+  private static int writeChunk(
+      EntityManager em, UserHydrator hydrator, UserExportWriter writer, List<UserEntity> chunk)
+      throws IOException {
+    int size = chunk.size();
+    writer.write(hydrator.toRepresentations(chunk));
+    chunk.clear();
+    // Detach everything loaded for this chunk so the persistence context stays small.
+    em.clear();
+    return size;
+  }
+}
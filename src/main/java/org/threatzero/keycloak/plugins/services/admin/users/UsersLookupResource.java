@@ -0,0 +1,240 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.keycloak.util.JsonSerialization;
+import org.threatzero.keycloak.plugins.services.models.LookupRequest;
+import org.threatzero.keycloak.plugins.services.models.LookupResult;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Expression;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+
+/**
+ * Looks up users by a list of ids, usernames, emails or attribute values. Values are matched with
+ * one {@code IN} query per chunk, and results are streamed as NDJSON, one line per requested value
+ * in the order given, with an empty list of users for values nothing matches.
+ */
+public class UsersLookupResource {
+  private static final int CHUNK_SIZE = 500;
+  private static final int MAX_VALUES = 10000;
+
+  /** Core columns that identify users. Keycloak stores usernames and emails lowercased. */
+  private static final Set<String> CORE_KEYS = Set.of("id", UserModel.USERNAME, UserModel.EMAIL);
+
+  private final KeycloakSession session;
+  private final RealmModel realm;
+  private final AdminPermissionEvaluator auth;
+  private final UsersByAttributeResource parent;
+
+  public UsersLookupResource(
+      KeycloakSession session,
+      RealmModel realm,
+      AdminPermissionEvaluator auth,
+      UsersByAttributeResource parent) {
+    this.session = session;
+    this.realm = realm;
+    this.auth = auth;
+    this.parent = parent;
+  }
+
+  @POST
+  @Path("/")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(UserExportWriter.NDJSON)
+  public Response lookupUsers(LookupRequest request) {
+    // IMPORTANT: Check for permissions before executing query. Lookups hand out matching users in
+    // full, so they require view rather than just query permission.
+    auth.users().requireView();
+
+    if (request == null
+        || request.getKey() == null
+        || (!CORE_KEYS.contains(request.getKey())
+            && !UserQueryBuilder.isAttributeName(request.getKey()))
+        || request.getKey().equals(UserQueryBuilder.GROUPS)
+        || request.getValues() == null
+        || request.getValues().size() > MAX_VALUES
+        || request.getValues().contains(null)) {
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+
+    // The lookup runs in its own session and transaction: the response body is written after this
+    // method returns, when the request's session may already be closed.
+    String realmId = realm.getId();
+    BoundedCache<String, String> groupPaths = parent.getGroupPathCache();
+    UserQueryBuilder queryBuilder = parent.newQueryBuilder();
+    QueryGuard guard = parent.getQueryGuard();
+    KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+    StreamingOutput stream =
+        output ->
+            KeycloakModelUtils.runJobInTransaction(
+                sessionFactory,
+                lookupSession -> {
+                  Writer writer =
+                      new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+                  try {
+                    writeUsers(
+                        lookupSession,
+                        realmId,
+                        queryBuilder,
+                        guard,
+                        request.getKey(),
+                        request.getValues(),
+                        groupPaths,
+                        writer);
+                    writer.flush();
+                  } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                  }
+                });
+
+    return Response.ok(stream, UserExportWriter.NDJSON).build();
+  }
+
+  /**
+   * Writes one result per value, in order, and returns how many values matched a user. Each chunk
+   * query carries the guard's statement timeout.
+   */
+  static long writeUsers(
+      KeycloakSession session,
+      String realmId,
+      UserQueryBuilder queryBuilder,
+      QueryGuard guard,
+      String key,
+      List<String> values,
+      BoundedCache<String, String> groupPaths,
+      Writer writer)
+      throws IOException {
+    RealmModel realm = session.realms().getRealm(realmId);
+    session.getContext().setRealm(realm);
+
+    EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    UserHydrator hydrator = new UserHydrator(session, realm, em, groupPaths);
+    boolean lowercase = key.equals(UserModel.USERNAME) || key.equals(UserModel.EMAIL);
+
+    long found = 0;
+    for (int i = 0; i < values.size(); i += CHUNK_SIZE) {
+      List<String> chunk = values.subList(i, Math.min(i + CHUNK_SIZE, values.size()));
+      Map<String, List<UserRepresentation>> matches =
+          lookupChunk(em, queryBuilder, guard, hydrator, key, lowercase, chunk);
+
+      for (String value : chunk) {
+        LookupResult result = new LookupResult();
+        result.setValue(value);
+        result.setUsers(matches.getOrDefault(normalize(value, lowercase), List.of()));
+        if (!result.getUsers().isEmpty()) {
+          found++;
+        }
+        writer.write(JsonSerialization.writeValueAsString(result));
+        writer.write('\n');
+      }
+      // Push each chunk to the client as soon as it's ready, and detach what it loaded.
+      writer.flush();
+      em.clear();
+    }
+    return found;
+  }
+
+  /** Loads the users matching a chunk of values, by (normalized) value. */
+  private static Map<String, List<UserRepresentation>> lookupChunk(
+      EntityManager em,
+      UserQueryBuilder queryBuilder,
+      QueryGuard guard,
+      UserHydrator hydrator,
+      String key,
+      boolean lowercase,
+      List<String> chunk) {
+    List<String> distinct =
+        new ArrayList<>(
+            new LinkedHashSet<>(chunk.stream().map(v -> normalize(v, lowercase)).toList()));
+
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+    QueryParameters params = new QueryParameters();
+    CriteriaQuery<Tuple> qb = cb.createTupleQuery();
+    Root<UserEntity> root = qb.from(UserEntity.class);
+
+    Expression<String> value;
+    Predicate thePredicate = queryBuilder.buildPredicate(qb, cb, root, null, params);
+    if (CORE_KEYS.contains(key)) {
+      value = root.get(key);
+    } else {
+      Root<UserAttributeEntity> attributeRoot = qb.from(UserAttributeEntity.class);
+      value = attributeRoot.get("value");
+      thePredicate =
+          cb.and(
+              thePredicate,
+              cb.equal(attributeRoot.get("user").get("id"), root.get("id")),
+              cb.equal(attributeRoot.get("name"), params.add(cb, String.class, v -> key)));
+    }
+    qb.select(cb.tuple(value, root))
+        .where(
+            cb.and(
+                thePredicate,
+                UserQueryBuilder.in(
+                    cb,
+                    value,
+                    distinct.size(),
+                    params,
+                    (v, i) -> UserQueryBuilder.padded(distinct, i))))
+        .orderBy(cb.asc(root.get("id")));
+    List<Tuple> rows =
+        guard.withTimeout(params.bind(em.createQuery(qb), QueryValues.of(null))).getResultList();
+
+    // Hydrate each user once, even if it matches several values.
+    Map<String, UserEntity> users = new LinkedHashMap<>();
+    for (Tuple row : rows) {
+      UserEntity user = row.get(1, UserEntity.class);
+      users.putIfAbsent(user.getId(), user);
+    }
+    Map<String, UserRepresentation> representations = new HashMap<>();
+    hydrator
+        .toRepresentations(new ArrayList<>(users.values()))
+        .forEach(u -> representations.put(u.getId(), u));
+
+    Map<String, List<UserRepresentation>> matches = new HashMap<>();
+    for (Tuple row : rows) {
+      matches
+          .computeIfAbsent(row.get(0, String.class), k -> new ArrayList<>())
+          .add(representations.get(row.get(1, UserEntity.class).getId()));
+    }
+    return matches;
+  }
+
+  private static String normalize(String value, boolean lowercase) {
+    return lowercase ? value.toLowerCase(Locale.ROOT) : value;
+  }
+}
@@ -0,0 +1,27 @@
+package org.threatzero.keycloak.plugins.services.admin.users.jpa;
+
+import java.util.List;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+/** Registers the Liquibase changelog of the search indexes. It adds indexes only, no entities. */
+public class SearchIndexJpaEntityProvider implements JpaEntityProvider {
+  private static final String CHANGELOG = "META-INF/users-by-attribute-indexes-changelog.xml";
+
+  @Override
+  public List<Class<?>> getEntities() {
+    return List.of();
+  }
+
+  @Override
+  public String getChangelogLocation() {
+    return CHANGELOG;
+  }
+
+  @Override
+  public String getFactoryId() {
+    return SearchIndexJpaEntityProviderFactory.ID;
+  }
+
+  @Override
+  public void close() {}
+}
@@ -0,0 +1,44 @@
+package org.threatzero.keycloak.plugins.services.admin.users.jpa;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.EnvironmentDependentProviderFactory;
+
+/**
+ * Adds indexes for case-insensitive and wildcard searches to Keycloak's user tables. Opt-in, since
+ * it changes Keycloak's own tables and building the indexes can take a while on large ones: enable
+ * it with {@code --spi-jpa-entity-provider-users-by-attribute-indexes-enabled=true}.
+ */
+public class SearchIndexJpaEntityProviderFactory
+    implements JpaEntityProviderFactory, EnvironmentDependentProviderFactory {
+  public static final String ID = "users-by-attribute-indexes";
+
+  private static final SearchIndexJpaEntityProvider PROVIDER = new SearchIndexJpaEntityProvider();
+
+  @Override
+  public JpaEntityProvider create(KeycloakSession session) {
+    return PROVIDER;
+  }
+
+  @Override
+  public void init(Config.Scope config) {}
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {}
+
+  @Override
+  public void close() {}
+
+  @Override
+  public String getId() {
+    return ID;
+  }
+
+  @Override
+  public boolean isSupported(Config.Scope config) {
+    return config.getBoolean("enabled", false);
+  }
+}
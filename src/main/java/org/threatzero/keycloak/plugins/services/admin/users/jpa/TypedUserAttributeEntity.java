@@ -0,0 +1,40 @@
+package org.threatzero.keycloak.plugins.services.admin.users.jpa;
+
+import java.math.BigDecimal;
+import lombok.Data;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+/**
+ * A typed copy of a user attribute value, kept in the plugin owned {@code TZ_TYPED_USER_ATTRIBUTE}
+ * table so that numeric and date range conditions can use an index on {@code (REALM_ID, NAME,
+ * value)} instead of comparing text. Exactly one of {@link #numberValue} and {@link #dateValue} is
+ * set.
+ */
+@Data
+@Entity
+@Table(name = "TZ_TYPED_USER_ATTRIBUTE")
+public class TypedUserAttributeEntity {
+  @Id
+  @Column(name = "ID", length = 36)
+  private String id;
+
+  @Column(name = "USER_ID", length = 36, nullable = false)
+  private String userId;
+
+  @Column(name = "REALM_ID", length = 36, nullable = false)
+  private String realmId;
+
+  @Column(name = "NAME", nullable = false)
+  private String name;
+
+  @Column(name = "NUMBER_VALUE", precision = 38, scale = 10)
+  private BigDecimal numberValue;
+
+  /** Epoch milliseconds. */
+  @Column(name = "DATE_VALUE")
+  private Long dateValue;
+}
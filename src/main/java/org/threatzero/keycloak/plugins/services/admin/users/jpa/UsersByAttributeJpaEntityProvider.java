@@ -0,0 +1,27 @@
+package org.threatzero.keycloak.plugins.services.admin.users.jpa;
+
+import java.util.List;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+/** Registers the users-by-attribute entities and their Liquibase changelog. */
+public class UsersByAttributeJpaEntityProvider implements JpaEntityProvider {
+  private static final String CHANGELOG = "META-INF/users-by-attribute-changelog.xml";
+
+  @Override
+  public List<Class<?>> getEntities() {
+    return List.of(TypedUserAttributeEntity.class);
+  }
+
+  @Override
+  public String getChangelogLocation() {
+    return CHANGELOG;
+  }
+
+  @Override
+  public String getFactoryId() {
+    return UsersByAttributeJpaEntityProviderFactory.ID;
+  }
+
+  @Override
+  public void close() {}
+}
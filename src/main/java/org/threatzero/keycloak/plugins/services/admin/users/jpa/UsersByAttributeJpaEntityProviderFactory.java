@@ -0,0 +1,44 @@
+package org.threatzero.keycloak.plugins.services.admin.users.jpa;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.EnvironmentDependentProviderFactory;
+
+/**
+ * Adds the plugin's tables to Keycloak's database. Opt-in, since it changes the schema: enable it
+ * with {@code --spi-jpa-entity-provider-users-by-attribute-enabled=true}.
+ */
+public class UsersByAttributeJpaEntityProviderFactory
+    implements JpaEntityProviderFactory, EnvironmentDependentProviderFactory {
+  public static final String ID = "users-by-attribute";
+
+  private static final UsersByAttributeJpaEntityProvider PROVIDER =
+      new UsersByAttributeJpaEntityProvider();
+
+  @Override
+  public JpaEntityProvider create(KeycloakSession session) {
+    return PROVIDER;
+  }
+
+  @Override
+  public void init(Config.Scope config) {}
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {}
+
+  @Override
+  public void close() {}
+
+  @Override
+  public String getId() {
+    return ID;
+  }
+
+  @Override
+  public boolean isSupported(Config.Scope config) {
+    return config.getBoolean("enabled", false);
+  }
+}
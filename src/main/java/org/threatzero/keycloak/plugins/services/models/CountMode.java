@@ -0,0 +1,33 @@
+package org.threatzero.keycloak.plugins.services.models;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/** How the total count of a paginated search is computed. */
+public enum CountMode {
+  /** Count every matching row. */
+  EXACT,
+  /** Skip counting entirely. */
+  NONE,
+  /** Extrapolate the count from a sample of the realm's users. */
+  ESTIMATE,
+  /** Reuse a recent exact count for the same filter. */
+  CACHED;
+
+  @JsonCreator
+  public static CountMode fromString(String mode) {
+    if (mode == null) {
+      return null;
+    }
+    try {
+      return CountMode.valueOf(mode.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  @JsonValue
+  public String toString() {
+    return name().toLowerCase();
+  }
+}
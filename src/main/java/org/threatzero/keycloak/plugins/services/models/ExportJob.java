@@ -0,0 +1,65 @@
+package org.threatzero.keycloak.plugins.services.models;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import java.util.List;
+import lombok.Data;
+
+/** An export running in the background, whose file is downloaded once it completes. */
+@Data
+public class ExportJob {
+  private String id;
+  private String realmId;
+  private Status status;
+
+  /** {@code ndjson} or {@code csv}. The file is gzip compressed either way. */
+  private String format;
+
+  private List<String> attributes;
+
+  /** Number of users matching the filter when the job started. */
+  private Long total;
+
+  /** Number of users written so far. */
+  private long exported;
+
+  /** Size in bytes of the compressed file, once completed. */
+  private Long size;
+
+  private String error;
+  private long createdTimestamp;
+  private Long startedTimestamp;
+  private Long finishedTimestamp;
+
+  /** When the job and its file are deleted, once finished. */
+  private Long expiresTimestamp;
+
+  public static enum Status {
+    QUEUED,
+    RUNNING,
+    COMPLETED,
+    FAILED,
+    CANCELLED;
+
+    @JsonCreator
+    public static Status fromString(String status) {
+      if (status == null) {
+        return null;
+      }
+      try {
+        return Status.valueOf(status.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    @JsonValue
+    public String toString() {
+      return name().toLowerCase();
+    }
+
+    public boolean isFinished() {
+      return this == COMPLETED || this == FAILED || this == CANCELLED;
+    }
+  }
+}
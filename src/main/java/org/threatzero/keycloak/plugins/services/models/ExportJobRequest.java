@@ -0,0 +1,16 @@
+package org.threatzero.keycloak.plugins.services.models;
+
+import java.util.List;
+import lombok.Data;
+
+@Data
+public class ExportJobRequest {
+  /** Users to export, every user of the realm when null. */
+  private QueryFilter filter;
+
+  /** {@code ndjson} (the default) or {@code csv}. */
+  private String format;
+
+  /** Attributes added as columns of CSV exports. */
+  private List<String> attributes;
+}
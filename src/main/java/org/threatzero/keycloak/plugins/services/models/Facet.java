@@ -0,0 +1,16 @@
+package org.threatzero.keycloak.plugins.services.models;
+
+import java.util.Map;
+import lombok.Data;
+
+@Data
+public class Facet {
+  /** Attribute key, or {@code groups} for group paths. */
+  private String key;
+
+  /** Number of matching users per value, most frequent first. */
+  private Map<String, Long> values;
+
+  /** Number of matching users with a value for the key outside {@link #values}. */
+  private long other;
+}
@@ -0,0 +1,12 @@
+package org.threatzero.keycloak.plugins.services.models;
+
+import java.util.List;
+import lombok.Data;
+
+@Data
+public class LookupRequest {
+  /** {@code id}, {@code username}, {@code email} or an attribute name. */
+  private String key;
+
+  private List<String> values;
+}
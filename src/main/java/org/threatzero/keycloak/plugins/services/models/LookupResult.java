@@ -0,0 +1,14 @@
+package org.threatzero.keycloak.plugins.services.models;
+
+import java.util.List;
+import lombok.Data;
+import org.keycloak.representations.idm.UserRepresentation;
+
+@Data
+public class LookupResult {
+  /** One of the requested values, as given. */
+  private String value;
+
+  /** Users with this value, empty when none has it. */
+  private List<UserRepresentation> users;
+}
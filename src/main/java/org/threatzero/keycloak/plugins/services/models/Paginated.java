@@ -7,6 +7,12 @@ import lombok.Data;
 public class Paginated<T> {
   private List<T> results;
   private Long count;
+
+  /** How {@link #count} was produced. */
+  private CountMode countMode;
   private int limit;
   private int offset;
+
+  /** Cursor for the next page when paginating by cursor, or null when there are no more rows. */
+  private String next;
 }
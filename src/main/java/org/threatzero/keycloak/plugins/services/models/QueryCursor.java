@@ -0,0 +1,53 @@
+package org.threatzero.keycloak.plugins.services.models;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Opaque keyset pagination token. Holds the sort key values of the last row of a page (with the
+ * user id as the final tiebreaker) and the order the page was produced with, so a token can't be
+ * replayed against a different sort.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class QueryCursor {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @JsonProperty("o")
+  private String order;
+
+  @JsonProperty("k")
+  private List<Object> keys;
+
+  public String encode() {
+    try {
+      return Base64.getUrlEncoder()
+          .withoutPadding()
+          .encodeToString(MAPPER.writeValueAsBytes(this));
+    } catch (Exception e) {
+      throw new IllegalStateException("Failed to encode cursor", e);
+    }
+  }
+
+  public static QueryCursor decode(String token) {
+    try {
+      byte[] json = Base64.getUrlDecoder().decode(token.getBytes(StandardCharsets.US_ASCII));
+      QueryCursor cursor = MAPPER.readValue(json, QueryCursor.class);
+      if (cursor.getOrder() == null || cursor.getKeys() == null || cursor.getKeys().isEmpty()) {
+        throw new IllegalArgumentException("cursor is incomplete");
+      }
+      return cursor;
+    } catch (IllegalArgumentException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalArgumentException("cursor is malformed", e);
+    }
+  }
+}
@@ -49,6 +49,9 @@ public class QueryFilter {
     private Boolean not;
     private Boolean ignoreCase;
 
+    /** Compares the values of typed attributes as numbers or dates instead of text. */
+    private ValueType type;
+
     public void setValues(List<String> values) {
       if (values == null || values.isEmpty()) {
         throw new IllegalArgumentException("values cannot be null or empty");
@@ -89,6 +92,10 @@ public class QueryFilter {
       return Optional.ofNullable(ignoreCase);
     }
 
+    public Optional<ValueType> getType() {
+      return Optional.ofNullable(type);
+    }
+
     public static enum Operator {
       EQ,
       IN,
@@ -128,10 +135,17 @@ public class QueryFilter {
 
     private Operator op;
 
+    /** Also matches members of any group below the given ones. */
+    private Boolean subtree;
+
     public Optional<String> getKey() {
       return Optional.ofNullable(key);
     }
 
+    public Optional<Boolean> isSubtree() {
+      return Optional.ofNullable(subtree);
+    }
+
     public Optional<Operator> getOp() {
       return Optional.ofNullable(op);
     }
@@ -2,6 +2,7 @@ package org.threatzero.keycloak.plugins.services.models;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 import lombok.Builder;
 import lombok.Data;
 import lombok.Getter;
@@ -19,14 +20,35 @@ public class QueryOrder {
       } else {
         orderBuilder = orderBuilder.key(s).asc(true);
       }
-      values.add(orderBuilder.build());
+      // A "key:type" suffix sorts a typed attribute by its typed value.
+      Order order = orderBuilder.build();
+      int separator = order.getKey().lastIndexOf(':');
+      ValueType type =
+          separator > 0 ? ValueType.fromString(order.getKey().substring(separator + 1)) : null;
+      if (type != null) {
+        order = orderBuilder.key(order.getKey().substring(0, separator)).type(type).build();
+      }
+      values.add(order);
     }
   }
 
+  /** Canonical form of this order, in the same syntax the constructor accepts. */
+  @Override
+  public String toString() {
+    return values.stream()
+        .map(
+            o ->
+                (o.isAsc() ? "" : "-")
+                    + o.getKey()
+                    + (o.getType() != null ? ":" + o.getType() : ""))
+        .collect(Collectors.joining(","));
+  }
+
   @Data
   @Builder
   public static class Order {
     private final String key;
     private final boolean asc;
+    private final ValueType type;
   }
 }
@@ -0,0 +1,71 @@
+package org.threatzero.keycloak.plugins.services.models;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+
+/** How attribute values are compared: as text, or as typed numbers or dates. */
+public enum ValueType {
+  /** Compare values as text. */
+  STRING,
+  /** Compare values as decimal numbers. */
+  NUMBER,
+  /** Compare values as points in time, in epoch milliseconds. */
+  DATE;
+
+  /**
+   * Parses an attribute value of this type: a {@link BigDecimal} for numbers, and epoch
+   * milliseconds for dates given as ISO-8601 dates ({@code 2024-05-01}, UTC midnight), date-times
+   * with an offset or epoch milliseconds.
+   *
+   * @throws IllegalArgumentException if the value is not of this type
+   */
+  public Object parse(String value) {
+    if (value == null) {
+      throw new IllegalArgumentException("value is null");
+    }
+    String trimmed = value.trim();
+    try {
+      switch (this) {
+        case NUMBER:
+          return new BigDecimal(trimmed);
+        case DATE:
+          if (trimmed.matches("-?\\d+")) {
+            return Long.parseLong(trimmed);
+          } else if (trimmed.length() == 10) {
+            return LocalDate.parse(trimmed).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+          } else if (trimmed.endsWith("Z")) {
+            return Instant.parse(trimmed).toEpochMilli();
+          }
+          return OffsetDateTime.parse(trimmed).toInstant().toEpochMilli();
+        case STRING:
+        default:
+          return value;
+      }
+    } catch (NumberFormatException | DateTimeParseException e) {
+      throw new IllegalArgumentException("'" + value + "' is not a valid " + this, e);
+    }
+  }
+
+  @JsonCreator
+  public static ValueType fromString(String type) {
+    if (type == null) {
+      return null;
+    }
+    try {
+      return ValueType.valueOf(type.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  @JsonValue
+  public String toString() {
+    return name().toLowerCase();
+  }
+}
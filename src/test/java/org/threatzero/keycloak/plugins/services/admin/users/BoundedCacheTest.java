@@ -0,0 +1,52 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class BoundedCacheTest {
+
+  @Test
+  public void testGet_countsHitsAndMisses() {
+    BoundedCache<String, Long> cache = new BoundedCache<>(10, 0);
+    assertNull(cache.get("a"));
+    cache.put("a", 1L);
+    assertEquals(1L, cache.get("a"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testPut_evictsLeastRecentlyUsed() {
+    BoundedCache<String, Long> cache = new BoundedCache<>(2, 0);
+    cache.put("a", 1L);
+    cache.put("b", 2L);
+    cache.get("a");
+    cache.put("c", 3L);
+    assertEquals(1L, cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(3L, cache.get("c"));
+  }
+
+  @Test
+  public void testGet_expiresAfterTtl() {
+    AtomicLong now = new AtomicLong(1000);
+    BoundedCache<String, Long> cache = new BoundedCache<>(10, 500, now::get);
+    cache.put("a", 1L);
+    now.addAndGet(499);
+    assertEquals(1L, cache.get("a"));
+    now.addAndGet(1);
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testComputeIfAbsent_loadsOnce() {
+    BoundedCache<String, Long> cache = new BoundedCache<>(10, 0);
+    AtomicLong loads = new AtomicLong();
+    cache.computeIfAbsent("a", k -> loads.incrementAndGet());
+    cache.computeIfAbsent("a", k -> loads.incrementAndGet());
+    assertEquals(1, loads.get());
+  }
+}
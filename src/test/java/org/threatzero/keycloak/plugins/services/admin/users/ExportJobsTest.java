@@ -0,0 +1,268 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.threatzero.keycloak.plugins.services.models.ExportJob;
+
+public class ExportJobsTest {
+  @TempDir Path directory;
+
+  @Test
+  public void testParseRange() {
+    assertNull(ExportJobs.parseRange(null, 100));
+    assertNull(ExportJobs.parseRange("bytes=0-1,5-6", 100));
+    assertNull(ExportJobs.parseRange("bytes=a-b", 100));
+    assertArrayEquals(new long[] {10, 99}, ExportJobs.parseRange("bytes=10-", 100));
+    assertArrayEquals(new long[] {10, 19}, ExportJobs.parseRange("bytes=10-19", 100));
+    assertArrayEquals(new long[] {10, 99}, ExportJobs.parseRange("bytes=10-500", 100));
+    assertArrayEquals(new long[] {90, 99}, ExportJobs.parseRange("bytes=-10", 100));
+    assertArrayEquals(new long[] {0, 99}, ExportJobs.parseRange("bytes=-500", 100));
+    assertThrows(IllegalArgumentException.class, () -> ExportJobs.parseRange("bytes=100-", 100));
+    assertThrows(IllegalArgumentException.class, () -> ExportJobs.parseRange("bytes=20-10", 100));
+    assertThrows(IllegalArgumentException.class, () -> ExportJobs.parseRange("bytes=-0", 100));
+  }
+
+  @Test
+  public void testSubmit_writesCompressedFile() throws Exception {
+    ExportJobs jobs = new ExportJobs(directory, 1, 5, TimeUnit.HOURS.toMillis(1));
+    jobs.start();
+    ExportJob job =
+        jobs.submit(
+            "realm",
+            UserExportWriter.Format.NDJSON,
+            List.of(),
+            (writer, progress) -> {
+              progress.setTotal(2);
+              writer.write(List.of(user("a"), user("b")));
+              progress.addExported(2);
+            });
+
+    ExportJob done = await(jobs, job.getId());
+    assertEquals(ExportJob.Status.COMPLETED, done.getStatus());
+    assertEquals(2L, done.getTotal());
+    assertEquals(2L, done.getExported());
+    assertNotNull(done.getExpiresTimestamp());
+    assertNull(jobs.get("other-realm", job.getId()));
+
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    jobs.copyFile("realm", job.getId(), 0, done.getSize(), file);
+    String ndjson = gunzip(file.toByteArray());
+    assertEquals(2, ndjson.lines().count());
+    assertTrue(ndjson.contains("\"username\":\"a\""));
+
+    ByteArrayOutputStream tail = new ByteArrayOutputStream();
+    jobs.copyFile("realm", job.getId(), done.getSize() - 8, 8, tail);
+    assertEquals(8, tail.size());
+
+    assertTrue(jobs.delete("realm", job.getId()));
+    assertNull(jobs.get("realm", job.getId()));
+    try (var files = Files.list(directory)) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  @Test
+  public void testSubmit_failure() throws Exception {
+    ExportJobs jobs = new ExportJobs(directory, 1, 5, TimeUnit.HOURS.toMillis(1));
+    ExportJob job =
+        jobs.submit(
+            "realm",
+            UserExportWriter.Format.CSV,
+            List.of(),
+            (writer, progress) -> {
+              throw new IOException("disk full");
+            });
+
+    ExportJob done = await(jobs, job.getId());
+    assertEquals(ExportJob.Status.FAILED, done.getStatus());
+    assertEquals("disk full", done.getError());
+  }
+
+  @Test
+  public void testDelete_cancelsRunningJob() throws Exception {
+    ExportJobs jobs = new ExportJobs(directory, 1, 5, TimeUnit.HOURS.toMillis(1));
+    CountDownLatch started = new CountDownLatch(1);
+    ExportJob job =
+        jobs.submit(
+            "realm",
+            UserExportWriter.Format.NDJSON,
+            List.of(),
+            (writer, progress) -> {
+              started.countDown();
+              while (true) {
+                progress.checkCancelled();
+                Thread.onSpinWait();
+              }
+            });
+
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertTrue(jobs.delete("realm", job.getId()));
+    assertNull(jobs.get("realm", job.getId()));
+    assertFalse(jobs.delete("realm", job.getId()));
+  }
+
+  @Test
+  @DisabledOnOs(OS.WINDOWS)
+  public void testSubmit_keepsFilesPrivate() throws Exception {
+    Path exports = directory.resolve("exports");
+    ExportJobs jobs = new ExportJobs(exports, 1, 5, TimeUnit.HOURS.toMillis(1));
+    jobs.start();
+    ExportJob job =
+        jobs.submit(
+            "realm",
+            UserExportWriter.Format.NDJSON,
+            List.of(),
+            (writer, progress) -> writer.write(List.of(user("a"))));
+    await(jobs, job.getId());
+
+    assertEquals("rwx------", permissions(exports));
+    try (var files = Files.list(exports)) {
+      List<Path> written = files.toList();
+      assertEquals(2, written.size());
+      for (Path file : written) {
+        assertEquals("rw-------", permissions(file));
+      }
+    }
+  }
+
+  @Test
+  public void testSubmit_capsUnfinishedJobsPerRealm() throws Exception {
+    ExportJobs jobs = new ExportJobs(directory, 1, 2, TimeUnit.HOURS.toMillis(1));
+    CountDownLatch release = new CountDownLatch(1);
+    ExportJobs.Exporter blocked = (writer, progress) -> awaitQuietly(release);
+    try {
+      ExportJob first = jobs.submit("realm", UserExportWriter.Format.NDJSON, List.of(), blocked);
+      ExportJob second = jobs.submit("realm", UserExportWriter.Format.NDJSON, List.of(), blocked);
+
+      assertThrows(
+          RejectedExecutionException.class,
+          () -> jobs.submit("realm", UserExportWriter.Format.NDJSON, List.of(), blocked));
+      assertEquals(2, jobs.list("realm").size());
+      // Other realms have their own allowance.
+      ExportJob other =
+          jobs.submit("other-realm", UserExportWriter.Format.NDJSON, List.of(), blocked);
+
+      release.countDown();
+      await(jobs, first.getId());
+      ExportJob last = jobs.submit("realm", UserExportWriter.Format.NDJSON, List.of(), blocked);
+
+      // Let every job finish writing before the directory is removed.
+      await(jobs, second.getId());
+      await(jobs, "other-realm", other.getId());
+      await(jobs, last.getId());
+    } finally {
+      release.countDown();
+      jobs.close();
+    }
+  }
+
+  @Test
+  public void testClose_failsRunningJobs() throws Exception {
+    ExportJobs jobs = new ExportJobs(directory, 1, 5, TimeUnit.HOURS.toMillis(1));
+    CountDownLatch started = new CountDownLatch(1);
+    ExportJob job =
+        jobs.submit(
+            "realm",
+            UserExportWriter.Format.NDJSON,
+            List.of(),
+            (writer, progress) -> {
+              started.countDown();
+              while (true) {
+                progress.checkCancelled();
+                Thread.onSpinWait();
+              }
+            });
+
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    jobs.close();
+
+    ExportJob closed = jobs.get("realm", job.getId());
+    assertEquals(ExportJob.Status.FAILED, closed.getStatus());
+    assertEquals("interrupted by a shutdown", closed.getError());
+    assertThrows(
+        RejectedExecutionException.class,
+        () ->
+            jobs.submit(
+                "realm", UserExportWriter.Format.NDJSON, List.of(), (writer, progress) -> {}));
+  }
+
+  @Test
+  public void testStart_failsJobsInterruptedByRestart() throws Exception {
+    ExportJob running = new ExportJob();
+    running.setId("interrupted");
+    running.setRealmId("realm");
+    running.setStatus(ExportJob.Status.RUNNING);
+    running.setFormat("ndjson");
+    Files.writeString(
+        directory.resolve("interrupted.json"),
+        org.keycloak.util.JsonSerialization.writeValueAsString(running));
+    Files.writeString(directory.resolve("interrupted.part"), "partial");
+
+    ExportJobs jobs = new ExportJobs(directory, 1, 5, TimeUnit.HOURS.toMillis(1));
+    jobs.start();
+
+    ExportJob loaded = jobs.get("realm", "interrupted");
+    assertEquals(ExportJob.Status.FAILED, loaded.getStatus());
+    assertFalse(Files.exists(directory.resolve("interrupted.part")));
+    assertEquals(1, jobs.list("realm").size());
+  }
+
+  private static ExportJob await(ExportJobs jobs, String id) throws InterruptedException {
+    return await(jobs, "realm", id);
+  }
+
+  private static ExportJob await(ExportJobs jobs, String realmId, String id)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (System.currentTimeMillis() < deadline) {
+      ExportJob job = jobs.get(realmId, id);
+      if (job.getStatus().isFinished()) {
+        return job;
+      }
+      Thread.sleep(10);
+    }
+    throw new AssertionError("job did not finish");
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static String permissions(Path path) throws IOException {
+    return PosixFilePermissions.toString(Files.getPosixFilePermissions(path));
+  }
+
+  private static UserRepresentation user(String username) {
+    UserRepresentation user = new UserRepresentation();
+    user.setId(username);
+    user.setUsername(username);
+    return user;
+  }
+
+  private static String gunzip(byte[] bytes) throws IOException {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+}
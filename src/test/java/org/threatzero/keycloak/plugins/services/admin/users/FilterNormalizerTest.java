@@ -0,0 +1,103 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+import org.threatzero.keycloak.plugins.services.models.ValueType;
+
+public class FilterNormalizerTest {
+
+  @Test
+  public void testNormalize_flattensAndUnwraps() {
+    QueryFilter filter = and(and(eq("email", "a@example.com")), or(eq("org", "x")));
+    QueryFilter normalized = FilterNormalizer.normalize(filter);
+    assertEquals(
+        List.of(eq("email", "a@example.com"), eq("org", "x")),
+        normalized.getAnd().get().stream()
+            .sorted((a, b) -> a.getQ().get().getKey().compareTo(b.getQ().get().getKey()))
+            .toList());
+  }
+
+  @Test
+  public void testNormalize_mergesEqualsUnderOr() {
+    QueryFilter normalized =
+        FilterNormalizer.normalize(or(eq("org", "b"), eq("org", "A"), in("org", "c", "b")));
+    QueryFilter.Condition condition = normalized.getQ().get();
+    assertEquals(QueryFilter.Condition.Operator.IN, condition.getOp().get());
+    assertEquals(List.of("a", "b", "c"), condition.getValues());
+  }
+
+  @Test
+  public void testNormalize_contradictionOnCoreColumn() {
+    QueryFilter normalized =
+        FilterNormalizer.normalize(and(eq("email", "a@example.com"), eq("email", "b@example.com")));
+    assertTrue(FilterNormalizer.isFalse(normalized));
+    assertTrue(FilterNormalizer.isFalse(FilterNormalizer.normalize(and(normalized, eq("a", "b")))));
+  }
+
+  @Test
+  public void testNormalize_keepsSameKeyAttributesUnderAnd() {
+    QueryFilter normalized = FilterNormalizer.normalize(and(eq("org", "a"), eq("org", "b")));
+    assertFalse(FilterNormalizer.isFalse(normalized));
+    assertEquals(2, normalized.getAnd().get().size());
+  }
+
+  @Test
+  public void testNormalize_dedupesAndShortCircuits() {
+    assertEquals(eq("org", "a"), FilterNormalizer.normalize(and(eq("org", "a"), eq("org", "A"))));
+    assertNull(FilterNormalizer.normalize(or(eq("org", "a"), new QueryFilter())));
+    assertNull(FilterNormalizer.normalize(and()));
+    assertTrue(FilterNormalizer.isFalse(FilterNormalizer.normalize(or())));
+  }
+
+  @Test
+  public void testNormalize_equivalentFiltersAreEqual() {
+    assertEquals(
+        FilterNormalizer.normalize(and(eq("org", "a"), or(eq("unit", "1"), eq("unit", "2")))),
+        FilterNormalizer.normalize(and(in("unit", "2", "1"), eq("org", "a"))));
+  }
+
+  @Test
+  public void testNormalize_keepsTypesApart() {
+    QueryFilter typed = eq("seats", "10");
+    typed.getQ().get().setType(ValueType.NUMBER);
+    QueryFilter normalized = FilterNormalizer.normalize(or(typed, eq("seats", "12")));
+    assertEquals(2, normalized.getOr().get().size());
+    assertEquals(
+        ValueType.NUMBER, FilterNormalizer.normalize(typed).getQ().get().getType().get());
+  }
+
+  private static QueryFilter eq(String key, String value) {
+    QueryFilter.Condition condition = new QueryFilter.Condition();
+    condition.setKey(key);
+    condition.setOp(QueryFilter.Condition.Operator.EQ);
+    condition.setValue(value);
+    QueryFilter filter = new QueryFilter();
+    filter.setQ(condition);
+    return filter;
+  }
+
+  private static QueryFilter in(String key, String... values) {
+    QueryFilter.Condition condition = new QueryFilter.Condition();
+    condition.setKey(key);
+    condition.setOp(QueryFilter.Condition.Operator.IN);
+    condition.setValues(values);
+    QueryFilter filter = new QueryFilter();
+    filter.setQ(condition);
+    return filter;
+  }
+
+  private static QueryFilter and(QueryFilter... filters) {
+    QueryFilter filter = new QueryFilter();
+    filter.setAnd(List.of(filters));
+    return filter;
+  }
+
+  private static QueryFilter or(QueryFilter... filters) {
+    QueryFilter filter = new QueryFilter();
+    filter.setOr(List.of(filters));
+    return filter;
+  }
+}
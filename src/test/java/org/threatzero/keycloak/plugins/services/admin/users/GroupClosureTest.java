@@ -0,0 +1,140 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+
+public class GroupClosureTest {
+  // district-12
+  // ├── school-a
+  // │   └── class-1
+  // └── school-b
+  // district-13
+  //  └── school-a
+  private static final GroupClosure CLOSURE =
+      new GroupClosure(
+          Map.of(
+              "d12", " ",
+              "d12-a", "d12",
+              "d12-a-1", "d12-a",
+              "d12-b", "d12",
+              "d13", " ",
+              "d13-a", "d13"),
+          Map.of(
+              "d12", "district-12",
+              "d12-a", "school-a",
+              "d12-a-1", "class-1",
+              "d12-b", "school-b",
+              "d13", "district-13",
+              "d13-a", "school-a"));
+
+  private static final Function<String, String> PATHS =
+      Map.of("/district-12", "d12", "/district-12/school-a", "d12-a")::get;
+
+  @Test
+  public void testSubtree() {
+    assertEquals(Set.of("d12", "d12-a", "d12-a-1", "d12-b"), CLOSURE.subtree("d12"));
+    assertEquals(Set.of("d12-b"), CLOSURE.subtree("d12-b"));
+    assertEquals(Set.of(), CLOSURE.subtree("missing"));
+  }
+
+  @Test
+  public void testExpand_subtreeByPath() {
+    QueryFilter expanded =
+        CLOSURE.expand(group("path", null, true, "/district-12"), PATHS, 0);
+    QueryFilter.GroupCondition condition = expanded.getGroupQ().get();
+    assertEquals("id", condition.getKey().get());
+    assertEquals(QueryFilter.GroupCondition.Operator.ANY, condition.getOp().get());
+    assertTrue(condition.isSubtree().get());
+    assertEquals(List.of("d12", "d12-a", "d12-a-1", "d12-b"), condition.getGroups());
+
+    // Expanding again changes nothing.
+    assertSame(expanded, CLOSURE.expand(expanded, PATHS, 0));
+  }
+
+  @Test
+  public void testExpand_subtreeByNameCoversEveryMatch() {
+    QueryFilter expanded =
+        CLOSURE.expand(
+            group("name", QueryFilter.GroupCondition.Operator.NONE, true, "school-a"), PATHS, 0);
+    assertEquals(
+        List.of("d12-a", "d12-a-1", "d13-a"), expanded.getGroupQ().get().getGroups());
+    assertEquals(
+        QueryFilter.GroupCondition.Operator.NONE, expanded.getGroupQ().get().getOp().get());
+  }
+
+  @Test
+  public void testExpand_subtreeAllSplitsPerGroup() {
+    QueryFilter expanded =
+        CLOSURE.expand(group("id", null, true, "d12-a", "d13"), PATHS, 0);
+    List<QueryFilter> and = expanded.getAnd().get();
+    assertEquals(2, and.size());
+    assertTrue(
+        and.stream()
+            .allMatch(
+                f -> f.getGroupQ().get().getOp().get() == QueryFilter.GroupCondition.Operator.ANY));
+  }
+
+  @Test
+  public void testExpand_missingGroups() {
+    assertTrue(
+        FilterNormalizer.isFalse(
+            CLOSURE.expand(
+                group("path", QueryFilter.GroupCondition.Operator.ANY, true, "/missing"),
+                PATHS,
+                0)));
+    assertNull(
+        CLOSURE.expand(
+            group("path", QueryFilter.GroupCondition.Operator.NONE, false, "/missing"), PATHS, 0));
+    assertTrue(
+        FilterNormalizer.isFalse(
+            CLOSURE.expand(group("path", null, false, "/district-12", "/missing"), PATHS, 0)));
+  }
+
+  @Test
+  public void testExpand_pathWithoutSubtree() {
+    QueryFilter expanded =
+        CLOSURE.expand(group("path", null, false, "/district-12/school-a"), PATHS, 0);
+    QueryFilter.GroupCondition condition = expanded.getGroupQ().get();
+    assertEquals("id", condition.getKey().get());
+    assertEquals(QueryFilter.GroupCondition.Operator.ALL, condition.getOp().get());
+    assertTrue(condition.isSubtree().isEmpty());
+    assertEquals(List.of("d12-a"), condition.getGroups());
+  }
+
+  @Test
+  public void testExpand_limit() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> CLOSURE.expand(group("id", null, true, "d12"), PATHS, 3));
+    assertDoesNotThrow(() -> CLOSURE.expand(group("id", null, true, "d12"), PATHS, 4));
+  }
+
+  @Test
+  public void testNeedsExpansion() {
+    assertFalse(GroupClosure.needsExpansion(null));
+    assertFalse(GroupClosure.needsExpansion(group("name", null, false, "school-a")));
+    QueryFilter or = new QueryFilter();
+    or.setOr(
+        List.of(
+            group("name", null, false, "school-a"), group("path", null, false, "/district-12")));
+    assertTrue(GroupClosure.needsExpansion(or));
+  }
+
+  private static QueryFilter group(
+      String key, QueryFilter.GroupCondition.Operator op, boolean subtree, String... groups) {
+    QueryFilter.GroupCondition condition = new QueryFilter.GroupCondition();
+    condition.setKey(key);
+    condition.setOp(op);
+    condition.setSubtree(subtree ? true : null);
+    condition.setGroups(List.of(groups));
+    QueryFilter filter = new QueryFilter();
+    filter.setGroupQ(condition);
+    return filter;
+  }
+}
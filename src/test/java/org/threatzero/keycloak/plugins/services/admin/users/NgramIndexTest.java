@@ -0,0 +1,129 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+
+public class NgramIndexTest {
+
+  @Test
+  public void testGrams() {
+    assertEquals(Set.of("abc", "bcd"), NgramIndex.grams("abcd"));
+    assertEquals(Set.of(), NgramIndex.grams("ab"));
+  }
+
+  @Test
+  public void testServes_onlyCaseInsensitiveSubstringsOfIndexedFields() {
+    NgramIndex index = new NgramIndex(Set.of("email", "org"), 1000, 10, 0);
+    assertTrue(index.serves(condition("org", QueryFilter.Condition.Operator.CONTAINS, "acme")));
+    assertTrue(index.serves(condition("email", QueryFilter.Condition.Operator.ENDS, "@acme.org")));
+    assertFalse(index.serves(condition("unit", QueryFilter.Condition.Operator.CONTAINS, "acme")));
+    assertFalse(index.serves(condition("org", QueryFilter.Condition.Operator.EQ, "acme")));
+    assertFalse(index.serves(condition("org", QueryFilter.Condition.Operator.CONTAINS, "ac")));
+    assertFalse(index.serves(condition("org", QueryFilter.Condition.Operator.CONTAINS, "a%c")));
+
+    QueryFilter.Condition caseSensitive =
+        condition("org", QueryFilter.Condition.Operator.CONTAINS, "acme");
+    caseSensitive.setIgnoreCase(false);
+    assertFalse(index.serves(caseSensitive));
+  }
+
+  @Test
+  public void testMatch_checksValuesAfterIntersecting() {
+    NgramIndex.RealmIndex index = new NgramIndex.RealmIndex(0);
+    index.add("u1", "email", "Jane@Acme.org");
+    index.add("u2", "email", "acme@example.com");
+    index.add("u3", "email", "mea@cme.org");
+
+    assertEquals(
+        Set.of("u1", "u2"),
+        index.match(condition("email", QueryFilter.Condition.Operator.CONTAINS, "ACME")));
+    assertEquals(
+        Set.of("u1"),
+        index.match(condition("email", QueryFilter.Condition.Operator.ENDS, "acme.org")));
+    assertEquals(
+        Set.of(), index.match(condition("email", QueryFilter.Condition.Operator.CONTAINS, "xyz")));
+  }
+
+  @Test
+  public void testPut_replacesAndRemovesPostings() {
+    NgramIndex.RealmIndex index = new NgramIndex.RealmIndex(0);
+    index.add("u1", "org", "acme");
+    long added = index.put("u1", Map.of("org", List.of("globex")));
+    assertEquals(2, added);
+    assertEquals(
+        Set.of(), index.match(condition("org", QueryFilter.Condition.Operator.CONTAINS, "acm")));
+    assertEquals(
+        Set.of("u1"),
+        index.match(condition("org", QueryFilter.Condition.Operator.CONTAINS, "obe")));
+    assertEquals(-4, index.put("u1", Map.of()));
+  }
+
+  @Test
+  public void testResolve_narrowsMatchesAndLeavesEmptyMatchesToTheDatabase() {
+    NgramIndex ngramIndex = new NgramIndex(Set.of("org"), 1000, 10, 0);
+    NgramIndex.RealmIndex index = new NgramIndex.RealmIndex(0);
+    index.add("u2", "org", "Acme");
+    index.add("u1", "org", "acme labs");
+
+    QueryFilter matched = filter(condition("org", QueryFilter.Condition.Operator.CONTAINS, "acme"));
+    QueryFilter resolved = ngramIndex.resolve(index, matched);
+    assertSame(matched, resolved.getAnd().orElseThrow().get(0));
+    QueryFilter.Condition ids = resolved.getAnd().orElseThrow().get(1).getQ().orElseThrow();
+    assertEquals("id", ids.getKey());
+    assertEquals(List.of("u1", "u2"), ids.getValues());
+
+    // A user the index hasn't seen, e.g. one written on another node, may still match.
+    QueryFilter unmatched =
+        filter(condition("org", QueryFilter.Condition.Operator.CONTAINS, "globex"));
+    assertSame(unmatched, ngramIndex.resolve(index, unmatched));
+  }
+
+  @Test
+  public void testSeesEveryChange_onlyWithTheListenerAndNoFederation() {
+    KeycloakSession session = TestDatabase.stub(KeycloakSession.class, Map.of());
+    List<String> listeners = List.of("jboss-logging", UserIndexEventListenerProviderFactory.ID);
+
+    assertTrue(NgramIndex.seesEveryChange(session, realm(true, listeners, List.of())));
+    assertFalse(NgramIndex.seesEveryChange(session, realm(false, listeners, List.of())));
+    assertFalse(
+        NgramIndex.seesEveryChange(session, realm(true, List.of("jboss-logging"), List.of())));
+    // An LDAP provider syncs and imports users without events.
+    assertFalse(
+        NgramIndex.seesEveryChange(
+            session, realm(true, listeners, List.of(new ComponentModel()))));
+  }
+
+  private static RealmModel realm(
+      boolean adminEvents, List<String> listeners, List<ComponentModel> storageProviders) {
+    return TestDatabase.stub(
+        RealmModel.class,
+        Map.of(
+            "getId", "realm",
+            "isAdminEventsEnabled", adminEvents,
+            "getEventsListenersStream", listeners,
+            "getComponentsStream", storageProviders));
+  }
+
+  private static QueryFilter filter(QueryFilter.Condition condition) {
+    QueryFilter filter = new QueryFilter();
+    filter.setQ(condition);
+    return filter;
+  }
+
+  private static QueryFilter.Condition condition(
+      String key, QueryFilter.Condition.Operator op, String value) {
+    QueryFilter.Condition condition = new QueryFilter.Condition();
+    condition.setKey(key);
+    condition.setOp(op);
+    condition.setValue(value);
+    return condition;
+  }
+}
@@ -0,0 +1,73 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+import org.threatzero.keycloak.plugins.services.models.QueryOrder;
+
+public class QueryGuardTest {
+
+  @Test
+  public void testCheck_withinLimits() {
+    QueryGuard guard = new QueryGuard(2, 3, 1, 1, 0);
+    QueryFilter filter =
+        and(
+            leaf("org", QueryFilter.Condition.Operator.CONTAINS),
+            leaf("unit", QueryFilter.Condition.Operator.EQ));
+    assertDoesNotThrow(() -> guard.check(filter, new QueryOrder("org,-username"), c -> false));
+  }
+
+  @Test
+  public void testCheck_depthAndConditions() {
+    QueryFilter nested =
+        and(
+            leaf("a", QueryFilter.Condition.Operator.EQ),
+            and(leaf("b", QueryFilter.Condition.Operator.EQ)));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new QueryGuard(2, 0, 0, 0, 0).check(nested, null, c -> false));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new QueryGuard(0, 1, 0, 0, 0).check(nested, null, c -> false));
+    assertDoesNotThrow(() -> QueryGuard.NONE.check(nested, null, c -> false));
+  }
+
+  @Test
+  public void testCheck_wildcardsNotIndexed() {
+    QueryFilter filter =
+        and(
+            leaf("org", QueryFilter.Condition.Operator.CONTAINS),
+            leaf("email", QueryFilter.Condition.Operator.ENDS));
+    QueryGuard guard = new QueryGuard(0, 0, 1, 0, 0);
+    assertThrows(IllegalArgumentException.class, () -> guard.check(filter, null, c -> false));
+    assertDoesNotThrow(() -> guard.check(filter, null, c -> c.getKey().equals("email")));
+  }
+
+  @Test
+  public void testCheck_attributeSorts() {
+    QueryGuard guard = new QueryGuard(0, 0, 0, 1, 0);
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> guard.check(null, new QueryOrder("org,-unit"), c -> false));
+    assertDoesNotThrow(
+        () -> guard.check(null, new QueryOrder("org,-createdTimestamp"), c -> false));
+  }
+
+  private static QueryFilter leaf(String key, QueryFilter.Condition.Operator operator) {
+    QueryFilter.Condition condition = new QueryFilter.Condition();
+    condition.setKey(key);
+    condition.setOp(operator);
+    condition.setValue("x");
+    QueryFilter filter = new QueryFilter();
+    filter.setQ(condition);
+    return filter;
+  }
+
+  private static QueryFilter and(QueryFilter... children) {
+    QueryFilter filter = new QueryFilter();
+    filter.setAnd(List.of(children));
+    return filter;
+  }
+}
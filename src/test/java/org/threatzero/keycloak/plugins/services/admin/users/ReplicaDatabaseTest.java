@@ -0,0 +1,76 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.Test;
+
+public class ReplicaDatabaseTest {
+
+  @Test
+  public void testLagQueryFor() {
+    assertEquals(
+        ReplicaDatabase.POSTGRESQL_LAG_QUERY,
+        ReplicaDatabase.lagQueryFor("jdbc:postgresql://replica/keycloak", null));
+    assertEquals("SELECT 1", ReplicaDatabase.lagQueryFor("jdbc:postgresql://r/k", "SELECT 1"));
+    assertNull(ReplicaDatabase.lagQueryFor("jdbc:postgresql://replica/keycloak", "none"));
+    assertNull(ReplicaDatabase.lagQueryFor("jdbc:h2:mem:replica", ""));
+  }
+
+  @Test
+  public void testCreateEntityManager_usableReplica() {
+    ReplicaDatabase replica = replica("fresh", "SELECT 1");
+    EntityManager em = replica.createEntityManager();
+    assertNotNull(em);
+    assertTrue(replica.owns(em));
+    assertEquals(1, ((Number) em.createNativeQuery("SELECT 1").getSingleResult()).intValue());
+    ReplicaDatabase.close(em);
+    assertFalse(em.isOpen());
+    assertEquals(true, replica.getStats().get("usable"));
+    assertEquals(1000L, replica.getStats().get("lagMillis"));
+  }
+
+  @Test
+  public void testCreateEntityManager_laggingReplica() {
+    ReplicaDatabase replica = replica("lagging", "SELECT 3600");
+    assertNull(replica.createEntityManager());
+    assertEquals(1L, replica.getStats().get("fallbacks"));
+  }
+
+  @Test
+  public void testCreateEntityManager_unreachableReplica() {
+    ReplicaDatabase replica =
+        new ReplicaDatabase(
+            "jdbc:h2:tcp://localhost:1/unreachable", "sa", "", 1, 10_000, null, 60_000);
+    assertNull(replica.createEntityManager());
+    assertNull(replica.createEntityManager());
+    assertEquals(false, replica.getStats().get("usable"));
+    assertEquals(2L, replica.getStats().get("fallbacks"));
+  }
+
+  @Test
+  public void testOpenEntityManager_readsFromTheCheckedReplicaUntilClosed() {
+    ReplicaDatabase replica = replica("closing", null);
+    EntityManager em = replica.createEntityManager();
+    assertNotNull(em);
+    EntityManager other = replica.openEntityManager();
+    assertTrue(replica.owns(other));
+    assertEquals(2L, replica.getStats().get("reads"));
+    ReplicaDatabase.close(other);
+    ReplicaDatabase.close(em);
+
+    replica.close();
+    assertNull(replica.createEntityManager());
+    assertThrows(IllegalStateException.class, replica::openEntityManager);
+    assertEquals(false, replica.getStats().get("usable"));
+  }
+
+  /**
+   * An in-memory database standing in for a replica, with a fixed lag, and connections for two
+   * entity managers open at once.
+   */
+  private static ReplicaDatabase replica(String name, String lagQuery) {
+    return new ReplicaDatabase(
+        "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", "sa", "", 2, 10_000, lagQuery, 60_000);
+  }
+}
@@ -0,0 +1,72 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+public class SearchMetricsTest {
+
+  @Test
+  public void testFinish_recordsPhasesAndSizes() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    SearchMetrics metrics = new SearchMetrics(registry, 0, 100);
+
+    SearchMetrics.Timing timing = metrics.start("acme");
+    timing.setFilter(null);
+    timing.phase("parse");
+    assertEquals("done", timing.time("groups", () -> "done"));
+    timing.phase("page");
+    timing.finish(10, 42L);
+
+    String shape = SearchMetrics.shapeTag("");
+    for (String phase : new String[] {"parse", "groups", "page"}) {
+      assertEquals(
+          1,
+          registry
+              .get(SearchMetrics.PHASE_TIMER)
+              .tags("realm", "acme", "shape", shape, "phase", phase, "outcome", "success")
+              .timer()
+              .count());
+    }
+    assertEquals(10.0, registry.get(SearchMetrics.RESULTS_SUMMARY).summary().totalAmount());
+    assertEquals(42.0, registry.get(SearchMetrics.MATCHED_SUMMARY).summary().totalAmount());
+  }
+
+  @Test
+  public void testFail_recordsTheFailedPhaseOnce() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    SearchMetrics.Timing timing = new SearchMetrics(registry, 0, 100).start("acme");
+    timing.phase("parse");
+    timing.fail(SearchMetrics.TIMEOUT);
+    timing.finish(0, null);
+
+    for (String phase : new String[] {"parse", "failed"}) {
+      assertEquals(
+          1,
+          registry
+              .get(SearchMetrics.PHASE_TIMER)
+              .tags("phase", phase, "outcome", SearchMetrics.TIMEOUT)
+              .timer()
+              .count());
+    }
+    assertTrue(
+        registry.find(SearchMetrics.PHASE_TIMER).tags("outcome", "success").meters().isEmpty());
+    assertNull(registry.find(SearchMetrics.RESULTS_SUMMARY).summary());
+  }
+
+  @Test
+  public void testBoundedShapeTag_sharesOtherBeyondTheLimit() {
+    SearchMetrics metrics = new SearchMetrics(new SimpleMeterRegistry(), 0, 2);
+    assertEquals(SearchMetrics.shapeTag("a"), metrics.boundedShapeTag("a"));
+    assertEquals(SearchMetrics.shapeTag("b"), metrics.boundedShapeTag("b"));
+    assertEquals(SearchMetrics.OTHER_SHAPE, metrics.boundedShapeTag("c"));
+    assertEquals(SearchMetrics.shapeTag("a"), metrics.boundedShapeTag("a"));
+  }
+
+  @Test
+  public void testShapeTag_isStable() {
+    assertEquals(SearchMetrics.shapeTag("q(eq:org:1)"), SearchMetrics.shapeTag("q(eq:org:1)"));
+    assertEquals(8, SearchMetrics.shapeTag("q(eq:org:1)").length());
+  }
+}
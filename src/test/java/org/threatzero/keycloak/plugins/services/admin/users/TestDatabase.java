@@ -0,0 +1,185 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.credential.CredentialProviderFactory;
+import org.keycloak.credential.PasswordCredentialProviderFactory;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+
+/**
+ * An in-memory database with the user tables searches read, and stubs of the Keycloak objects
+ * that read it, for the tests that run real queries.
+ */
+final class TestDatabase {
+  static final String REALM_ID = "realm";
+  static final RealmModel REALM =
+      stub(RealmModel.class, Map.of("getId", REALM_ID, "getName", REALM_ID));
+
+  private TestDatabase() {}
+
+  /** Opens an empty database, which {@code name} keeps apart from those of other tests. */
+  static SessionFactory open(String name) {
+    Configuration configuration = new Configuration();
+    SearchEntities.CLASSES.forEach(configuration::addAnnotatedClass);
+    return configuration
+        // VALUE is a keyword in H2, and a column of USER_ATTRIBUTE.
+        .setProperty(
+            "jakarta.persistence.jdbc.url",
+            "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1;NON_KEYWORDS=VALUE")
+        .setProperty("jakarta.persistence.jdbc.user", "sa")
+        .setProperty("jakarta.persistence.jdbc.password", "")
+        .setProperty("hibernate.hbm2ddl.auto", "create-drop")
+        // Keycloak's named queries refer to entities that aren't mapped here.
+        .setProperty("hibernate.query.startup_check", "false")
+        .buildSessionFactory();
+  }
+
+  /** Persists the entities in one transaction. */
+  static void persist(SessionFactory factory, Object... entities) {
+    try (Session session = factory.openSession()) {
+      session.beginTransaction();
+      for (Object entity : entities) {
+        session.persist(entity);
+      }
+      session.getTransaction().commit();
+    }
+  }
+
+  /** An enabled local user of the realm. Keycloak stores usernames and emails lowercased. */
+  static UserEntity user(String id, String username) {
+    UserEntity user = new UserEntity();
+    user.setId(id);
+    user.setRealmId(REALM_ID);
+    user.setUsername(username);
+    user.setEmail(username + "@example.org", false);
+    user.setEnabled(true);
+    user.setCreatedTimestamp(1_600_000_000_000L);
+    return user;
+  }
+
+  static UserAttributeEntity attribute(UserEntity user, String name, String value) {
+    UserAttributeEntity attribute = new UserAttributeEntity();
+    attribute.setId(user.getId() + "-" + name + "-" + value);
+    attribute.setUser(user);
+    attribute.setName(name);
+    attribute.setValue(value);
+    return attribute;
+  }
+
+  /**
+   * A session reading through {@code em}, whose user provider returns {@code user}, with Keycloak's
+   * password provider as its only credential provider, as on a real server.
+   */
+  static KeycloakSession session(Session em, UserModel user) {
+    return session(em, user, new PasswordCredentialProviderFactory().create(null));
+  }
+
+  /**
+   * A session reading through {@code em} for a request with the headers, outside of any
+   * transaction, so that after commit tasks run right away.
+   */
+  static KeycloakSession request(Session em, Map<String, List<String>> headers) {
+    return session(em, null, new PasswordCredentialProviderFactory().create(null), headers);
+  }
+
+  /** A session reading through {@code em}, whose user provider returns {@code user}. */
+  static KeycloakSession session(Session em, UserModel user, CredentialProvider<?> credentials) {
+    return session(em, user, credentials, Map.of());
+  }
+
+  private static KeycloakSession session(
+      Session em,
+      UserModel user,
+      CredentialProvider<?> credentials,
+      Map<String, List<String>> headers) {
+    CredentialProviderFactory<?> factory =
+        stub(CredentialProviderFactory.class, Map.of("getId", "credentials"));
+    KeycloakSessionFactory sessionFactory =
+        stub(KeycloakSessionFactory.class, Map.of("getProviderFactoriesStream", List.of(factory)));
+    Map<String, Object> userMethods = new HashMap<>();
+    userMethods.put("getUserById", user);
+    userMethods.put("getNotBeforeOfUser", 0);
+    Map<String, Object> jpaMethods = new HashMap<>();
+    jpaMethods.put("getEntityManager", em);
+    Map<Object, Object> providers = new HashMap<>();
+    providers.put(JpaConnectionProvider.class, stub(JpaConnectionProvider.class, jpaMethods));
+    providers.put(CredentialProvider.class, credentials);
+    return stub(
+        KeycloakSession.class,
+        Map.of(
+            "realms", stub(RealmProvider.class, Map.of("getRealm", REALM)),
+            "getContext",
+            stub(
+                KeycloakContext.class,
+                Map.of(
+                    "getRequestHeaders",
+                    stub(
+                        HttpHeaders.class,
+                        Map.of("getRequestHeader", (Answer) args -> headers.get(args[0]))))),
+            "getTransactionManager", stub(KeycloakTransactionManager.class, Map.of()),
+            "getProvider", (Answer) args -> providers.get(args[0]),
+            "users", stub(UserProvider.class, userMethods),
+            "getKeycloakSessionFactory", sessionFactory));
+  }
+
+  /** Computes the return value of a stubbed method from its arguments. */
+  @FunctionalInterface
+  interface Answer {
+    Object answer(Object[] args);
+  }
+
+  /**
+   * Implements an interface with fixed return values by method name, or ones an {@link Answer}
+   * computes. Lists are returned as fresh streams to methods returning a stream; other methods
+   * return null, or zero or false for primitives.
+   */
+  @SuppressWarnings("unchecked")
+  static <T> T stub(Class<T> type, Map<String, Object> returns) {
+    return (T)
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> {
+              Object value = returns.get(method.getName());
+              if (value instanceof Answer answer) {
+                value = answer.answer(args);
+              }
+              if (method.getReturnType() == Stream.class) {
+                return value instanceof List<?> list ? list.stream() : Stream.empty();
+              }
+              if (value != null) {
+                return value;
+              }
+              if (method.getName().equals("hashCode")) {
+                return System.identityHashCode(proxy);
+              } else if (method.getName().equals("equals")) {
+                return proxy == args[0];
+              } else if (method.getReturnType() == boolean.class) {
+                return false;
+              } else if (method.getReturnType() == int.class) {
+                return 0;
+              } else if (method.getReturnType() == long.class) {
+                return 0L;
+              }
+              return null;
+            });
+  }
+}
@@ -0,0 +1,111 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.threatzero.keycloak.plugins.services.admin.users.TestDatabase.*;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.threatzero.keycloak.plugins.services.admin.users.jpa.TypedUserAttributeEntity;
+
+/** Reindexes users with repeated and invalid values in an in-memory database. */
+public class TypedAttributeIndexerTest {
+  private static final TypedAttributeIndexer indexer =
+      TypedAttributeIndexer.fromConfig("seats:number,hired:date");
+
+  private static SessionFactory factory;
+
+  @BeforeAll
+  public static void setUp() {
+    factory = open("typed");
+
+    UserEntity alice = user("u1", "alice");
+    UserEntity bob = user("u2", "bob");
+    persist(
+        factory,
+        alice,
+        bob,
+        attribute(alice, "seats", "10"),
+        attribute(alice, "seats", "10.0"),
+        attribute(alice, "seats", "12"),
+        attribute(alice, "seats", "many"),
+        attribute(alice, "hired", "2024-01-01"),
+        attribute(alice, "org", "acme"),
+        attribute(bob, "seats", "10"));
+  }
+
+  @AfterAll
+  public static void tearDown() {
+    factory.close();
+  }
+
+  @Test
+  public void testReindexUser_writesEachValueOnce() {
+    inTransaction(em -> indexer.reindexUser(session(em, null), REALM_ID, "u1"));
+    inTransaction(em -> indexer.reindexUser(session(em, null), REALM_ID, "u1"));
+
+    List<TypedUserAttributeEntity> rows = rows("u1");
+    assertEquals(3, rows.size());
+    assertEquals(
+        List.of(10, 12),
+        rows.stream()
+            .map(TypedUserAttributeEntity::getNumberValue)
+            .filter(Objects::nonNull)
+            .map(BigDecimal::intValueExact)
+            .sorted()
+            .toList());
+    assertTrue(rows.stream().anyMatch(r -> Objects.equals(r.getDateValue(), 1_704_067_200_000L)));
+  }
+
+  @Test
+  public void testReindexRealm_writesEachValueOncePerUser() {
+    long[] written = new long[2];
+    inTransaction(em -> written[0] = indexer.reindexRealm(session(em, null), REALM_ID));
+    inTransaction(em -> written[1] = indexer.reindexRealm(session(em, null), REALM_ID));
+
+    assertEquals(4, written[0]);
+    assertEquals(4, written[1]);
+    assertEquals(3, rows("u1").size());
+    assertEquals(1, rows("u2").size());
+    // Equal values of different users are different rows.
+    assertNotEquals(rows("u1").get(0).getId(), rows("u2").get(0).getId());
+  }
+
+  @Test
+  public void testTypedId_comparesNumbersAtTheColumnScale() {
+    assertEquals(
+        TypedAttributeIndexer.typedId("u1", "seats", new BigDecimal("10")),
+        TypedAttributeIndexer.typedId("u1", "seats", new BigDecimal("10.00000000001")));
+    assertNotEquals(
+        TypedAttributeIndexer.typedId("u1", "seats", new BigDecimal("10")),
+        TypedAttributeIndexer.typedId("u1", "seats", new BigDecimal("10.0000000001")));
+    assertNotEquals(
+        TypedAttributeIndexer.typedId("u1", "seats", new BigDecimal("10")),
+        TypedAttributeIndexer.typedId("u1", "hired", 10L));
+  }
+
+  private static void inTransaction(Consumer<Session> work) {
+    try (Session em = factory.openSession()) {
+      em.beginTransaction();
+      work.accept(em);
+      em.getTransaction().commit();
+    }
+  }
+
+  private static List<TypedUserAttributeEntity> rows(String userId) {
+    try (Session em = factory.openSession()) {
+      return em.createQuery(
+              "from TypedUserAttributeEntity where userId = :userId order by id",
+              TypedUserAttributeEntity.class)
+          .setParameter("userId", userId)
+          .getResultList();
+    }
+  }
+}
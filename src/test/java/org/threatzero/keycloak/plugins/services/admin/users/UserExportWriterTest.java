@@ -0,0 +1,44 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.keycloak.representations.idm.UserRepresentation;
+
+public class UserExportWriterTest {
+
+  @Test
+  public void testCsv_quotesDelimitersAndNeutralizesFormulas() throws Exception {
+    UserRepresentation user = new UserRepresentation();
+    user.setId("1");
+    user.setUsername("alice");
+    user.setFirstName("Smith, Jr.");
+    user.setLastName("=HYPERLINK(\"http://example.com\")");
+    user.setAttributes(
+        Map.of("phone", List.of("+1 555 0100"), "team", List.of("-ops"), "org", List.of("@a")));
+
+    String[] lines = csv(user, List.of("phone", "team", "org")).split("\r\n");
+    assertEquals(
+        "id,username,email,firstName,lastName,enabled,emailVerified,createdTimestamp,groups,"
+            + "phone,team,org",
+        lines[0]);
+    assertEquals(
+        "1,alice,,\"Smith, Jr.\",\"'=HYPERLINK(\"\"http://example.com\"\")\",,,,,'+1 555 0100,"
+            + "'-ops,'@a",
+        lines[1]);
+  }
+
+  private static String csv(UserRepresentation user, List<String> attributes) throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    UserExportWriter writer =
+        UserExportWriter.create(UserExportWriter.Format.CSV, output, attributes);
+    writer.writeHeader();
+    writer.write(List.of(user));
+    writer.finish();
+    return output.toString(StandardCharsets.UTF_8);
+  }
+}
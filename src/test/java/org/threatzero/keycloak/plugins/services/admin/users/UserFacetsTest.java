@@ -0,0 +1,98 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.threatzero.keycloak.plugins.services.admin.users.TestDatabase.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.util.JsonSerialization;
+import org.threatzero.keycloak.plugins.services.models.Facet;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+
+/** Counts attribute values of users with several of them in an in-memory database. */
+public class UserFacetsTest {
+  private static SessionFactory factory;
+
+  @BeforeAll
+  public static void setUp() {
+    factory = open("facets");
+
+    UserEntity alice = user("u1", "alice");
+    UserEntity bob = user("u2", "bob");
+    UserEntity carol = user("u3", "carol");
+    UserEntity dave = user("u4", "dave");
+    persist(
+        factory,
+        alice,
+        bob,
+        carol,
+        dave,
+        attribute(alice, "org", "acme"),
+        attribute(alice, "tag", "red"),
+        attribute(alice, "tag", "blue"),
+        attribute(alice, "tag", "green"),
+        attribute(bob, "org", "acme"),
+        attribute(bob, "tag", "red"),
+        attribute(bob, "tag", "blue"),
+        attribute(carol, "org", "acme"),
+        attribute(carol, "tag", "red"),
+        attribute(dave, "org", "globex"),
+        attribute(dave, "tag", "red"),
+        attribute(dave, "tag", "green"));
+  }
+
+  @AfterAll
+  public static void tearDown() {
+    factory.close();
+  }
+
+  @Test
+  public void testFacet_countsUsersOnceUnderEachOfTheirValues() throws IOException {
+    Facet all = facet(null, "tag", 10);
+    assertEquals(Map.of("red", 4L, "blue", 2L, "green", 2L), all.getValues());
+    assertEquals(0L, all.getOther());
+
+    Facet acme = facet("{'q':{'key':'org','value':'acme'}}", "tag", 10);
+    assertEquals(Map.of("red", 3L, "blue", 2L, "green", 1L), acme.getValues());
+  }
+
+  @Test
+  public void testFacet_countsUsersMatchingSeveralValuesOfTheFilterOnce() throws IOException {
+    // Alice and Bob match both values, so the filter's join returns them twice.
+    Facet facet = facet("{'q':{'key':'tag','op':'in','value':['red','blue']}}", "tag", 10);
+    assertEquals(Map.of("red", 4L, "blue", 2L, "green", 2L), facet.getValues());
+
+    Facet orgs = facet("{'q':{'key':'tag','op':'in','value':['red','blue']}}", "org", 10);
+    assertEquals(Map.of("acme", 3L, "globex", 1L), orgs.getValues());
+  }
+
+  @Test
+  public void testFacet_countsOtherUsersOnce() throws IOException {
+    Facet facet = facet("{'q':{'key':'tag','op':'in','value':['red','blue']}}", "tag", 2);
+
+    // Blue and green tie, so the first value in order is listed.
+    assertEquals(List.of("red", "blue"), List.copyOf(facet.getValues().keySet()));
+    assertEquals(Map.of("red", 4L, "blue", 2L), facet.getValues());
+    // Alice and Dave have green, which isn't listed.
+    assertEquals(2L, facet.getOther());
+  }
+
+  private static Facet facet(String json, String key, int size) throws IOException {
+    QueryFilter filter =
+        json != null
+            ? JsonSerialization.readValue(json.replace('\'', '"'), QueryFilter.class)
+            : null;
+    try (Session em = factory.openSession()) {
+      // Only group facets read group paths through the hydrator.
+      return new UserFacets(new UserQueryBuilder(REALM_ID), QueryGuard.NONE, em, null)
+          .facet(filter, key, size);
+    }
+  }
+}
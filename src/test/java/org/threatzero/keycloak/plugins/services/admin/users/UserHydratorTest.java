@@ -0,0 +1,179 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.threatzero.keycloak.plugins.services.admin.users.TestDatabase.*;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.Profile;
+import org.keycloak.credential.CredentialInputUpdater;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.CredentialEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.jpa.entities.UserRequiredActionEntity;
+import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Compares the batched representations of {@link UserHydrator} with those {@link
+ * ModelToRepresentation} builds from the same users, on an in-memory database.
+ */
+public class UserHydratorTest {
+  private static SessionFactory factory;
+
+  @BeforeAll
+  public static void setUp() {
+    // ModelToRepresentation checks features of the server's profile.
+    Profile.defaults();
+    factory = open("hydrator");
+
+    try (Session session = factory.openSession()) {
+      session.beginTransaction();
+      UserEntity local = person("local", null);
+      session.persist(local);
+      session.persist(attribute(local, "organization", "org-1"));
+      session.persist(attribute(local, "title", "teacher"));
+      UserRequiredActionEntity action = new UserRequiredActionEntity();
+      action.setUser(local);
+      action.setAction("VERIFY_EMAIL");
+      session.persist(action);
+      CredentialEntity otp = new CredentialEntity();
+      otp.setId("local-otp");
+      otp.setUser(local);
+      otp.setType("otp");
+      session.persist(otp);
+
+      session.persist(person("federated", "ldap-1"));
+      session.getTransaction().commit();
+    }
+  }
+
+  @AfterAll
+  public static void tearDown() {
+    factory.close();
+  }
+
+  @Test
+  public void testToRepresentations_localUserMatchesModelToRepresentation() throws Exception {
+    try (Session em = factory.openSession()) {
+      UserModel model =
+          model(
+              em.find(UserEntity.class, "local"),
+              Map.of("organization", List.of("org-1"), "title", List.of("teacher")),
+              List.of("VERIFY_EMAIL"),
+              true);
+      UserRepresentation expected =
+          ModelToRepresentation.toRepresentation(session(null, model), REALM, model);
+      expected.setGroups(List.of());
+
+      // With only the password provider, local users are batched and never loaded as models.
+      UserModel decoy =
+          model(em.find(UserEntity.class, "local"), Map.of(), List.of("UPDATE_PASSWORD"), false);
+      List<UserRepresentation> hydrated =
+          new UserHydrator(session(null, decoy), REALM, em, new BoundedCache<>(10, 0))
+              .toRepresentations(List.of(em.find(UserEntity.class, "local")));
+
+      assertEquals(1, hydrated.size());
+      assertEquals(toMap(expected), toMap(hydrated.get(0)));
+    }
+  }
+
+  @Test
+  public void testToRepresentations_localUserGoesThroughItsModelWithAnExtensionUpdater()
+      throws Exception {
+    try (Session em = factory.openSession()) {
+      // An extension's provider may disable credentials of local users too.
+      UserModel model =
+          model(em.find(UserEntity.class, "local"), Map.of(), List.of("UPDATE_PASSWORD"), false);
+      CredentialProvider<?> updater =
+          (CredentialProvider<?>)
+              Proxy.newProxyInstance(
+                  UserHydratorTest.class.getClassLoader(),
+                  new Class<?>[] {CredentialProvider.class, CredentialInputUpdater.class},
+                  (proxy, method, args) -> null);
+
+      List<UserRepresentation> hydrated =
+          new UserHydrator(session(null, model, updater), REALM, em, new BoundedCache<>(10, 0))
+              .toRepresentations(List.of(em.find(UserEntity.class, "local")));
+
+      assertEquals(List.of("UPDATE_PASSWORD"), hydrated.get(0).getRequiredActions());
+    }
+  }
+
+  @Test
+  public void testToRepresentations_federatedUserGoesThroughItsModel() throws Exception {
+    try (Session em = factory.openSession()) {
+      // The storage provider reports an OTP credential the local tables don't have.
+      UserModel model = model(em.find(UserEntity.class, "federated"), Map.of(), List.of(), true);
+      UserRepresentation expected =
+          ModelToRepresentation.toRepresentation(session(null, model), REALM, model);
+      expected.setGroups(List.of());
+
+      List<UserRepresentation> hydrated =
+          new UserHydrator(session(null, model), REALM, em, new BoundedCache<>(10, 0))
+              .toRepresentations(
+                  List.of(
+                      em.find(UserEntity.class, "local"), em.find(UserEntity.class, "federated")));
+
+      assertEquals(
+          List.of("local", "federated"),
+          hydrated.stream().map(UserRepresentation::getId).toList());
+      assertEquals(toMap(expected), toMap(hydrated.get(1)));
+      assertTrue(hydrated.get(1).isTotp());
+      assertEquals("ldap-1", hydrated.get(1).getFederationLink());
+    }
+  }
+
+  /** A user with all the columns representations show, stored locally or by a provider. */
+  private static UserEntity person(String id, String federationLink) {
+    UserEntity user = user(id, id);
+    user.setFirstName("Jane");
+    user.setLastName("Smith");
+    user.setEmailVerified(true);
+    user.setFederationLink(federationLink);
+    return user;
+  }
+
+  /** A user model with the entity's columns and the given attributes, actions and OTP status. */
+  private static UserModel model(
+      UserEntity entity,
+      Map<String, List<String>> attributes,
+      List<String> requiredActions,
+      boolean totp) {
+    SubjectCredentialManager credentials =
+        stub(
+            SubjectCredentialManager.class,
+            Map.of(
+                "isConfiguredFor", totp,
+                "getDisableableCredentialTypesStream", List.of()));
+    Map<String, Object> methods = new HashMap<>();
+    methods.put("getId", entity.getId());
+    methods.put("getUsername", entity.getUsername());
+    methods.put("getCreatedTimestamp", entity.getCreatedTimestamp());
+    methods.put("getFirstName", entity.getFirstName());
+    methods.put("getLastName", entity.getLastName());
+    methods.put("getEmail", entity.getEmail());
+    methods.put("isEnabled", entity.isEnabled());
+    methods.put("isEmailVerified", entity.isEmailVerified());
+    methods.put("getFederationLink", entity.getFederationLink());
+    methods.put("getAttributes", attributes);
+    methods.put("getRequiredActionsStream", requiredActions);
+    methods.put("credentialManager", credentials);
+    return stub(UserModel.class, methods);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> toMap(UserRepresentation user) throws Exception {
+    return JsonSerialization.readValue(JsonSerialization.writeValueAsBytes(user), Map.class);
+  }
+}
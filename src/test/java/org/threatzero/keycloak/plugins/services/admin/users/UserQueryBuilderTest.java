@@ -0,0 +1,140 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.threatzero.keycloak.plugins.services.admin.users.TestDatabase.*;
+
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Root;
+import java.io.IOException;
+import java.util.List;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.util.JsonSerialization;
+import org.threatzero.keycloak.plugins.services.models.QueryFilter;
+
+public class UserQueryBuilderTest {
+  private static SessionFactory factory;
+
+  @BeforeAll
+  public static void setUp() {
+    factory = open("builder");
+    UserEntity early = user("u1", "alice");
+    early.setCreatedTimestamp(50L);
+    early.setEnabled(false);
+    UserEntity middle = user("u2", "bob");
+    middle.setCreatedTimestamp(150L);
+    UserEntity late = user("u3", "carol");
+    late.setCreatedTimestamp(300L);
+    persist(factory, early, middle, late);
+  }
+
+  @AfterAll
+  public static void tearDown() {
+    factory.close();
+  }
+
+  @Test
+  public void testBuildPredicate_comparesTimestampsAsNumbers() throws IOException {
+    assertEquals(
+        List.of("u2", "u3"),
+        search("{'q':{'key':'createdTimestamp','op':'gt','value':'100','ignoreCase':false}}"));
+    // Ignoring case is the default, and doesn't apply to numbers.
+    assertEquals(
+        List.of("u3"), search("{'q':{'key':'createdTimestamp','op':'gte','value':' 300'}}"));
+    assertEquals(
+        List.of("u1", "u3"),
+        search("{'q':{'key':'createdTimestamp','op':'in','value':['50','300']}}"));
+  }
+
+  @Test
+  public void testBuildPredicate_comparesFlagsAsBooleans() throws IOException {
+    assertEquals(
+        List.of("u2", "u3"), search("{'q':{'key':'enabled','value':'TRUE','ignoreCase':true}}"));
+    assertEquals(List.of("u1"), search("{'q':{'key':'enabled','value':'true','not':true}}"));
+  }
+
+  @Test
+  public void testValidateColumnValues_rejectsValuesOfTheWrongType() throws IOException {
+    UserQueryBuilder.validateColumnValues(filter("{'q':{'key':'createdTimestamp','value':'100'}}"));
+    UserQueryBuilder.validateColumnValues(
+        filter("{'q':{'key':'lastName','op':'contains','value':'x'}}"));
+
+    for (String json :
+        List.of(
+            "{'AND':[{'q':{'key':'createdTimestamp','op':'gt','value':'yesterday'}}]}",
+            "{'q':{'key':'enabled','value':'yes'}}",
+            "{'q':{'key':'createdTimestamp','op':'starts','value':'16'}}")) {
+      QueryFilter filter = filter(json);
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> UserQueryBuilder.validateColumnValues(filter),
+          json);
+    }
+  }
+
+  @Test
+  public void testBucketOf() {
+    assertEquals(0, UserQueryBuilder.bucketOf(0));
+    assertEquals(1, UserQueryBuilder.bucketOf(1));
+    assertEquals(2, UserQueryBuilder.bucketOf(2));
+    assertEquals(4, UserQueryBuilder.bucketOf(3));
+    assertEquals(8, UserQueryBuilder.bucketOf(5));
+    assertEquals(8, UserQueryBuilder.bucketOf(8));
+    assertEquals(1024, UserQueryBuilder.bucketOf(1000));
+  }
+
+  @Test
+  public void testPadded_repeatsLastValue() {
+    List<String> values = List.of("a", "b", "c");
+    assertEquals("b", UserQueryBuilder.padded(values, 1));
+    assertEquals("c", UserQueryBuilder.padded(values, 3));
+  }
+
+  @Test
+  public void testShapeOf_ignoresValuesAndBucketsInLists() {
+    assertEquals(
+        UserQueryBuilder.shapeOf(in("org", "a", "b", "c")),
+        UserQueryBuilder.shapeOf(in("org", "d", "e", "f", "g")));
+    assertNotEquals(
+        UserQueryBuilder.shapeOf(in("org", "a", "b")),
+        UserQueryBuilder.shapeOf(in("org", "a", "b", "c")));
+    assertNotEquals(
+        UserQueryBuilder.shapeOf(in("org", "a")), UserQueryBuilder.shapeOf(in("unit", "a")));
+    assertEquals("", UserQueryBuilder.shapeOf(null));
+  }
+
+  private static QueryFilter in(String key, String... values) {
+    QueryFilter.Condition condition = new QueryFilter.Condition();
+    condition.setKey(key);
+    condition.setOp(QueryFilter.Condition.Operator.IN);
+    condition.setValues(values);
+    QueryFilter filter = new QueryFilter();
+    filter.setQ(condition);
+    return filter;
+  }
+
+  /** Returns the ids of the users matching a filter, given in JSON with single quotes. */
+  private static List<String> search(String json) throws IOException {
+    QueryFilter filter = filter(json);
+    try (Session em = factory.openSession()) {
+      CriteriaBuilder cb = em.getCriteriaBuilder();
+      QueryParameters params = new QueryParameters();
+      CriteriaQuery<UserEntity> qb = cb.createQuery(UserEntity.class);
+      Root<UserEntity> root = qb.from(UserEntity.class);
+      qb.where(new UserQueryBuilder(REALM_ID).buildPredicate(qb, cb, root, filter, params))
+          .orderBy(cb.asc(root.get("id")));
+      return params.bind(em.createQuery(qb), QueryValues.of(filter)).getResultList().stream()
+          .map(UserEntity::getId)
+          .toList();
+    }
+  }
+
+  private static QueryFilter filter(String json) throws IOException {
+    return JsonSerialization.readValue(json.replace('\'', '"'), QueryFilter.class);
+  }
+}
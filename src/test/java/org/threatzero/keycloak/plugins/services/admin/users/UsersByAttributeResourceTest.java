@@ -0,0 +1,144 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.threatzero.keycloak.plugins.services.admin.users.TestDatabase.*;
+
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import java.util.List;
+import java.util.Map;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.fgap.UserPermissionEvaluator;
+import org.threatzero.keycloak.plugins.services.models.Paginated;
+
+/** Runs searches against an in-memory database, repeating them until a user changes. */
+public class UsersByAttributeResourceTest {
+  private static final String FILTER = "{'q':{'key':'org','value':'acme'}}";
+  private static final AdminPermissionEvaluator AUTH =
+      stub(
+          AdminPermissionEvaluator.class,
+          Map.of("users", stub(UserPermissionEvaluator.class, Map.of())));
+
+  private SessionFactory factory;
+  private UsersByAttributeResourceProvider provider;
+
+  /** Two users of the acme org, in a database of their own as tests add users. */
+  @BeforeEach
+  public void setUp() {
+    factory = open("search");
+    UserEntity alice = user("u1", "alice");
+    UserEntity bob = user("u2", "bob");
+    persist(factory, alice, bob, attribute(alice, "org", "acme"), attribute(bob, "org", "acme"));
+
+    provider = new UsersByAttributeResourceProvider();
+    // Without a TTL tags and cached pages only change with the realm's version.
+    provider.init(config(Map.of("resultCacheSize", 100, "resultCacheTtl", 0)));
+  }
+
+  @AfterEach
+  public void tearDown() {
+    provider.close();
+    factory.close();
+  }
+
+  @Test
+  public void testGetUsersByAttribute_notModifiedUntilAUserChanges() {
+    Response first = search(null);
+    assertEquals(200, first.getStatus());
+    assertEquals(List.of("u1", "u2"), ids(first));
+    EntityTag etag = first.getEntityTag();
+    String ifNoneMatch = quoted(first);
+
+    assertEquals(304, search(ifNoneMatch).getStatus());
+    assertEquals(etag, search(ifNoneMatch).getEntityTag());
+    assertEquals(304, search("W/" + ifNoneMatch + ", \"other\"").getStatus());
+
+    // A user written without an event, like by an import, goes unseen: clients keep their copy,
+    // and others get the cached page.
+    UserEntity carol = user("u3", "carol");
+    persist(factory, carol, attribute(carol, "org", "acme"));
+    assertEquals(304, search(ifNoneMatch).getStatus());
+    Response cached = search(null);
+    assertEquals(etag, cached.getEntityTag());
+    assertSame(first.getEntity(), cached.getEntity());
+
+    // An admin's change to any user of the realm makes the search run again.
+    userUpdated("u1");
+    Response changed = search(ifNoneMatch);
+    assertEquals(200, changed.getStatus());
+    assertNotEquals(etag, changed.getEntityTag());
+    assertEquals(List.of("u1", "u2", "u3"), ids(changed));
+    assertEquals(304, search(quoted(changed)).getStatus());
+  }
+
+  @Test
+  public void testGetUsersByAttribute_tagsDifferentRequestsApart() {
+    Response all = search(null);
+    Response page = search(1, null);
+
+    assertEquals(List.of("u1", "u2"), ids(all));
+    assertEquals(1, ids(page).size());
+    assertNotEquals(all.getEntityTag(), page.getEntityTag());
+    assertEquals(200, search(quoted(page)).getStatus());
+    assertEquals(304, search(1, quoted(page)).getStatus());
+  }
+
+  /** Searches the users of the acme org, optionally with an {@code If-None-Match} header. */
+  private Response search(String ifNoneMatch) {
+    return search(null, ifNoneMatch);
+  }
+
+  private Response search(Integer limit, String ifNoneMatch) {
+    Map<String, List<String>> headers =
+        ifNoneMatch != null ? Map.of(HttpHeaders.IF_NONE_MATCH, List.of(ifNoneMatch)) : Map.of();
+    try (Session em = factory.openSession()) {
+      return new UsersByAttributeResource(request(em, headers), REALM, AUTH, null, provider)
+          .getUsersByAttribute(FILTER, null, limit, null, null, null, "id,username");
+    }
+  }
+
+  /** The response's tag, as a client sends it back. */
+  private static String quoted(Response response) {
+    return "\"" + response.getEntityTag().getValue() + "\"";
+  }
+
+  /** Sends the admin event of updating a user through the listener, as Keycloak does. */
+  private void userUpdated(String userId) {
+    AdminEvent event = new AdminEvent();
+    event.setRealmId(REALM_ID);
+    event.setResourceType(ResourceType.USER);
+    event.setOperationType(OperationType.UPDATE);
+    event.setResourcePath("users/" + userId);
+    new UserIndexEventListenerProvider(
+            request(null, Map.of()),
+            provider.getTypedAttributeIndexer(),
+            provider.getNgramIndex(),
+            provider.getRealmVersions())
+        .onEvent(event, false);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<String> ids(Response response) {
+    return ((Paginated<UserRepresentation>) response.getEntity())
+        .getResults().stream().map(UserRepresentation::getId).sorted().toList();
+  }
+
+  /** A provider configuration with the values, and defaults for everything else. */
+  private static Config.Scope config(Map<String, Object> values) {
+    Answer get = args -> values.getOrDefault(args[0], args.length > 1 ? args[1] : null);
+    return stub(
+        Config.Scope.class, Map.of("get", get, "getInt", get, "getLong", get, "getBoolean", get));
+  }
+}
@@ -0,0 +1,118 @@
+package org.threatzero.keycloak.plugins.services.admin.users;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.threatzero.keycloak.plugins.services.admin.users.TestDatabase.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.util.JsonSerialization;
+import org.threatzero.keycloak.plugins.services.models.LookupResult;
+
+/** Runs lookups against an in-memory database with three local users. */
+public class UsersLookupResourceTest {
+  private static SessionFactory factory;
+
+  @BeforeAll
+  public static void setUp() {
+    factory = open("lookup");
+
+    try (Session session = factory.openSession()) {
+      session.beginTransaction();
+      UserEntity alice = user("u1", "alice");
+      UserEntity bob = user("u2", "bob");
+      UserEntity carol = user("u3", "carol");
+      List.of(alice, bob, carol).forEach(session::persist);
+      session.persist(attribute(alice, "org", "acme"));
+      session.persist(attribute(bob, "org", "acme"));
+      session.persist(attribute(carol, "org", "Globex"));
+      session.getTransaction().commit();
+    }
+  }
+
+  @AfterAll
+  public static void tearDown() {
+    factory.close();
+  }
+
+  @Test
+  public void testWriteUsers_keepsOrderAndDuplicatesAndReportsMisses() throws Exception {
+    List<String> values = List.of("carol", "nobody", "alice", "carol");
+    List<LookupResult> results = new ArrayList<>();
+
+    long found = lookup(UserModel.USERNAME, values, results);
+
+    assertEquals(3, found);
+    assertEquals(values, results.stream().map(LookupResult::getValue).toList());
+    assertEquals(List.of("u3"), ids(results.get(0)));
+    assertEquals(List.of(), ids(results.get(1)));
+    assertEquals(List.of("u1"), ids(results.get(2)));
+    assertEquals(List.of("u3"), ids(results.get(3)));
+    assertEquals("carol", results.get(0).getUsers().get(0).getUsername());
+  }
+
+  @Test
+  public void testWriteUsers_lowercasesUsernamesAndEmailsOnly() throws Exception {
+    List<LookupResult> results = new ArrayList<>();
+
+    assertEquals(
+        2,
+        lookup(UserModel.EMAIL, List.of("Bob@Example.org", "ALICE@example.org"), results));
+    // Results carry the values as they were given.
+    assertEquals("Bob@Example.org", results.get(0).getValue());
+    assertEquals(List.of("u2"), ids(results.get(0)));
+    assertEquals(List.of("u1"), ids(results.get(1)));
+
+    // Attribute values are compared as they are stored.
+    results.clear();
+    assertEquals(1, lookup("org", List.of("globex", "Globex"), results));
+    assertEquals(List.of(), ids(results.get(0)));
+    assertEquals(List.of("u3"), ids(results.get(1)));
+  }
+
+  @Test
+  public void testWriteUsers_returnsEveryUserWithAnAttributeValue() throws Exception {
+    List<LookupResult> results = new ArrayList<>();
+
+    assertEquals(2, lookup("org", List.of("acme", "initech", "acme"), results));
+    assertEquals(List.of("u1", "u2"), ids(results.get(0)));
+    assertEquals(List.of(), ids(results.get(1)));
+    assertEquals(List.of("u1", "u2"), ids(results.get(2)));
+  }
+
+  /** Looks the values up, collecting one parsed result per NDJSON line. */
+  private static long lookup(String key, List<String> values, List<LookupResult> results)
+      throws IOException {
+    try (Session em = factory.openSession()) {
+      StringWriter writer = new StringWriter();
+      long found =
+          UsersLookupResource.writeUsers(
+              session(em, null),
+              "realm",
+              new UserQueryBuilder("realm"),
+              QueryGuard.NONE,
+              key,
+              values,
+              new BoundedCache<>(10, 0),
+              writer);
+      for (String line : writer.toString().split("\n")) {
+        results.add(JsonSerialization.readValue(line, LookupResult.class));
+      }
+      assertEquals(values.size(), results.size());
+      return found;
+    }
+  }
+
+  private static List<String> ids(LookupResult result) {
+    return result.getUsers().stream().map(UserRepresentation::getId).toList();
+  }
+}
@@ -0,0 +1,35 @@
+package org.threatzero.keycloak.plugins.services.models;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class QueryCursorTest {
+
+  @Test
+  public void testEncodeDecode_roundTrip() {
+    QueryCursor cursor =
+        new QueryCursor("-createdTimestamp,id", List.of(1700000000000L, true, "a-b-c"));
+    QueryCursor decoded = QueryCursor.decode(cursor.encode());
+    assertEquals("-createdTimestamp,id", decoded.getOrder());
+    assertEquals(List.of(1700000000000L, true, "a-b-c"), decoded.getKeys());
+  }
+
+  @Test
+  public void testEncode_isUrlSafe() {
+    String token = new QueryCursor("email", List.of("???>>>", "id")).encode();
+    assertTrue(token.matches("[A-Za-z0-9_-]+"));
+  }
+
+  @Test
+  public void testDecode_malformed() {
+    assertThrows(IllegalArgumentException.class, () -> QueryCursor.decode("not a cursor!"));
+    assertThrows(IllegalArgumentException.class, () -> QueryCursor.decode("e30"));
+  }
+
+  @Test
+  public void testQueryOrder_toString() {
+    assertEquals("-createdTimestamp,email", new QueryOrder("-createdTimestamp,email").toString());
+  }
+}
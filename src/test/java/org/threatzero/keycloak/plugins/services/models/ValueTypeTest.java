@@ -0,0 +1,33 @@
+package org.threatzero.keycloak.plugins.services.models;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import org.junit.jupiter.api.Test;
+
+public class ValueTypeTest {
+
+  @Test
+  public void testParse_number() {
+    assertEquals(new BigDecimal("12.50"), ValueType.NUMBER.parse(" 12.50 "));
+    assertThrows(IllegalArgumentException.class, () -> ValueType.NUMBER.parse("twelve"));
+  }
+
+  @Test
+  public void testParse_date() {
+    assertEquals(1704067200000L, ValueType.DATE.parse("2024-01-01"));
+    assertEquals(1704067200000L, ValueType.DATE.parse("2024-01-01T00:00:00Z"));
+    assertEquals(1704067200000L, ValueType.DATE.parse("2024-01-01T01:00:00+01:00"));
+    assertEquals(1704067200000L, ValueType.DATE.parse("1704067200000"));
+    assertThrows(IllegalArgumentException.class, () -> ValueType.DATE.parse("01/01/2024"));
+  }
+
+  @Test
+  public void testQueryOrder_typeSuffix() {
+    QueryOrder order = new QueryOrder("-seats:number,email");
+    assertEquals(ValueType.NUMBER, order.getValues().get(0).getType());
+    assertEquals("seats", order.getValues().get(0).getKey());
+    assertNull(order.getValues().get(1).getType());
+    assertEquals("-seats:number,email", order.toString());
+  }
+}